@@ -0,0 +1,367 @@
+package com.spiddekauga.appengine;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Buffers puts and deletes and writes them in batches through {@link DatastoreUtils}. Several
+ * writes to the same key are collapsed into the last one. The buffer is flushed when it contains
+ * too many writes, when the oldest write is too old, or when {@link #flush()} is called. The age is
+ * only checked when new writes are added; call {@link #flush()} or {@link #close()} at the end of
+ * the request to write the rest.
+ * <p>
+ * Automatic flushes don't block the write that triggered them. Their writes run in the background
+ * and are waited for at the next flush or when the writer is closed, so at most one automatic flush
+ * is in flight and writes to the same key are made in order.
+ * </p>
+ */
+public class BatchWriter implements AutoCloseable {
+private static final Logger mLogger = Logger.getLogger(BatchWriter.class.getName());
+/** Writes with complete keys, a null value is a delete */
+private final Map<Key, Entity> mWrites = new LinkedHashMap<>();
+/** Puts of new entities, these can't be collapsed */
+private final List<Entity> mNewEntities = new ArrayList<>();
+private final int mMaxWrites;
+private final long mMaxAge;
+private long mOldestWriteTime = 0;
+private FlushResult mLastAutoFlush = null;
+/** Writes of the last automatic flush that haven't been waited for */
+private PendingFlush mPendingAutoFlush = null;
+
+/**
+ * Creates a batch writer that flushes after 500 writes or 5 seconds
+ */
+public BatchWriter() {
+	this(DatastoreUtils.PUT_LIMIT, 5000);
+}
+
+/**
+ * Creates a batch writer
+ * @param maxWrites flush when this many writes are buffered
+ * @param maxAgeMillis flush when a write is added and the oldest buffered write is older than this
+ */
+public BatchWriter(int maxWrites, long maxAgeMillis) {
+	if (maxWrites < 1) {
+		throw new IllegalArgumentException("maxWrites needs to be at least 1");
+	}
+	mMaxWrites = maxWrites;
+	mMaxAge = maxAgeMillis;
+}
+
+/**
+ * Buffer a put. Replaces any earlier buffered write to the same key.
+ * @param entity the entity to put
+ */
+public synchronized void put(Entity entity) {
+	onWrite();
+	if (entity.getKey().isComplete()) {
+		mWrites.remove(entity.getKey());
+		mWrites.put(entity.getKey(), entity);
+	} else {
+		mNewEntities.add(entity);
+	}
+	flushIfFull();
+}
+
+/**
+ * Buffer several puts. Replaces any earlier buffered writes to the same keys.
+ * @param entities all entities to put
+ */
+public synchronized void put(Iterable<Entity> entities) {
+	for (Entity entity : entities) {
+		put(entity);
+	}
+}
+
+/**
+ * Buffer deletes. Replaces any earlier buffered writes to the same keys.
+ * @param keys all keys to delete
+ */
+public synchronized void delete(Key... keys) {
+	for (Key key : keys) {
+		delete(key);
+	}
+}
+
+/**
+ * Buffer deletes. Replaces any earlier buffered writes to the same keys.
+ * @param keys all keys to delete
+ */
+public synchronized void delete(Iterable<Key> keys) {
+	for (Key key : keys) {
+		delete(key);
+	}
+}
+
+/**
+ * Buffer a delete
+ * @param key the key to delete
+ */
+private void delete(Key key) {
+	onWrite();
+	mWrites.remove(key);
+	mWrites.put(key, null);
+	flushIfFull();
+}
+
+/**
+ * Called before a write is added. Flushes if the oldest write is too old.
+ */
+private void onWrite() {
+	long now = System.currentTimeMillis();
+	if (getPendingCount() == 0) {
+		mOldestWriteTime = now;
+	} else if (now - mOldestWriteTime >= mMaxAge) {
+		autoFlush();
+		mOldestWriteTime = now;
+	}
+}
+
+/**
+ * Flush if too many writes are buffered
+ */
+private void flushIfFull() {
+	if (getPendingCount() >= mMaxWrites) {
+		autoFlush();
+	}
+}
+
+/**
+ * Flush because a threshold was reached. The writes are started and waited for at the next flush
+ * or when the writer is closed.
+ */
+private void autoFlush() {
+	finishAutoFlush();
+	mPendingAutoFlush = startFlush();
+}
+
+/**
+ * Wait for the writes of the last automatic flush if they haven't been waited for
+ */
+private void finishAutoFlush() {
+	if (mPendingAutoFlush != null) {
+		mLastAutoFlush = mPendingAutoFlush.finish();
+		mPendingAutoFlush = null;
+		if (!mLastAutoFlush.isSuccessful()) {
+			mLogger.warning("Failed to write " + mLastAutoFlush.getFailureCount() + " entities");
+		}
+	}
+}
+
+/**
+ * @return number of buffered writes
+ */
+public synchronized int getPendingCount() {
+	return mWrites.size() + mNewEntities.size();
+}
+
+/**
+ * @return result of the last flush that was made because a threshold was reached and has been
+ * waited for, null if none
+ */
+public synchronized FlushResult getLastAutoFlush() {
+	return mLastAutoFlush;
+}
+
+/**
+ * Write all buffered puts and deletes. Waits for an earlier automatic flush first. Writes that
+ * fail are not kept in the buffer, they're reported in the result.
+ * @return result of the flush with all writes that failed
+ */
+public synchronized FlushResult flush() {
+	finishAutoFlush();
+	return startFlush().finish();
+}
+
+/**
+ * Start writing all buffered puts and deletes and clear the buffer
+ * @return the started writes
+ */
+private PendingFlush startFlush() {
+	List<Entity> puts = new ArrayList<>(mNewEntities);
+	List<Key> deletes = new ArrayList<>();
+	for (Map.Entry<Key, Entity> entry : mWrites.entrySet()) {
+		if (entry.getValue() != null) {
+			puts.add(entry.getValue());
+		} else {
+			deletes.add(entry.getKey());
+		}
+	}
+	mWrites.clear();
+	mNewEntities.clear();
+
+	PendingFlush pendingFlush = new PendingFlush(puts.size(), deletes.size());
+	for (int i = 0; i < puts.size(); i += DatastoreUtils.PUT_LIMIT) {
+		List<Entity> chunk = puts.subList(i, Math.min(i + DatastoreUtils.PUT_LIMIT, puts.size()));
+		pendingFlush.mPutChunks.add(chunk);
+		pendingFlush.mPutFutures.add(DatastoreUtils.startPut(chunk));
+	}
+	for (int i = 0; i < deletes.size(); i += DatastoreUtils.DELETE_LIMIT) {
+		List<Key> chunk = deletes.subList(i, Math.min(i + DatastoreUtils.DELETE_LIMIT, deletes.size()));
+		pendingFlush.mDeleteChunks.add(chunk);
+		pendingFlush.mDeleteFutures.add(DatastoreUtils.startDelete(chunk));
+	}
+	return pendingFlush;
+}
+
+/**
+ * Wait for a write to finish
+ * @param future the write to wait for
+ * @return exception the write failed with, null if it succeeded
+ */
+private static Exception waitFor(Future<?> future) {
+	try {
+		future.get();
+		return null;
+	} catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		return e;
+	} catch (ExecutionException e) {
+		if (e.getCause() instanceof Exception) {
+			return (Exception) e.getCause();
+		}
+		return e;
+	}
+}
+
+/**
+ * Flushes all buffered writes and waits for an earlier automatic flush
+ */
+@Override
+public void close() {
+	FlushResult result = flush();
+	if (!result.isSuccessful()) {
+		mLogger.warning("Failed to write " + result.getFailureCount() + " entities");
+	}
+}
+
+/**
+ * Writes of a flush that have been started
+ */
+private static class PendingFlush {
+	private final List<List<Entity>> mPutChunks = new ArrayList<>();
+	private final List<Future<List<Key>>> mPutFutures = new ArrayList<>();
+	private final List<List<Key>> mDeleteChunks = new ArrayList<>();
+	private final List<Future<Void>> mDeleteFutures = new ArrayList<>();
+	private final int mPutCount;
+	private final int mDeleteCount;
+
+	/**
+	 * @param putCount number of entities that are put
+	 * @param deleteCount number of keys that are deleted
+	 */
+	private PendingFlush(int putCount, int deleteCount) {
+		mPutCount = putCount;
+		mDeleteCount = deleteCount;
+	}
+
+	/**
+	 * Wait for all writes to finish
+	 * @return result of the flush with all writes that failed
+	 */
+	private FlushResult finish() {
+		FlushResult result = new FlushResult(mPutCount, mDeleteCount);
+		for (int i = 0; i < mPutFutures.size(); i++) {
+			Exception exception = waitFor(mPutFutures.get(i));
+			if (exception != null) {
+				for (Entity entity : mPutChunks.get(i)) {
+					result.addFailure(entity, exception);
+				}
+			}
+		}
+		for (int i = 0; i < mDeleteFutures.size(); i++) {
+			Exception exception = waitFor(mDeleteFutures.get(i));
+			if (exception != null) {
+				for (Key key : mDeleteChunks.get(i)) {
+					result.mFailures.put(key, exception);
+				}
+			}
+		}
+		FutureCompleter.runDeferred();
+		return result;
+	}
+}
+
+/**
+ * Result of a flush
+ */
+public static class FlushResult {
+	private final Map<Key, Exception> mFailures = new LinkedHashMap<>();
+	private final List<Entity> mFailedNewEntities = new ArrayList<>();
+	private final int mPutCount;
+	private final int mDeleteCount;
+
+	/**
+	 * @param putCount number of entities that were put
+	 * @param deleteCount number of keys that were deleted
+	 */
+	private FlushResult(int putCount, int deleteCount) {
+		mPutCount = putCount;
+		mDeleteCount = deleteCount;
+	}
+
+	/**
+	 * Add a failed put
+	 * @param entity the entity that failed
+	 * @param exception why it failed
+	 */
+	private void addFailure(Entity entity, Exception exception) {
+		if (entity.getKey().isComplete()) {
+			mFailures.put(entity.getKey(), exception);
+		} else {
+			mFailedNewEntities.add(entity);
+		}
+	}
+
+	/**
+	 * @return true if all writes succeeded
+	 */
+	public boolean isSuccessful() {
+		return getFailureCount() == 0;
+	}
+
+	/**
+	 * @return number of writes that failed
+	 */
+	public int getFailureCount() {
+		return mFailures.size() + mFailedNewEntities.size();
+	}
+
+	/**
+	 * @return all puts and deletes of existing keys that failed, with the reason they failed
+	 */
+	public Map<Key, Exception> getFailures() {
+		return Collections.unmodifiableMap(mFailures);
+	}
+
+	/**
+	 * @return puts of new entities (incomplete keys) that failed
+	 */
+	public List<Entity> getFailedNewEntities() {
+		return Collections.unmodifiableList(mFailedNewEntities);
+	}
+
+	/**
+	 * @return number of entities that were put, including failed puts
+	 */
+	public int getPutCount() {
+		return mPutCount;
+	}
+
+	/**
+	 * @return number of keys that were deleted, including failed deletes
+	 */
+	public int getDeleteCount() {
+		return mDeleteCount;
+	}
+}
+}
@@ -0,0 +1,223 @@
+package com.spiddekauga.appengine;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressed encoding of byte array properties. A compressed value starts with a header of a magic
+ * number, the codec and the uncompressed length so that values stored without compression can
+ * still be read. Uncompressed values that would be mistaken for a header are stored behind a header
+ * without compression. Deflaters and inflaters are reused per thread.
+ */
+class ByteArrayCompression {
+/** Magic number at the start of compressed values */
+private static final byte[] MAGIC = {(byte) 0x9f, 'D', 'U', 'Z'};
+/** Codec id of values stored without compression */
+private static final byte CODEC_NONE = 0;
+/** Codec id of deflate */
+private static final byte CODEC_DEFLATE = 1;
+/** Magic number, codec and uncompressed length */
+private static final int HEADER_SIZE = MAGIC.length + 1 + 4;
+/** Smaller values aren't compressed */
+private static final int COMPRESS_MIN_BYTES = 64;
+private static final ThreadLocal<Deflater> mDeflaters = new ThreadLocal<Deflater>() {
+	@Override
+	protected Deflater initialValue() {
+		return new Deflater(Deflater.DEFAULT_COMPRESSION);
+	}
+};
+private static final ThreadLocal<Inflater> mInflaters = new ThreadLocal<Inflater>() {
+	@Override
+	protected Inflater initialValue() {
+		return new Inflater();
+	}
+};
+
+/**
+ * Encode a byte array as it should be stored
+ * @param bytes the bytes to store
+ * @param compress true to compress the bytes if it makes them smaller
+ * @return compressed bytes, the bytes with a header if they would be mistaken for a header or a
+ * large property reference, otherwise the bytes themselves
+ */
+static byte[] encode(byte[] bytes, boolean compress) {
+	if (compress) {
+		byte[] compressed = compress(bytes);
+		if (compressed != null) {
+			return compressed;
+		}
+	}
+
+	if (startsWithMagic(bytes) || LargeProperties.isReference(bytes)) {
+		byte[] wrapped = new byte[HEADER_SIZE + bytes.length];
+		System.arraycopy(MAGIC, 0, wrapped, 0, MAGIC.length);
+		wrapped[MAGIC.length] = CODEC_NONE;
+		writeInt(wrapped, MAGIC.length + 1, bytes.length);
+		System.arraycopy(bytes, 0, wrapped, HEADER_SIZE, bytes.length);
+		return wrapped;
+	}
+	return bytes;
+}
+
+/**
+ * Compress a byte array
+ * @param bytes the bytes to compress
+ * @return header and compressed bytes, null if the array is too small or doesn't get smaller
+ */
+static byte[] compress(byte[] bytes) {
+	if (bytes.length < COMPRESS_MIN_BYTES) {
+		return null;
+	}
+
+	// Only worth storing if it's smaller than the uncompressed bytes
+	byte[] compressed = new byte[bytes.length];
+	System.arraycopy(MAGIC, 0, compressed, 0, MAGIC.length);
+	compressed[MAGIC.length] = CODEC_DEFLATE;
+	writeInt(compressed, MAGIC.length + 1, bytes.length);
+
+	Deflater deflater = mDeflaters.get();
+	try {
+		deflater.setInput(bytes);
+		deflater.finish();
+		int length = HEADER_SIZE;
+		while (!deflater.finished() && length < compressed.length) {
+			length += deflater.deflate(compressed, length, compressed.length - length);
+		}
+		if (!deflater.finished()) {
+			return null;
+		}
+
+		byte[] result = new byte[length];
+		System.arraycopy(compressed, 0, result, 0, length);
+		return result;
+	} finally {
+		deflater.reset();
+	}
+}
+
+/**
+ * @param bytes a byte array
+ * @return true if the array is long enough for a header and starts with the magic number
+ */
+private static boolean startsWithMagic(byte[] bytes) {
+	if (bytes.length < HEADER_SIZE) {
+		return false;
+	}
+	for (int i = 0; i < MAGIC.length; i++) {
+		if (bytes[i] != MAGIC[i]) {
+			return false;
+		}
+	}
+	return true;
+}
+
+/**
+ * @param stored a stored byte array value
+ * @return true if the value starts with a header, compressed or not
+ */
+private static boolean hasHeader(byte[] stored) {
+	return startsWithMagic(stored) && (stored[MAGIC.length] == CODEC_NONE || stored[MAGIC.length] == CODEC_DEFLATE);
+}
+
+/**
+ * @param stored a stored byte array value
+ * @return true if the value starts with the header of a compressed value
+ */
+static boolean isCompressed(byte[] stored) {
+	return startsWithMagic(stored) && stored[MAGIC.length] == CODEC_DEFLATE;
+}
+
+/**
+ * Get the uncompressed length of a value
+ * @param stored a stored byte array value
+ * @return uncompressed length of the value
+ */
+static int getLength(byte[] stored) {
+	if (hasHeader(stored)) {
+		return readInt(stored, MAGIC.length + 1);
+	}
+	return stored.length;
+}
+
+/**
+ * Decompress a value
+ * @param stored a stored byte array value
+ * @return uncompressed bytes, the value itself if it isn't compressed
+ */
+static byte[] decompress(byte[] stored) {
+	if (!hasHeader(stored)) {
+		return stored;
+	}
+	byte[] bytes = new byte[getLength(stored)];
+	decompress(stored, bytes);
+	return bytes;
+}
+
+/**
+ * Decompress a value into a buffer
+ * @param stored a stored byte array value
+ * @param buffer where to put the uncompressed bytes, needs to be at least {@link
+ * #getLength(byte[])} long
+ * @return number of bytes in the buffer
+ * @throws IllegalArgumentException if the buffer is too small or the value is corrupt
+ */
+static int decompress(byte[] stored, byte[] buffer) {
+	int length = getLength(stored);
+	if (buffer.length < length) {
+		throw new IllegalArgumentException("Buffer is " + buffer.length + " bytes, needs " + length);
+	}
+
+	if (!hasHeader(stored)) {
+		System.arraycopy(stored, 0, buffer, 0, length);
+		return length;
+	} else if (!isCompressed(stored)) {
+		System.arraycopy(stored, HEADER_SIZE, buffer, 0, length);
+		return length;
+	}
+
+	Inflater inflater = mInflaters.get();
+	try {
+		inflater.setInput(stored, HEADER_SIZE, stored.length - HEADER_SIZE);
+		int inflated = 0;
+		while (inflated < length && !inflater.finished()) {
+			int count = inflater.inflate(buffer, inflated, length - inflated);
+			if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+				break;
+			}
+			inflated += count;
+		}
+		if (inflated != length) {
+			throw new IllegalArgumentException("Compressed value is corrupt, got " + inflated + " of " + length + " bytes");
+		}
+		return length;
+	} catch (DataFormatException e) {
+		throw new IllegalArgumentException("Compressed value is corrupt", e);
+	} finally {
+		inflater.reset();
+	}
+}
+
+/**
+ * Write a big endian int
+ * @param bytes where to write
+ * @param offset where in the array to write
+ * @param value the value to write
+ */
+private static void writeInt(byte[] bytes, int offset, int value) {
+	bytes[offset] = (byte) (value >>> 24);
+	bytes[offset + 1] = (byte) (value >>> 16);
+	bytes[offset + 2] = (byte) (value >>> 8);
+	bytes[offset + 3] = (byte) value;
+}
+
+/**
+ * Read a big endian int
+ * @param bytes where to read from
+ * @param offset where in the array to read
+ * @return the read value
+ */
+private static int readInt(byte[] bytes, int offset) {
+	return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16) | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+}
+}
@@ -0,0 +1,109 @@
+package com.spiddekauga.appengine;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Future;
+
+/**
+ * Iterates over the results of a keys-only query and resolves the entities with batch gets through {@link
+ * DatastoreUtils#getEntitiesAsync(Iterable, DatastoreProfile)}, which serves them from the caches when possible. The
+ * next batch is fetched while the current one is iterated. Entities are returned in the same order
+ * as the query, entities that were deleted after the query was run are skipped.
+ */
+class CachedQueryIterable implements Iterable<Entity> {
+private final Iterable<Entity> mKeysResults;
+private final int mBatchSize;
+/** Profile that was current when the query was created */
+private final DatastoreProfile mProfile = DatastoreProfile.current();
+
+/**
+ * @param keysResults results of a keys-only query
+ * @param batchSize number of keys to get in each batch
+ */
+CachedQueryIterable(Iterable<Entity> keysResults, int batchSize) {
+	mKeysResults = keysResults;
+	mBatchSize = batchSize;
+}
+
+@Override
+public Iterator<Entity> iterator() {
+	return new BatchIterator(mKeysResults.iterator());
+}
+
+/**
+ * Iterates over the keys in batches and resolves each batch of keys
+ */
+private class BatchIterator implements Iterator<Entity> {
+	private final Iterator<Entity> mKeyIterator;
+	private Iterator<Entity> mCurrent = Collections.emptyIterator();
+	private List<Key> mNextKeys = null;
+	private Future<Map<Key, Entity>> mNextBatch = null;
+
+	/**
+	 * @param keyIterator iterator of the keys-only query
+	 */
+	BatchIterator(Iterator<Entity> keyIterator) {
+		mKeyIterator = keyIterator;
+		startNextBatch();
+	}
+
+	/**
+	 * Start getting the entities of the next batch of keys
+	 */
+	private void startNextBatch() {
+		List<Key> keys = new ArrayList<>(mBatchSize);
+		while (keys.size() < mBatchSize && mKeyIterator.hasNext()) {
+			keys.add(mKeyIterator.next().getKey());
+		}
+
+		if (keys.isEmpty()) {
+			mNextKeys = null;
+			mNextBatch = null;
+		} else {
+			mNextKeys = keys;
+			mNextBatch = DatastoreUtils.getEntitiesAsync(keys, mProfile);
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (!mCurrent.hasNext()) {
+			if (mNextBatch == null) {
+				return false;
+			}
+
+			Map<Key, Entity> entities = DatastoreUtils.waitFor(mNextBatch);
+			List<Entity> batch = new ArrayList<>(entities.size());
+			for (Key key : mNextKeys) {
+				Entity entity = entities.get(key);
+				if (entity != null) {
+					batch.add(entity);
+				}
+			}
+			mCurrent = batch.iterator();
+			startNextBatch();
+		}
+		return true;
+	}
+
+	@Override
+	public Entity next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return mCurrent.next();
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+}
+}
@@ -0,0 +1,178 @@
+package com.spiddekauga.appengine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs a batch operation that has been split into several chunks. At most a fixed number of chunks
+ * are in flight at the same time, the next chunk is started as soon as an earlier one has been
+ * waited for. The results of all chunks are merged in the same order as the chunks.
+ * @param <C> type of a chunk
+ * @param <T> result type of a chunk
+ * @param <R> merged result type
+ */
+abstract class ChunkedFuture<C, T, R> implements Future<R> {
+private final List<C> mChunks;
+private final List<Future<T>> mFutures;
+private final List<T> mResults;
+private final int mMaxInFlight;
+private boolean mCancelled = false;
+private boolean mDone = false;
+private R mResult = null;
+
+/**
+ * @param chunks all chunks of the operation
+ * @param maxInFlight maximum number of chunks to run at the same time
+ */
+ChunkedFuture(List<C> chunks, int maxInFlight) {
+	mChunks = chunks;
+	mFutures = new ArrayList<>(chunks.size());
+	mResults = new ArrayList<>(chunks.size());
+	mMaxInFlight = maxInFlight;
+}
+
+/**
+ * Start the first chunks of the operation
+ * @return this future
+ */
+ChunkedFuture<C, T, R> start() {
+	if (mChunks.isEmpty()) {
+		mResult = merge(mResults);
+		mDone = true;
+	}
+	startChunks();
+	return this;
+}
+
+/**
+ * Start an asynchronous operation for a chunk
+ * @param chunk the chunk to start
+ * @return future of the chunk operation
+ */
+protected abstract Future<T> start(C chunk);
+
+/**
+ * Merge the results of all chunks
+ * @param results results of all chunks in the same order as the chunks
+ * @return merged result
+ */
+protected abstract R merge(List<T> results);
+
+/**
+ * Start chunks until the max number of chunks are in flight
+ */
+private void startChunks() {
+	while (mFutures.size() < mChunks.size() && mFutures.size() - mResults.size() < mMaxInFlight) {
+		mFutures.add(start(mChunks.get(mFutures.size())));
+	}
+}
+
+@Override
+public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+	if (mDone || mCancelled) {
+		return false;
+	}
+	mCancelled = true;
+	for (Future<T> future : mFutures) {
+		future.cancel(mayInterruptIfRunning);
+	}
+	return true;
+}
+
+@Override
+public synchronized boolean isCancelled() {
+	return mCancelled;
+}
+
+@Override
+public synchronized boolean isDone() {
+	if (mCancelled) {
+		return true;
+	}
+
+	// Polls every chunk in flight so that they retry and run their hooks even if an earlier chunk
+	// is still running
+	for (int i = mResults.size(); i < mFutures.size(); i++) {
+		mFutures.get(i).isDone();
+	}
+
+	try {
+		while (!mDone && mResults.size() < mFutures.size() && mFutures.get(mResults.size()).isDone()) {
+			// Doesn't block, the chunk is already done
+			int index = mResults.size();
+			collect(index, mFutures.get(index).get());
+		}
+	} catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+	} catch (ExecutionException | CancellationException e) {
+		return true;
+	}
+	return mDone;
+}
+
+@Override
+public R get() throws InterruptedException, ExecutionException {
+	try {
+		return await(0, false);
+	} catch (TimeoutException e) {
+		throw new IllegalStateException(e);
+	}
+}
+
+@Override
+public R get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+	return await(System.nanoTime() + unit.toNanos(timeout), true);
+}
+
+/**
+ * Wait for all chunks and merge their results. Waits without holding the lock so that {@link
+ * #cancel(boolean)} and other callers aren't blocked by the batch.
+ * @param deadline System.nanoTime() when to stop waiting
+ * @param timed true if the deadline should be used
+ * @return merged result
+ */
+private R await(long deadline, boolean timed) throws InterruptedException, ExecutionException, TimeoutException {
+	while (true) {
+		int index;
+		Future<T> future;
+		synchronized (this) {
+			if (mCancelled) {
+				throw new CancellationException();
+			} else if (mDone) {
+				return mResult;
+			}
+			index = mResults.size();
+			future = mFutures.get(index);
+		}
+
+		T result = timed ? future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS) : future.get();
+		synchronized (this) {
+			collect(index, result);
+		}
+	}
+}
+
+/**
+ * Add the result of the next chunk in order and start more chunks
+ * @param index index of the chunk
+ * @param result result of the chunk
+ */
+private void collect(int index, T result) {
+	// Another caller already collected this chunk
+	if (mCancelled || mDone || index != mResults.size()) {
+		return;
+	}
+
+	mResults.add(result);
+	startChunks();
+	if (mResults.size() == mChunks.size()) {
+		mResult = merge(mResults);
+		mDone = true;
+	}
+}
+}
@@ -0,0 +1,44 @@
+package com.spiddekauga.appengine;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Future that already has a result
+ * @param <T> result type
+ */
+class CompletedFuture<T> implements Future<T> {
+private final T mResult;
+
+/**
+ * @param result the result of the future
+ */
+CompletedFuture(T result) {
+	mResult = result;
+}
+
+@Override
+public boolean cancel(boolean mayInterruptIfRunning) {
+	return false;
+}
+
+@Override
+public boolean isCancelled() {
+	return false;
+}
+
+@Override
+public boolean isDone() {
+	return true;
+}
+
+@Override
+public T get() {
+	return mResult;
+}
+
+@Override
+public T get(long timeout, TimeUnit unit) {
+	return mResult;
+}
+}
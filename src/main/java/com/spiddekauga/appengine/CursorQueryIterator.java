@@ -0,0 +1,158 @@
+package com.spiddekauga.appengine;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Streams the results of a query in batches. The next batch is fetched in the background while
+ * the current batch is iterated. After each batch the cursor can be stored to resume the query
+ * later, e.g. when a job is restarted.
+ * <p>
+ * Create with {@link DatastoreUtils#getEntityStream(Query, int, int, int, Cursor)}.
+ * </p>
+ */
+public class CursorQueryIterator implements Iterator<Entity>, Iterable<Entity> {
+/** No limit of the number of entities */
+public static final int NO_LIMIT = -1;
+private final PreparedQuery mPreparedQuery;
+private final int mChunkSize;
+private final int mLimit;
+private int mFetched = 0;
+private int mReturned = 0;
+private int mBatchCount = 0;
+/** Cursor at the start of the current batch */
+private Cursor mBatchStartCursor;
+/** Cursor at the end of the current batch */
+private Cursor mBatchEndCursor = null;
+private Iterator<Entity> mCurrent = null;
+private QueryResultList<Entity> mNextBatch = null;
+private int mNextBatchSize = 0;
+
+/**
+ * @param preparedQuery query prepared by the async datastore service
+ * @param chunkSize number of entities in each batch
+ * @param prefetchSize number of entities in the first batch
+ * @param limit maximum number of entities to return, {@link #NO_LIMIT} to return all
+ * @param startCursor where to start the query, null to start from the beginning
+ */
+CursorQueryIterator(PreparedQuery preparedQuery, int chunkSize, int prefetchSize, int limit, Cursor startCursor) {
+	if (chunkSize < 1 || prefetchSize < 1) {
+		throw new IllegalArgumentException("chunkSize and prefetchSize need to be at least 1");
+	}
+	mPreparedQuery = preparedQuery;
+	mChunkSize = chunkSize;
+	mLimit = limit;
+	mBatchStartCursor = startCursor;
+	startBatch(startCursor, prefetchSize);
+}
+
+/**
+ * Start fetching a batch in the background
+ * @param cursor where the batch starts
+ * @param size number of entities in the batch
+ */
+private void startBatch(Cursor cursor, int size) {
+	if (mLimit != NO_LIMIT) {
+		size = Math.min(size, mLimit - mFetched);
+	}
+
+	if (size <= 0) {
+		mNextBatch = null;
+		return;
+	}
+
+	FetchOptions fetchOptions = FetchOptions.Builder.withLimit(size).chunkSize(size).prefetchSize(size);
+	if (cursor != null) {
+		fetchOptions.startCursor(cursor);
+	}
+	mNextBatch = mPreparedQuery.asQueryResultList(fetchOptions);
+	mNextBatchSize = size;
+	mFetched += size;
+}
+
+@Override
+public boolean hasNext() {
+	while (mCurrent == null || !mCurrent.hasNext()) {
+		if (mNextBatch == null) {
+			return false;
+		}
+
+		QueryResultList<Entity> batch = mNextBatch;
+		if (mCurrent != null) {
+			mBatchStartCursor = mBatchEndCursor;
+		}
+		mBatchEndCursor = batch.getCursor();
+		mCurrent = batch.iterator();
+		mBatchCount++;
+
+		// Fewer results than requested -> no more results
+		if (batch.size() < mNextBatchSize) {
+			mNextBatch = null;
+		} else {
+			startBatch(mBatchEndCursor, mChunkSize);
+		}
+	}
+	return true;
+}
+
+/**
+ * Get a cursor to resume the query from. When all entities of the current batch have been
+ * returned it points after the batch, otherwise it points to the start of the current batch so
+ * that a resumed query returns the rest of the batch again.
+ * @return cursor to resume the query from, null if no batch has been fetched and no start cursor
+ * was given
+ */
+public Cursor getCursor() {
+	if (mCurrent != null && !mCurrent.hasNext()) {
+		return mBatchEndCursor;
+	}
+	return mBatchStartCursor;
+}
+
+/**
+ * @return true if all entities of the current batch have been returned
+ */
+public boolean isBatchComplete() {
+	return mCurrent != null && !mCurrent.hasNext();
+}
+
+/**
+ * @return number of batches that have been fetched
+ */
+public int getBatchCount() {
+	return mBatchCount;
+}
+
+/**
+ * @return number of entities that have been returned
+ */
+public int getReturnedCount() {
+	return mReturned;
+}
+
+@Override
+public Entity next() {
+	if (!hasNext()) {
+		throw new NoSuchElementException();
+	}
+	mReturned++;
+	return mCurrent.next();
+}
+
+@Override
+public void remove() {
+	throw new UnsupportedOperationException();
+}
+
+@Override
+public Iterator<Entity> iterator() {
+	return this;
+}
+}
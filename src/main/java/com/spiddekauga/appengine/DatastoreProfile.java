@@ -0,0 +1,177 @@
+package com.spiddekauga.appengine;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceConfig;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.ReadPolicy;
+import com.google.appengine.api.datastore.ReadPolicy.Consistency;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Named datastore service configuration, e.g. "eventually consistent reads with a 2 s deadline" for
+ * feeds and "strong reads with a 10 s deadline" for checkout. {@link DatastoreUtils} uses the
+ * profile of the current block, set with {@link #use()}, or the default profile.
+ * <pre>
+ * DatastoreProfile.register("feed", Consistency.EVENTUAL, 2);
+ * try (DatastoreProfile.Scope scope = DatastoreProfile.get("feed").use()) {
+ * 	DatastoreUtils.getEntities(query);
+ * }
+ * </pre>
+ * Some reads also take the profile as an argument. Asynchronous operations use the profile that was
+ * current when they were started, also for retries and later batches. Reads with eventual
+ * consistency are not added to {@link EntityMemcache}.
+ */
+public class DatastoreProfile {
+/** Default service configuration, strong reads and the default deadline */
+public static final DatastoreProfile DEFAULT = new DatastoreProfile("default", DatastoreServiceConfig.Builder.withDefaults());
+private static final ConcurrentMap<String, DatastoreProfile> mProfiles = new ConcurrentHashMap<>();
+private static final ThreadLocal<DatastoreProfile> mCurrent = new ThreadLocal<>();
+private static volatile DatastoreProfile mDefault = DEFAULT;
+private final String mName;
+private final DatastoreService mDatastore;
+private final AsyncDatastoreService mAsyncDatastore;
+private final boolean mEventual;
+
+static {
+	mProfiles.put(DEFAULT.getName(), DEFAULT);
+}
+
+/**
+ * Create the services of a profile. Later changes to the config don't affect the profile.
+ * @param name name of the profile
+ * @param config configuration of the datastore services
+ */
+private DatastoreProfile(String name, DatastoreServiceConfig config) {
+	mName = name;
+	mDatastore = DatastoreServiceFactory.getDatastoreService(config);
+	mAsyncDatastore = DatastoreServiceFactory.getAsyncDatastoreService(config);
+	mEventual = config.getReadPolicy().getConsistency() == Consistency.EVENTUAL;
+}
+
+/**
+ * Register a profile. Replaces any earlier profile with the same name.
+ * @param name name of the profile
+ * @param config configuration of the datastore services
+ * @return the new profile
+ */
+public static DatastoreProfile register(String name, DatastoreServiceConfig config) {
+	DatastoreProfile profile = new DatastoreProfile(name, config);
+	mProfiles.put(name, profile);
+	return profile;
+}
+
+/**
+ * Register a profile with a read policy and deadline
+ * @param name name of the profile
+ * @param consistency consistency of reads
+ * @param deadlineSeconds deadline of each datastore call
+ * @return the new profile
+ */
+public static DatastoreProfile register(String name, Consistency consistency, double deadlineSeconds) {
+	return register(name, DatastoreServiceConfig.Builder.withReadPolicy(new ReadPolicy(consistency)).deadline(deadlineSeconds));
+}
+
+/**
+ * Get a registered profile
+ * @param name name of the profile
+ * @return the profile with the name
+ * @throws IllegalArgumentException if no profile with the name has been registered
+ */
+public static DatastoreProfile get(String name) {
+	DatastoreProfile profile = mProfiles.get(name);
+	if (profile == null) {
+		throw new IllegalArgumentException("No datastore profile named '" + name + "' has been registered");
+	}
+	return profile;
+}
+
+/**
+ * Set the profile used outside of {@link #use()} blocks
+ * @param profile the default profile, {@link #DEFAULT} to reset it
+ */
+public static void setDefault(DatastoreProfile profile) {
+	if (profile == null) {
+		throw new IllegalArgumentException("profile can't be null");
+	}
+	mDefault = profile;
+}
+
+/**
+ * @return profile of the current block, or the default profile
+ */
+public static DatastoreProfile current() {
+	DatastoreProfile profile = mCurrent.get();
+	return profile != null ? profile : mDefault;
+}
+
+/**
+ * Use this profile on the current thread until the scope is closed. Scopes can be nested.
+ * @return scope to close when the block ends, restores the previous profile
+ */
+public Scope use() {
+	Scope scope = new Scope(mCurrent.get());
+	mCurrent.set(this);
+	return scope;
+}
+
+/**
+ * @return name of the profile
+ */
+public String getName() {
+	return mName;
+}
+
+/**
+ * @return true if reads are eventually consistent
+ */
+public boolean isEventual() {
+	return mEventual;
+}
+
+/**
+ * @return synchronous datastore service of the profile
+ */
+DatastoreService getDatastore() {
+	return mDatastore;
+}
+
+/**
+ * @return asynchronous datastore service of the profile
+ */
+AsyncDatastoreService getAsyncDatastore() {
+	return mAsyncDatastore;
+}
+
+/**
+ * Block that uses a profile, restores the previous profile when closed
+ */
+public static class Scope implements AutoCloseable {
+	private final DatastoreProfile mPrevious;
+	private boolean mClosed = false;
+
+	/**
+	 * @param previous profile of the enclosing block, null if none
+	 */
+	private Scope(DatastoreProfile previous) {
+		mPrevious = previous;
+	}
+
+	/**
+	 * Restore the profile of the enclosing block
+	 */
+	@Override
+	public void close() {
+		if (!mClosed) {
+			mClosed = true;
+			if (mPrevious != null) {
+				mCurrent.set(mPrevious);
+			} else {
+				mCurrent.remove();
+			}
+		}
+	}
+}
+}
@@ -1,17 +1,21 @@
 package com.spiddekauga.appengine;
 
 
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
 import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreFailureException;
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.EntityTranslator;
 import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.PreparedQuery;
 import com.google.appengine.api.datastore.PreparedQuery.TooManyResultsException;
+import com.google.appengine.api.datastore.Projection;
 import com.google.appengine.api.datastore.PropertyProjection;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.CompositeFilter;
@@ -19,17 +23,24 @@ import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
 import com.google.appengine.api.datastore.Query.Filter;
 import com.google.appengine.api.datastore.Query.FilterOperator;
 import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortPredicate;
+import com.google.appengine.api.datastore.RawValue;
 import com.google.appengine.api.datastore.ShortBlob;
+import com.google.appengine.api.datastore.Text;
 import com.spiddekauga.utils.IIdStore;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 /**
@@ -39,79 +50,522 @@ public class DatastoreUtils {
 private static final Logger mLogger = Logger.getLogger(DatastoreUtils.class.getName());
 /** Short blob maximum size */
 private static final int SHORT_BLOB_MAX_SIZE = 500;
-private static DatastoreService mDatastore = DatastoreServiceFactory.getDatastoreService();
+/** Size of a UUID in the binary format */
+private static final int UUID_BYTES = 16;
+/** Maximum number of entities in a put call */
+static final int PUT_LIMIT = 500;
+/** Maximum number of keys in a delete call */
+static final int DELETE_LIMIT = 500;
+/** Maximum number of keys in a get call */
+private static final int GET_LIMIT = 1000;
+/** Maximum encoded size of all entities in a put call */
+private static final int PUT_BYTES_LIMIT = 10 * 1024 * 1024;
+/** Maximum size of an entity */
+private static final int ENTITY_BYTES_MAX = 1024 * 1024;
+/** Maximum number of chunks of a batch call that are run at the same time */
+private static final int CHUNKS_IN_FLIGHT_MAX = 10;
+/** Number of keys to get in each batch when using {@link QueryMode#KEYS_THEN_GET} */
+private static final int KEYS_THEN_GET_BATCH_SIZE = 100;
+private static volatile RetryPolicy mRetryPolicy = RetryPolicy.DEFAULT;
+private static volatile UuidFormat mUuidFormat = UuidFormat.STRING;
+private static volatile boolean mCompressByteArrays = false;
+
+/**
+ * Set how get, put and delete retry concurrent modifications
+ * @param retryPolicy the retry policy to use
+ */
+public static void setRetryPolicy(RetryPolicy retryPolicy) {
+	if (retryPolicy == null) {
+		throw new IllegalArgumentException("retryPolicy can't be null");
+	}
+	mRetryPolicy = retryPolicy;
+}
+
+/**
+ * @return how get, put and delete retry concurrent modifications
+ */
+public static RetryPolicy getRetryPolicy() {
+	return mRetryPolicy;
+}
+
+/**
+ * Set how UUID properties are stored, filtered and projected. {@link #getPropertyUuid(Entity,
+ * String)} reads both formats regardless of this setting.
+ * @param uuidFormat how to store UUIDs
+ */
+public static void setUuidFormat(UuidFormat uuidFormat) {
+	if (uuidFormat == null) {
+		throw new IllegalArgumentException("uuidFormat can't be null");
+	}
+	mUuidFormat = uuidFormat;
+}
+
+/**
+ * @return how UUID properties are stored, filtered and projected
+ */
+public static UuidFormat getUuidFormat() {
+	return mUuidFormat;
+}
+
+/**
+ * Set if byte array properties are compressed when they're set. Compressed values are only stored
+ * if they're smaller. Both compressed and uncompressed values are always readable.
+ * @param compress true to compress byte array properties
+ */
+public static void setCompressByteArrays(boolean compress) {
+	mCompressByteArrays = compress;
+}
+
+/**
+ * @return true if byte array properties are compressed when they're set
+ */
+public static boolean isCompressByteArrays() {
+	return mCompressByteArrays;
+}
 
 /**
  * Deletes the specified keys
  * @param keys deletes all the specified keys
+ * @throws RetryPolicy.RetriesExhaustedException if the retry policy gave up
  */
 public static void delete(Key... keys) {
-	Exception exception;
-	do {
-		exception = null;
-		try {
-			mDatastore.delete(keys);
-		} catch (ConcurrentModificationException e) {
-			exception = e;
-		}
-	} while (exception != null);
+	delete(Arrays.asList(keys));
+}
+
+/**
+ * Asynchronously deletes the specified keys. Retries concurrent modifications as specified by
+ * the retry policy. The delete is completed and the caches are updated by {@link #completeAsync()}
+ * if the future isn't waited for.
+ * @param keys deletes all the specified keys
+ * @return future that is done when all keys have been deleted
+ */
+public static Future<Void> deleteAsync(Key... keys) {
+	return deleteAsync(Arrays.asList(keys));
 }
 
 /**
  * Deletes the specified keys
  * @param keys deletes all the specified keys
+ * @throws RetryPolicy.RetriesExhaustedException if the retry policy gave up
  */
 public static void delete(Iterable<Key> keys) {
-	Exception exception;
-	do {
-		exception = null;
-		try {
-			mDatastore.delete(keys);
-		} catch (ConcurrentModificationException e) {
-			exception = e;
+	waitFor(startDelete(keys));
+	FutureCompleter.runDeferred();
+}
+
+/**
+ * Asynchronously deletes the specified keys. Retries concurrent modifications as specified by
+ * the retry policy. Large batches are split into several calls, at most 10 of them run at the
+ * same time. The delete is completed and the caches are updated by {@link #completeAsync()} if the
+ * future isn't waited for.
+ * @param keys deletes all the specified keys
+ * @return future that is done when all keys have been deleted
+ */
+public static Future<Void> deleteAsync(Iterable<Key> keys) {
+	return FutureCompleter.complete(startDelete(keys));
+}
+
+/**
+ * Start deleting keys without completing the delete at the end of the request
+ * @param keys deletes all the specified keys
+ * @return future that has to be polled or waited for to retry and update the caches
+ */
+static Future<Void> startDelete(Iterable<Key> keys) {
+	final DatastoreProfile profile = DatastoreProfile.current();
+	List<List<Key>> chunks = split(keys, DELETE_LIMIT);
+	if (chunks.size() == 1) {
+		return deleteChunkAsync(profile, chunks.get(0));
+	}
+
+	return new ChunkedFuture<List<Key>, Void, Void>(chunks, CHUNKS_IN_FLIGHT_MAX) {
+		@Override
+		protected Future<Void> start(List<Key> chunk) {
+			return deleteChunkAsync(profile, chunk);
+		}
+
+		@Override
+		protected Void merge(List<Void> results) {
+			return null;
+		}
+	}.start();
+}
+
+/**
+ * Asynchronously delete keys that fit in one call
+ * @param profile datastore profile to delete with
+ * @param keys the keys to delete
+ * @return future that is done when all keys have been deleted
+ */
+private static Future<Void> deleteChunkAsync(DatastoreProfile profile, final List<Key> keys) {
+	final AsyncDatastoreService datastore = profile.getAsyncDatastore();
+	final RequestCache requestCache = RequestCache.current();
+	final EntityCounts.CountChange countChange = EntityCounts.getDeleteChange(keys);
+	return new RetryFuture<Void>(mRetryPolicy) {
+		@Override
+		protected Future<Void> call() {
+			return datastore.delete(keys);
+		}
+
+		@Override
+		protected Void onSuccess(Void result) {
+			onDeleted(requestCache, keys);
+			if (countChange != null) {
+				countChange.apply();
+			}
+			return result;
 		}
-	} while (exception != null);
+	}.startAfter(countChange != null ? countChange.getExisting() : null);
+}
+
+/**
+ * Run work in a single entity group transaction. Conflicts are retried as specified by the retry
+ * policy and the transaction is rolled back if the work fails.
+ * @param work the work to run, can be run several times
+ * @param <T> result type of the work
+ * @return result of the work from the attempt that committed
+ * @throws RetryPolicy.RetriesExhaustedException if the commit conflicted on every attempt
+ * @see TransactionRunner
+ */
+public static <T> T runInTransaction(TransactionRunner.Work<T> work) {
+	return TransactionRunner.run(work);
+}
+
+/**
+ * Run work in a transaction. Conflicts are retried as specified by the retry policy and the
+ * transaction is rolled back if the work fails.
+ * @param mode single entity group, cross-group or read-only transaction
+ * @param work the work to run, can be run several times
+ * @param <T> result type of the work
+ * @return result of the work from the attempt that committed
+ * @throws RetryPolicy.RetriesExhaustedException if the commit conflicted on every attempt
+ * @see TransactionRunner
+ */
+public static <T> T runInTransaction(TransactionRunner.Mode mode, TransactionRunner.Work<T> work) {
+	return TransactionRunner.run(mode, mRetryPolicy, work);
 }
 
 /**
  * Puts an entity to the datastore. This checks for concurrent modifications
  * @param entity the entity to put to the datastore
  * @return key of the entity if put was successful, null otherwise
+ * @throws RetryPolicy.RetriesExhaustedException if the retry policy gave up
  */
 public static Key put(Entity entity) {
-	Exception exception;
-	Key key = null;
-	do {
-		exception = null;
-		try {
-			key = mDatastore.put(entity);
-		} catch (ConcurrentModificationException e) {
-			exception = e;
+	Key key = waitFor(startPut(entity));
+	FutureCompleter.runDeferred();
+	return key;
+}
+
+/**
+ * Asynchronously puts an entity to the datastore. Retries concurrent modifications as specified by
+ * the retry policy. The put is completed and the caches are updated by {@link #completeAsync()} if
+ * the future isn't waited for.
+ * @param entity the entity to put to the datastore
+ * @return future with the key of the entity
+ */
+public static Future<Key> putAsync(Entity entity) {
+	return FutureCompleter.complete(startPut(entity));
+}
+
+/**
+ * Start putting an entity without completing the put at the end of the request
+ * @param entity the entity to put to the datastore
+ * @return future that has to be polled or waited for to retry and update the caches
+ */
+private static Future<Key> startPut(final Entity entity) {
+	DatastoreProfile profile = DatastoreProfile.current();
+	final AsyncDatastoreService datastore = profile.getAsyncDatastore();
+	final RequestCache requestCache = RequestCache.current();
+	final EntityCounts.CountChange countChange = EntityCounts.getPutChange(Collections.singletonList(entity));
+	final Future<?> largeValuesPut = putLargeValuesAsync(profile, Collections.singletonList(entity));
+	return new RetryFuture<Key>(mRetryPolicy) {
+		@Override
+		protected Future<Key> call() {
+			checkLargeValuesPut(largeValuesPut);
+			return datastore.put(entity);
 		}
-	} while (exception != null);
 
-	return key;
+		@Override
+		protected Key onSuccess(Key result) {
+			onPut(requestCache, Collections.singletonList(entity));
+			if (countChange != null) {
+				countChange.apply();
+			}
+			return result;
+		}
+	}.startAfter(countChange != null ? countChange.getExisting() : null, largeValuesPut);
 }
 
 /**
  * Puts several entities to the datastore. This checks for concurrent modifications
  * @param entities iteratable object with all entities to put in the datastore
  * @return list of all keys that was put
+ * @throws RetryPolicy.RetriesExhaustedException if the retry policy gave up
  */
 public static List<Key> put(Iterable<Entity> entities) {
-	Exception exception;
-	List<Key> keys = null;
-	do {
-		exception = null;
-		try {
-			keys = mDatastore.put(entities);
-		} catch (ConcurrentModificationException e) {
-			exception = e;
-		}
-	} while (exception != null);
+	List<Key> keys = waitFor(startPut(entities));
+	FutureCompleter.runDeferred();
 	return keys;
 }
 
+/**
+ * Asynchronously puts several entities to the datastore. Retries concurrent modifications as specified by
+ * the retry policy. Large batches are split into several calls, at most 10 of them run at the
+ * same time. The put is completed and the caches are updated by {@link #completeAsync()} if the
+ * future isn't waited for.
+ * @param entities iteratable object with all entities to put in the datastore
+ * @return future with a list of all keys that was put, in the same order as the entities
+ */
+public static Future<List<Key>> putAsync(Iterable<Entity> entities) {
+	return FutureCompleter.complete(startPut(entities));
+}
+
+/**
+ * Start putting entities without completing the put at the end of the request
+ * @param entities all entities to put in the datastore
+ * @return future that has to be polled or waited for to retry and update the caches
+ */
+static Future<List<Key>> startPut(Iterable<Entity> entities) {
+	final DatastoreProfile profile = DatastoreProfile.current();
+	List<List<Entity>> chunks = splitEntities(entities);
+	if (chunks.size() == 1) {
+		return putChunkAsync(profile, chunks.get(0));
+	}
+
+	return new ChunkedFuture<List<Entity>, List<Key>, List<Key>>(chunks, CHUNKS_IN_FLIGHT_MAX) {
+		@Override
+		protected Future<List<Key>> start(List<Entity> chunk) {
+			return putChunkAsync(profile, chunk);
+		}
+
+		@Override
+		protected List<Key> merge(List<List<Key>> results) {
+			List<Key> keys = new ArrayList<>();
+			for (List<Key> chunkKeys : results) {
+				keys.addAll(chunkKeys);
+			}
+			return keys;
+		}
+	}.start();
+}
+
+/**
+ * Asynchronously put entities that fit in one call
+ * @param profile datastore profile to put with
+ * @param entities the entities to put
+ * @return future with a list of all keys that was put
+ */
+private static Future<List<Key>> putChunkAsync(DatastoreProfile profile, final List<Entity> entities) {
+	final AsyncDatastoreService datastore = profile.getAsyncDatastore();
+	final RequestCache requestCache = RequestCache.current();
+	final EntityCounts.CountChange countChange = EntityCounts.getPutChange(entities);
+	final Future<?> largeValuesPut = putLargeValuesAsync(profile, entities);
+	return new RetryFuture<List<Key>>(mRetryPolicy) {
+		@Override
+		protected Future<List<Key>> call() {
+			checkLargeValuesPut(largeValuesPut);
+			return datastore.put(entities);
+		}
+
+		@Override
+		protected List<Key> onSuccess(List<Key> result) {
+			onPut(requestCache, entities);
+			if (countChange != null) {
+				countChange.apply();
+			}
+			return result;
+		}
+	}.startAfter(countChange != null ? countChange.getExisting() : null, largeValuesPut);
+}
+
+/**
+ * Start putting the chunks of large values in entities that haven't been put yet. The chunks
+ * aren't cached and the put doesn't run any hooks.
+ * @param profile datastore profile to put with
+ * @param entities the entities that will be put
+ * @return future of the put, null if there aren't any chunks to put
+ * @see LargeProperties
+ */
+private static Future<?> putLargeValuesAsync(DatastoreProfile profile, List<Entity> entities) {
+	List<Entity> chunks = LargeProperties.getUnputChunks(entities);
+	if (chunks.isEmpty()) {
+		return null;
+	}
+
+	final AsyncDatastoreService datastore = profile.getAsyncDatastore();
+	return new ChunkedFuture<List<Entity>, List<Key>, Void>(splitEntities(chunks), CHUNKS_IN_FLIGHT_MAX) {
+		@Override
+		protected Future<List<Key>> start(final List<Entity> chunk) {
+			return new RetryFuture<List<Key>>(mRetryPolicy) {
+				@Override
+				protected Future<List<Key>> call() {
+					return datastore.put(chunk);
+				}
+			}.start();
+		}
+
+		@Override
+		protected Void merge(List<List<Key>> results) {
+			return null;
+		}
+	}.start();
+}
+
+/**
+ * Fail the put of the owners if the chunks of their large values couldn't be put. Doesn't block,
+ * the owners are put after the chunks.
+ * @param largeValuesPut future of the put of the chunks, may be null
+ */
+private static void checkLargeValuesPut(Future<?> largeValuesPut) {
+	if (largeValuesPut != null) {
+		waitFor(largeValuesPut);
+	}
+}
+
+/**
+ * Called after entities have been put to update the caches and delete unreferenced chunks
+ * @param requestCache cache of the request that put the entities, may be null
+ * @param entities all entities that were put
+ */
+static void onPut(RequestCache requestCache, List<Entity> entities) {
+	List<Key> keys = new ArrayList<>(entities.size());
+	for (Entity entity : entities) {
+		keys.add(entity.getKey());
+		if (requestCache != null) {
+			requestCache.put(entity.getKey(), entity);
+		}
+	}
+	EntityMemcache.invalidateAll(keys);
+	SingleFlight.onWritten(keys);
+	LargeProperties.onPut(entities);
+}
+
+/**
+ * Called after keys have been deleted to invalidate the caches and delete their chunks
+ * @param requestCache cache of the request that deleted the keys, may be null
+ * @param keys all keys that were deleted
+ */
+static void onDeleted(RequestCache requestCache, List<Key> keys) {
+	if (requestCache != null) {
+		for (Key key : keys) {
+			requestCache.remove(key);
+		}
+	}
+	EntityMemcache.invalidateAll(keys);
+	SingleFlight.onWritten(keys);
+	LargeProperties.onDeleted(keys);
+}
+
+/**
+ * @return synchronous datastore service of the current profile
+ */
+private static DatastoreService getDatastore() {
+	return DatastoreProfile.current().getDatastore();
+}
+
+/**
+ * @return asynchronous datastore service of the current profile
+ */
+private static AsyncDatastoreService getAsyncDatastore() {
+	return DatastoreProfile.current().getAsyncDatastore();
+}
+
+/**
+ * Split entities into chunks that fit in one put call
+ * @param entities all entities to split
+ * @return entities split into chunks, limited both by the number of entities and their size
+ */
+private static List<List<Entity>> splitEntities(Iterable<Entity> entities) {
+	List<Entity> entityList = new ArrayList<>();
+	for (Entity entity : entities) {
+		entityList.add(entity);
+	}
+	// Fits in one call whatever the size of the entities, no need to calculate their sizes
+	if ((long) entityList.size() * ENTITY_BYTES_MAX <= PUT_BYTES_LIMIT) {
+		return Collections.singletonList(entityList);
+	}
+
+	List<List<Entity>> chunks = new ArrayList<>();
+	List<Entity> chunk = new ArrayList<>();
+	int chunkBytes = 0;
+
+	for (Entity entity : entityList) {
+		int entityBytes = EntityTranslator.convertToPb(entity).encodingSize();
+		if (!chunk.isEmpty() && (chunk.size() >= PUT_LIMIT || chunkBytes + entityBytes > PUT_BYTES_LIMIT)) {
+			chunks.add(chunk);
+			chunk = new ArrayList<>();
+			chunkBytes = 0;
+		}
+		chunk.add(entity);
+		chunkBytes += entityBytes;
+	}
+
+	if (!chunk.isEmpty() || chunks.isEmpty()) {
+		chunks.add(chunk);
+	}
+	return chunks;
+}
+
+/**
+ * Split elements into chunks
+ * @param elements all elements to split
+ * @param chunkSize maximum number of elements in a chunk
+ * @param <T> element type
+ * @return elements split into chunks, always contains at least one chunk
+ */
+private static <T> List<List<T>> split(Iterable<T> elements, int chunkSize) {
+	List<List<T>> chunks = new ArrayList<>();
+	List<T> chunk = new ArrayList<>();
+
+	for (T element : elements) {
+		if (chunk.size() >= chunkSize) {
+			chunks.add(chunk);
+			chunk = new ArrayList<>();
+		}
+		chunk.add(element);
+	}
+
+	if (!chunk.isEmpty() || chunks.isEmpty()) {
+		chunks.add(chunk);
+	}
+	return chunks;
+}
+
+/**
+ * Complete all asynchronous writes and hedged reads that the current thread has started and not
+ * waited for. Retries, chunks and cache updates of asynchronous operations only run while they're
+ * waited for, call this at the end of the request or add {@link
+ * com.spiddekauga.servlet.RequestCacheFilter} to the application. Failures are logged.
+ */
+public static void completeAsync() {
+	FutureCompleter.completeAll();
+}
+
+/**
+ * Wait for an asynchronous datastore operation to finish. Unwraps the exception the operation
+ * failed with.
+ * @param future the operation to wait for
+ * @param <T> result type of the operation
+ * @return result of the operation
+ */
+static <T> T waitFor(Future<T> future) {
+	try {
+		return future.get();
+	} catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		throw new DatastoreFailureException("Interrupted while waiting for the datastore", e);
+	} catch (ExecutionException e) {
+		Throwable cause = e.getCause();
+		if (cause instanceof RuntimeException) {
+			throw (RuntimeException) cause;
+		} else if (cause instanceof Error) {
+			throw (Error) cause;
+		} else {
+			throw new DatastoreFailureException(String.valueOf(cause), cause);
+		}
+	}
+}
+
 /**
  * Get all keys with the specified properties
  * @param searchIn what kind of entity (table) to search in
@@ -143,7 +597,7 @@ public static List<Key> getKeys(String searchIn, Key parent, FilterWrapper... fi
 	setFilterProperties(query, filters);
 
 
-	PreparedQuery preparedQuery = mDatastore.prepare(query);
+	PreparedQuery preparedQuery = getDatastore().prepare(query);
 
 	ArrayList<Key> keys = new ArrayList<>();
 	for (Entity entity : preparedQuery.asIterable()) {
@@ -197,13 +651,20 @@ public static Filter createCompositeFilter(CompositeFilterOperator operator, Fil
 }
 
 /**
- * Creates an equal UUID search filter
+ * Creates an equal UUID search filter. Matches both the string and binary format when the UUID
+ * format is {@link UuidFormat#BINARY_MIGRATING}.
  * @param propertyName property name in the entity (column)
  * @param value the value to search for
  * @return equal filter for the UUID value
  */
 public static Filter createUuidFilter(String propertyName, UUID value) {
-	return new FilterPredicate(propertyName, FilterOperator.EQUAL, value.toString());
+	if (mUuidFormat == UuidFormat.BINARY_MIGRATING) {
+		List<Object> values = new ArrayList<>(2);
+		values.add(value.toString());
+		values.add(toUuidBlob(value));
+		return new FilterPredicate(propertyName, FilterOperator.IN, values);
+	}
+	return new FilterPredicate(propertyName, FilterOperator.EQUAL, toUuidProperty(value));
 }
 
 /**
@@ -254,10 +715,161 @@ public static Query createQuery(String searchIn, Key parent, FilterWrapper... fi
  * @return an iterable of all found entities with the specified parent
  */
 public static Iterable<Entity> getEntities(Query query) {
-	PreparedQuery preparedQuery = mDatastore.prepare(query);
+	return getEntities(query, QueryMode.ENTITIES);
+}
+
+/**
+ * Get the keys of all entities of a kind that have any of the specified ancestors. Runs one
+ * keys-only query per ancestor concurrently.
+ * @param searchIn what kind of entity (table) to search in
+ * @param ancestors search for all entities with any of these ancestors
+ * @return keys of all found entities, including entities further down than the direct children
+ */
+static Iterable<Key> getKeysOfParents(String searchIn, Collection<Key> ancestors) {
+	Query query = new Query(searchIn).setKeysOnly();
+	Iterable<Entity> entities = getEntities(query, ancestors, QueryMode.ENTITIES);
+	List<Key> keys = new ArrayList<>();
+	for (Entity entity : entities) {
+		keys.add(entity.getKey());
+	}
+	return keys;
+}
+
+/**
+ * Get all entities from a query. Queries with IN or OR filters are split into sub-queries that are
+ * run concurrently, their results are merged in the sort order of the query, or in key order if it
+ * isn't sorted, and each entity is only returned once. Other queries of kinds with {@link SingleFlight} enabled share one call with
+ * concurrent equal queries.
+ * @param query search query
+ * @param mode how to run the query
+ * @return an iterable of all found entities with the specified parent
+ * @throws IllegalArgumentException if the query would be split into more than 1000 sub-queries
+ */
+public static Iterable<Entity> getEntities(Query query, QueryMode mode) {
+	return getEntities(query, null, mode);
+}
+
+/**
+ * Get all entities from a query using a datastore profile
+ * @param query search query
+ * @param profile datastore profile to read with, e.g. with eventual consistency or a short
+ * deadline
+ * @return an iterable of all found entities
+ * @see #getEntities(Query)
+ */
+public static Iterable<Entity> getEntities(Query query, DatastoreProfile profile) {
+	try (DatastoreProfile.Scope scope = profile.use()) {
+		return getEntities(query);
+	}
+}
+
+/**
+ * Get all entities with any of the specified parents and properties. Runs one query per parent
+ * concurrently.
+ * @param searchIn what kind of entity (table) to search in
+ * @param parents search for all entities with any of these parents
+ * @param filters all properties to search for
+ * @return an iterable of all found entities with any of the specified parents
+ * @throws IllegalArgumentException if the parents and filters need more than 1000 queries
+ */
+public static Iterable<Entity> getEntitiesOfParents(String searchIn, Collection<Key> parents, FilterWrapper... filters) {
+	Query query = createQuery(searchIn, filters);
+	return getEntities(query, parents, QueryMode.ENTITIES);
+}
+
+/**
+ * Get all entities from a query. Queries with IN or OR filters are split into sub-queries that are
+ * run concurrently.
+ * @param query search query
+ * @param ancestors run the query for each of these ancestors, null to use the ancestor of the query
+ * @param mode how to run the query
+ * @return an iterable of all found entities
+ */
+private static Iterable<Entity> getEntities(Query query, Collection<Key> ancestors, QueryMode mode) {
+	if (mode == QueryMode.KEYS_THEN_GET && !query.isKeysOnly() && query.getProjections().isEmpty()) {
+		Query keysQuery = copyQuery(query);
+		keysQuery.setKeysOnly();
+		Iterable<Entity> keysResults;
+		if (ancestors != null || FanOutQueryIterable.isSplittable(keysQuery)) {
+			keysResults = fanOut(keysQuery, ancestors);
+		} else {
+			keysResults = getDatastore().prepare(keysQuery).asIterable(FetchOptions.Builder.withChunkSize(KEYS_THEN_GET_BATCH_SIZE).prefetchSize(KEYS_THEN_GET_BATCH_SIZE));
+		}
+		return new CachedQueryIterable(keysResults, KEYS_THEN_GET_BATCH_SIZE);
+	}
+
+	if (ancestors != null || FanOutQueryIterable.isSplittable(query)) {
+		return fanOut(query, ancestors);
+	}
+
+	if (SingleFlight.isEnabled(query.getKind())) {
+		return SingleFlight.getEntities(DatastoreProfile.current(), query);
+	}
+
+	PreparedQuery preparedQuery = getDatastore().prepare(query);
 	return preparedQuery.asIterable();
 }
 
+/**
+ * Split a query into sub-queries without IN and OR filters, one set for each ancestor
+ * @param query the query to split
+ * @param ancestors run the query for each of these ancestors, null to use the ancestor of the query
+ * @return iterable that runs the sub-queries concurrently and merges their results
+ */
+private static Iterable<Entity> fanOut(Query query, Collection<Key> ancestors) {
+	List<PreparedQuery> preparedQueries = new ArrayList<>();
+	for (Query subQuery : FanOutQueryIterable.split(query, ancestors)) {
+		preparedQueries.add(getAsyncDatastore().prepare(subQuery));
+	}
+	return new FanOutQueryIterable(preparedQueries, query.getSortPredicates());
+}
+
+/**
+ * Stream the entities of a query in batches. The next batch is fetched in the background while the
+ * current batch is iterated and the cursor is available after each batch.
+ * @param query search query
+ * @param chunkSize number of entities in each batch
+ * @param prefetchSize number of entities in the first batch
+ * @param limit maximum number of entities to return, {@link CursorQueryIterator#NO_LIMIT} to return
+ * all
+ * @param startCursor where to start the query, null to start from the beginning
+ * @return iterator over the query results
+ */
+public static CursorQueryIterator getEntityStream(Query query, int chunkSize, int prefetchSize, int limit, Cursor startCursor) {
+	return new CursorQueryIterator(getAsyncDatastore().prepare(query), chunkSize, prefetchSize, limit, startCursor);
+}
+
+/**
+ * Copy a query, including its namespace
+ * @param query the query to copy
+ * @return a new query with the same kind, ancestor, filters, sort orders and projections
+ */
+@SuppressWarnings("deprecation")
+static Query copyQuery(Query query) {
+	String namespace = NamespaceManager.get();
+	try {
+		NamespaceManager.set(query.getNamespace());
+		Query copy = new Query(query.getKind(), query.getAncestor());
+		copy.setFilter(query.getFilter());
+		for (FilterPredicate filterPredicate : query.getFilterPredicates()) {
+			copy.addFilter(filterPredicate.getPropertyName(), filterPredicate.getOperator(), filterPredicate.getValue());
+		}
+		for (SortPredicate sortPredicate : query.getSortPredicates()) {
+			copy.addSort(sortPredicate.getPropertyName(), sortPredicate.getDirection());
+		}
+		for (Projection projection : query.getProjections()) {
+			copy.addProjection(projection);
+		}
+		copy.setDistinct(query.getDistinct());
+		if (query.isKeysOnly()) {
+			copy.setKeysOnly();
+		}
+		return copy;
+	} finally {
+		NamespaceManager.set(namespace);
+	}
+}
+
 /**
  * Create a datastore query
  * @param searchIn what kind of entity (table) to search in
@@ -273,7 +885,11 @@ public static Query createQuery(String searchIn, FilterWrapper... filters) {
  * @param searchIn the kind of entity (table) to search in
  * @param filters all properties to search for
  * @return number of rows
+ * @deprecated reads the key of every matching entity. Use {@link EntityCounts#count(String)}, or
+ * {@link EntityCounts#countExact(Query, int)} with a limit and {@link #createQuery(String,
+ * FilterWrapper...)}.
  */
+@Deprecated
 public static int count(String searchIn, FilterWrapper... filters) {
 	return count(searchIn, null, filters);
 }
@@ -284,20 +900,13 @@ public static int count(String searchIn, FilterWrapper... filters) {
  * @param parent search for all entities with this parent
  * @param filters all properties to search for
  * @return number of rows
+ * @deprecated reads the key of every matching entity. Use {@link EntityCounts#count(String)}, or
+ * {@link EntityCounts#countExact(Query, int)} with a limit and {@link #createQuery(String, Key,
+ * FilterWrapper...)}.
  */
+@Deprecated
 public static int count(String searchIn, Key parent, FilterWrapper... filters) {
-	Query query = new Query(searchIn);
-	query.setKeysOnly();
-
-	if (parent != null) {
-		query.setAncestor(parent);
-	}
-
-	setFilterProperties(query, filters);
-
-
-	PreparedQuery preparedQuery = mDatastore.prepare(query);
-	return preparedQuery.countEntities(FetchOptions.Builder.withDefaults());
+	return (int) EntityCounts.countExact(createQuery(searchIn, parent, filters), Integer.MAX_VALUE).getCount();
 }
 
 /**
@@ -343,7 +952,7 @@ private static Entity getSingleEntity(String searchIn, Key parent, boolean onlyK
 	}
 
 	try {
-		return mDatastore.prepare(query).asSingleEntity();
+		return getDatastore().prepare(query).asSingleEntity();
 	} catch (TooManyResultsException e) {
 		// Does nothing
 	}
@@ -381,28 +990,93 @@ public static Key getSingleKey(String searchIn, Key parent, FilterWrapper... fil
  * @param propertyName property name in the entity (column)
  */
 public static void createUuidProjection(Query query, String propertyName) {
-	query.addProjection(new PropertyProjection(propertyName, String.class));
+	query.addProjection(new PropertyProjection(propertyName, getProjectionType(UUID.class)));
 }
 
 /**
- * Creates a composite filter out of the specified filters
- * @param operator composite filter operator (AND/OR)
- * @param filters all the filters to add
- * @return a composite filter with the specified filters
+ * Get projected properties of all entities with the specified properties. Falls back to fetching
+ * full entities if the index of the projection is missing.
+ * @param searchIn what kind of entity (table) to search in
+ * @param projections all properties to fetch
+ * @param filters all properties to search for
+ * @return an iterable of all found entities, containing only the projected properties
  */
-public static Filter createCompositeFilter(CompositeFilterOperator operator, Filter... filters) {
-	ArrayList<Filter> arrayListFilters = new ArrayList<>();
-
-	Collections.addAll(arrayListFilters, filters);
-
-	return new CompositeFilter(operator, arrayListFilters);
+public static Iterable<Entity> getProjectedEntities(String searchIn, Collection<ProjectionWrapper> projections, FilterWrapper... filters) {
+	return getProjectedEntities(searchIn, null, projections, filters);
 }
 
 /**
- * Searches if an entity exists
- * @param searchIn what kind of entity to search in
- * @param includes the values to search for
- * @return true if the datastore contains the specified entity
+ * Get projected properties of all entities with the specified parent and properties. Falls back to
+ * fetching full entities if the index of the projection is missing.
+ * @param searchIn what kind of entity (table) to search in
+ * @param parent search for all entities with this parent. Set to null to skip
+ * @param projections all properties to fetch
+ * @param filters all properties to search for
+ * @return an iterable of all found entities, containing only the projected properties
+ */
+public static Iterable<Entity> getProjectedEntities(String searchIn, Key parent, Collection<ProjectionWrapper> projections, FilterWrapper... filters) {
+	Query fullQuery = createQuery(searchIn, parent, filters);
+	Query projectionQuery = createProjectionQuery(searchIn, parent, projections, filters);
+	return new ProjectionQueryIterable(getDatastore().prepare(projectionQuery), getDatastore().prepare(fullQuery));
+}
+
+/**
+ * Create a datastore projection query
+ * @param searchIn what kind of entity (table) to search in
+ * @param parent search for all entities with this parent. Set to null to skip
+ * @param projections all properties to fetch
+ * @param filters all properties to search for
+ * @return projection query to search for in the datastore
+ */
+public static Query createProjectionQuery(String searchIn, Key parent, Collection<ProjectionWrapper> projections, FilterWrapper... filters) {
+	Query query = createQuery(searchIn, parent, filters);
+	for (ProjectionWrapper projection : projections) {
+		query.addProjection(new PropertyProjection(projection.name, getProjectionType(projection.type)));
+	}
+	return query;
+}
+
+/**
+ * Get the type a property is stored as in the datastore
+ * @param type type of the property as it's set using DatastoreUtils
+ * @return type to use in a projection of the property
+ * @throws IllegalArgumentException if the property type can't be projected
+ */
+private static Class<?> getProjectionType(Class<?> type) {
+	if (type == UUID.class) {
+		// Raw value when binary UUIDs can be stored, getPropertyUuid() reads both formats
+		return mUuidFormat == UuidFormat.STRING ? String.class : null;
+	} else if (IIdStore.class.isAssignableFrom(type) || type == Integer.class || type == int.class || type == Short.class || type == short.class || type == Long.class || type == long.class) {
+		return Long.class;
+	} else if (type == Float.class || type == float.class || type == Double.class || type == double.class) {
+		return Double.class;
+	} else if (type == boolean.class) {
+		return Boolean.class;
+	} else if (type == byte[].class || type == Blob.class || type == ShortBlob.class) {
+		throw new IllegalArgumentException("Byte array properties are unindexed and can't be projected");
+	}
+	return type;
+}
+
+/**
+ * Creates a composite filter out of the specified filters
+ * @param operator composite filter operator (AND/OR)
+ * @param filters all the filters to add
+ * @return a composite filter with the specified filters
+ */
+public static Filter createCompositeFilter(CompositeFilterOperator operator, Filter... filters) {
+	ArrayList<Filter> arrayListFilters = new ArrayList<>();
+
+	Collections.addAll(arrayListFilters, filters);
+
+	return new CompositeFilter(operator, arrayListFilters);
+}
+
+/**
+ * Searches if an entity exists
+ * @param searchIn what kind of entity to search in
+ * @param includes the values to search for
+ * @return true if the datastore contains the specified entity
  */
 public static boolean exists(String searchIn, FilterWrapper... includes) {
 	return exists(searchIn, null, includes);
@@ -416,7 +1090,46 @@ public static boolean exists(String searchIn, FilterWrapper... includes) {
  * @return true if the datastore contains the specified entity
  */
 public static boolean exists(String searchIn, Key parent, FilterWrapper... includes) {
-	return getSingleKey(searchIn, parent, includes) != null;
+	Query query = createQuery(searchIn, parent, includes);
+	query.setKeysOnly();
+	return !getDatastore().prepare(query).asList(FetchOptions.Builder.withLimit(1)).isEmpty();
+}
+
+/**
+ * Searches if entities exist for several filter sets at once. All queries are run concurrently.
+ * @param searchIn what kind of entity to search in
+ * @param includeSets the values to search for, one array of filters per query
+ * @return true for each filter set that matches at least one entity, in the same order as
+ * includeSets
+ */
+public static boolean[] exists(String searchIn, List<FilterWrapper[]> includeSets) {
+	List<Query> queries = new ArrayList<>(includeSets.size());
+	for (FilterWrapper[] includes : includeSets) {
+		queries.add(createQuery(searchIn, includes));
+	}
+	return exists(queries);
+}
+
+/**
+ * Searches if entities exist for several queries at once. All queries are run concurrently as
+ * keys-only queries with a limit of 1.
+ * @param queries the queries to check, does not need to be keys-only
+ * @return true for each query that matches at least one entity, in the same order as queries
+ */
+public static boolean[] exists(List<Query> queries) {
+	// Start all queries before waiting for any of them
+	List<List<Entity>> results = new ArrayList<>(queries.size());
+	for (Query query : queries) {
+		Query keysQuery = copyQuery(query);
+		keysQuery.setKeysOnly();
+		results.add(getAsyncDatastore().prepare(keysQuery).asQueryResultList(FetchOptions.Builder.withLimit(1)));
+	}
+
+	boolean[] exists = new boolean[results.size()];
+	for (int i = 0; i < exists.length; i++) {
+		exists[i] = !results.get(i).isEmpty();
+	}
+	return exists;
 }
 
 /**
@@ -435,26 +1148,235 @@ public static Entity getBlobEntityByKey(String idName) {
  * @return entity with specified key, null if not found
  */
 public static Entity getEntity(Key idName) {
-	try {
-		return mDatastore.get(idName);
-	} catch (EntityNotFoundException e) {
-		mLogger.warning("Could not find entity with key: " + idName);
-		return null;
+	return waitFor(getEntityAsync(idName));
+}
+
+/**
+ * Searches for an entity with the specified key using a datastore profile
+ * @param idName the key of the entity
+ * @param profile datastore profile to read with, e.g. with eventual consistency or a short
+ * deadline
+ * @return entity with specified key, null if not found
+ */
+public static Entity getEntity(Key idName, DatastoreProfile profile) {
+	return waitFor(getEntityAsync(idName, profile));
+}
+
+/**
+ * Asynchronously searches for an entity with the specified key. Served from the {@link
+ * RequestCache} or {@link EntityMemcache} when they're enabled and contain the key. Slow reads
+ * are hedged if {@link HedgedReads} is enabled for the kind, concurrent reads of the key share one
+ * call if {@link SingleFlight} is enabled for the kind.
+ * @param idName the key of the entity
+ * @return future with the entity with specified key, the future returns null if not found
+ */
+public static Future<Entity> getEntityAsync(Key idName) {
+	return getEntityAsync(idName, DatastoreProfile.current());
+}
+
+/**
+ * Asynchronously searches for an entity with the specified key using a datastore profile
+ * @param idName the key of the entity
+ * @param profile datastore profile to read with, e.g. with eventual consistency or a short
+ * deadline
+ * @return future with the entity with specified key, the future returns null if not found
+ * @see #getEntityAsync(Key)
+ */
+public static Future<Entity> getEntityAsync(final Key idName, final DatastoreProfile profile) {
+	final RequestCache requestCache = RequestCache.current();
+	if (requestCache != null && requestCache.contains(idName)) {
+		return new CompletedFuture<>(requestCache.get(idName));
+	}
+
+	Entity memcached = EntityMemcache.get(idName);
+	if (memcached != null) {
+		if (requestCache != null) {
+			requestCache.put(idName, memcached);
+		}
+		return new CompletedFuture<>(memcached);
 	}
+
+	return new RetryFuture<Entity>(mRetryPolicy) {
+		@Override
+		protected Future<Entity> call() {
+			return SingleFlight.get(profile, idName);
+		}
+
+		@Override
+		protected Entity onSuccess(Entity result) {
+			if (!profile.isEventual()) {
+				if (requestCache != null) {
+					requestCache.put(idName, result);
+				}
+				EntityMemcache.addAll(Collections.singletonList(result));
+			}
+			return result;
+		}
+
+		@Override
+		protected Entity onFailure(ExecutionException exception) throws ExecutionException {
+			if (exception.getCause() instanceof EntityNotFoundException) {
+				mLogger.warning("Could not find entity with key: " + idName);
+				if (requestCache != null && !profile.isEventual()) {
+					requestCache.put(idName, null);
+				}
+				return null;
+			}
+			throw exception;
+		}
+	}.start();
 }
 
 /**
  * Gets all entities for this key as long as they exist in the datastore
  * @param keys all entity keys
  * @return all entities that were found with the specified keys
+ * @throws DatastoreFailureException if the get of any of the keys failed
  */
 public static Map<Key, Entity> getEntities(Iterable<Key> keys) {
-	try {
-		return mDatastore.get(keys);
-	} catch (IllegalArgumentException | DatastoreFailureException e) {
-		e.printStackTrace();
-		return null;
+	return getEntities(keys, DatastoreProfile.current());
+}
+
+/**
+ * Gets all entities for this key as long as they exist in the datastore using a datastore profile
+ * @param keys all entity keys
+ * @param profile datastore profile to read with, e.g. with eventual consistency or a short
+ * deadline
+ * @return all entities that were found with the specified keys
+ * @throws DatastoreFailureException if the get of any of the keys failed
+ */
+public static Map<Key, Entity> getEntities(Iterable<Key> keys, DatastoreProfile profile) {
+	return waitFor(getEntitiesAsync(keys, profile));
+}
+
+/**
+ * Asynchronously gets all entities for this key as long as they exist in the datastore. Keys in
+ * the {@link RequestCache} or {@link EntityMemcache} are served from the caches and only the rest
+ * are fetched. Large batches are split into several calls that run concurrently, slow calls are
+ * hedged if {@link HedgedReads} is enabled for the kind.
+ * @param keys all entity keys
+ * @return future with all entities that were found with the specified keys, in the same order as
+ * the keys. Fails if the get of any of the keys failed.
+ */
+public static Future<Map<Key, Entity>> getEntitiesAsync(Iterable<Key> keys) {
+	return getEntitiesAsync(keys, DatastoreProfile.current());
+}
+
+/**
+ * Asynchronously gets all entities for this key as long as they exist in the datastore using a
+ * datastore profile
+ * @param keys all entity keys
+ * @param profile datastore profile to read with, e.g. with eventual consistency or a short
+ * deadline
+ * @return future with all entities that were found with the specified keys, in the same order as
+ * the keys
+ * @see #getEntitiesAsync(Iterable)
+ */
+public static Future<Map<Key, Entity>> getEntitiesAsync(Iterable<Key> keys, final DatastoreProfile profile) {
+	final RequestCache requestCache = RequestCache.current();
+	final List<Key> allKeys = new ArrayList<>();
+	for (Key key : keys) {
+		allKeys.add(key);
 	}
+	// Copied so that the hits can't be evicted by the misses before they're merged
+	final Map<Key, Entity> requestCached = requestCache != null ? requestCache.getAll(allKeys) : Collections.<Key, Entity>emptyMap();
+	List<Key> missingKeys = new ArrayList<>();
+	for (Key key : allKeys) {
+		if (!requestCached.containsKey(key)) {
+			missingKeys.add(key);
+		}
+	}
+
+	final Map<Key, Entity> memcached = EntityMemcache.getAll(missingKeys);
+	if (!memcached.isEmpty()) {
+		missingKeys.removeAll(memcached.keySet());
+		if (requestCache != null) {
+			for (Entity entity : memcached.values()) {
+				requestCache.put(entity.getKey(), entity);
+			}
+		}
+	}
+
+	if (missingKeys.isEmpty() && !allKeys.isEmpty()) {
+		return new CompletedFuture<>(getCached(requestCached, allKeys, memcached));
+	}
+
+	List<List<Key>> chunks = split(missingKeys, GET_LIMIT);
+	if (chunks.size() == 1 && missingKeys.size() == allKeys.size()) {
+		return getChunkAsync(profile, requestCache, chunks.get(0));
+	}
+
+	return new ChunkedFuture<List<Key>, Map<Key, Entity>, Map<Key, Entity>>(chunks, CHUNKS_IN_FLIGHT_MAX) {
+		@Override
+		protected Future<Map<Key, Entity>> start(List<Key> chunk) {
+			return getChunkAsync(profile, requestCache, chunk);
+		}
+
+		@Override
+		protected Map<Key, Entity> merge(List<Map<Key, Entity>> results) {
+			Map<Key, Entity> entities = new HashMap<>(memcached);
+			for (Map<Key, Entity> chunkEntities : results) {
+				entities.putAll(chunkEntities);
+			}
+			return getCached(requestCached, allKeys, entities);
+		}
+	}.start();
+}
+
+/**
+ * Merge fetched entities with entities from the request cache
+ * @param requestCached entities that were found in the request cache
+ * @param keys all keys in the order to return them
+ * @param fetched entities that were fetched from the datastore
+ * @return all found entities in the same order as the keys
+ */
+private static Map<Key, Entity> getCached(Map<Key, Entity> requestCached, List<Key> keys, Map<Key, Entity> fetched) {
+	Map<Key, Entity> entities = new LinkedHashMap<>();
+	for (Key key : keys) {
+		Entity entity = fetched.get(key);
+		if (entity == null) {
+			entity = requestCached.get(key);
+		}
+		if (entity != null) {
+			entities.put(key, entity);
+		}
+	}
+	return entities;
+}
+
+/**
+ * Asynchronously get entities of keys that fit in one call
+ * @param profile datastore profile to read with
+ * @param requestCache cache of the request to add the entities to, may be null. Eventually
+ * consistent reads aren't added.
+ * @param keys the keys to get
+ * @return future with all entities that were found, in the same order as the keys
+ */
+private static Future<Map<Key, Entity>> getChunkAsync(final DatastoreProfile profile, final RequestCache requestCache, final List<Key> keys) {
+	return new RetryFuture<Map<Key, Entity>>(mRetryPolicy) {
+		@Override
+		protected Future<Map<Key, Entity>> call() {
+			return HedgedReads.get(profile.getAsyncDatastore(), keys);
+		}
+
+		@Override
+		protected Map<Key, Entity> onSuccess(Map<Key, Entity> result) {
+			Map<Key, Entity> ordered = new LinkedHashMap<>();
+			for (Key key : keys) {
+				Entity entity = result.get(key);
+				if (entity != null) {
+					ordered.put(key, entity);
+				}
+				if (requestCache != null && !profile.isEventual()) {
+					requestCache.put(key, entity);
+				}
+			}
+			if (!profile.isEventual()) {
+				EntityMemcache.addAll(ordered.values());
+			}
+			return ordered;
+		}
+	}.start();
 }
 
 /**
@@ -513,7 +1435,7 @@ public static void setUnindexedProperty(Entity entity, String propertyName, IIdS
  */
 public static void setUnindexedProperty(Entity entity, String propertyName, UUID uuid) {
 	if (uuid != null) {
-		entity.setUnindexedProperty(propertyName, uuid.toString());
+		entity.setUnindexedProperty(propertyName, toUuidProperty(uuid));
 	}
 }
 
@@ -525,8 +1447,134 @@ public static void setUnindexedProperty(Entity entity, String propertyName, UUID
  */
 public static void setProperty(Entity entity, String propertyName, UUID uuid) {
 	if (uuid != null) {
-		entity.setProperty(propertyName, uuid.toString());
+		entity.setProperty(propertyName, toUuidProperty(uuid));
+	}
+}
+
+/**
+ * Convert a UUID to the value it's stored as
+ * @param uuid the UUID to convert
+ * @return property value of the UUID, a string or a 16 byte short blob depending on the UUID format
+ */
+static Object toUuidProperty(UUID uuid) {
+	if (mUuidFormat == UuidFormat.STRING) {
+		return uuid.toString();
+	} else {
+		return toUuidBlob(uuid);
+	}
+}
+
+/**
+ * Convert a UUID to its binary format
+ * @param uuid the UUID to convert
+ * @return 16 byte short blob with the most significant bits first
+ */
+private static ShortBlob toUuidBlob(UUID uuid) {
+	byte[] bytes = new byte[UUID_BYTES];
+	long mostSignificant = uuid.getMostSignificantBits();
+	long leastSignificant = uuid.getLeastSignificantBits();
+	for (int i = 0; i < 8; i++) {
+		bytes[i] = (byte) (mostSignificant >>> (56 - i * 8));
+		bytes[i + 8] = (byte) (leastSignificant >>> (56 - i * 8));
+	}
+	return new ShortBlob(bytes);
+}
+
+/**
+ * Convert a stored UUID property value to a UUID. Reads both the string and the binary format.
+ * @param value the property value, can be the raw value of a projection
+ * @return the stored UUID
+ * @throws IllegalArgumentException if the value isn't a stored UUID
+ */
+static UUID fromUuidProperty(Object value) {
+	if (value instanceof RawValue) {
+		value = ((RawValue) value).getValue();
+	}
+
+	if (value instanceof String) {
+		return UUID.fromString((String) value);
+	}
+
+	byte[] bytes;
+	if (value instanceof ShortBlob) {
+		bytes = ((ShortBlob) value).getBytes();
+	} else if (value instanceof byte[]) {
+		bytes = (byte[]) value;
+	} else {
+		throw new IllegalArgumentException("Not a UUID property value: " + value);
+	}
+
+	if (bytes.length != UUID_BYTES) {
+		throw new IllegalArgumentException("Binary UUID has " + bytes.length + " bytes");
+	}
+	long mostSignificant = 0;
+	long leastSignificant = 0;
+	for (int i = 0; i < 8; i++) {
+		mostSignificant = (mostSignificant << 8) | (bytes[i] & 0xff);
+		leastSignificant = (leastSignificant << 8) | (bytes[i + 8] & 0xff);
+	}
+	return new UUID(mostSignificant, leastSignificant);
+}
+
+/**
+ * Rewrite UUID properties that are stored as strings to the binary format. Entities are read in
+ * batches and written with batch puts, entities without string UUIDs aren't written. Doesn't change
+ * the UUID format, set it to {@link UuidFormat#BINARY_MIGRATING} before migrating and to {@link
+ * UuidFormat#BINARY} when all kinds have been migrated.
+ * @param query the entities to migrate, e.g. all entities of a kind
+ * @param propertyNames names of the UUID properties to migrate
+ * @return number of entities that were rewritten
+ */
+public static int migrateUuidProperties(Query query, String... propertyNames) {
+	CursorQueryIterator iterator = getEntityStream(query, PUT_LIMIT, PUT_LIMIT, CursorQueryIterator.NO_LIMIT, null);
+	List<Entity> batch = new ArrayList<>(PUT_LIMIT);
+	Future<List<Key>> pendingPut = null;
+	int migratedCount = 0;
+
+	while (iterator.hasNext()) {
+		Entity entity = iterator.next();
+		if (migrateUuidProperties(entity, propertyNames)) {
+			batch.add(entity);
+		}
+
+		if (batch.size() == PUT_LIMIT || (!iterator.hasNext() && !batch.isEmpty())) {
+			// Keep one put in flight while reading the next batch
+			if (pendingPut != null) {
+				waitFor(pendingPut);
+			}
+			pendingPut = putAsync(batch);
+			migratedCount += batch.size();
+			batch = new ArrayList<>(PUT_LIMIT);
+		}
+	}
+
+	if (pendingPut != null) {
+		waitFor(pendingPut);
 	}
+	return migratedCount;
+}
+
+/**
+ * Rewrite string UUID properties of an entity to the binary format
+ * @param entity the entity to migrate
+ * @param propertyNames names of the UUID properties
+ * @return true if any property was rewritten
+ */
+private static boolean migrateUuidProperties(Entity entity, String[] propertyNames) {
+	boolean migrated = false;
+	for (String propertyName : propertyNames) {
+		Object value = entity.getProperty(propertyName);
+		if (value instanceof String) {
+			ShortBlob blob = toUuidBlob(UUID.fromString((String) value));
+			if (entity.isUnindexedProperty(propertyName)) {
+				entity.setUnindexedProperty(propertyName, blob);
+			} else {
+				entity.setProperty(propertyName, blob);
+			}
+			migrated = true;
+		}
+	}
+	return migrated;
 }
 
 /**
@@ -537,43 +1585,122 @@ public static void setProperty(Entity entity, String propertyName, UUID uuid) {
  */
 public static void setUnindexedProperty(Entity entity, String propertyName, byte[] bytes) {
 	if (bytes != null) {
-		if (bytes.length <= SHORT_BLOB_MAX_SIZE) {
-			ShortBlob blob = new ShortBlob(bytes);
-			entity.setUnindexedProperty(propertyName, blob);
-		} else {
-			Blob blob = new Blob(bytes);
-			entity.setUnindexedProperty(propertyName, blob);
-		}
+		entity.setUnindexedProperty(propertyName, toByteArrayProperty(bytes));
 	}
 }
 
 /**
- * Get a UUID property from an entity
+ * Set a byte array property that may be larger than fits in an entity. Arrays that are too large
+ * are stored as chunk entities under the entity that are put together with it, only a reference
+ * to them is stored in the entity. Read the array with {@link #getPropertyByteArray(Entity,
+ * String)}. Enable {@link LargeProperties#enable(String)} for the kind to delete the chunks of old
+ * values.
+ * @param entity the entity to add the byte array to, needs a complete key if the array is large
+ * @param propertyName name of the property
+ * @param bytes the byte array to add to the entity
+ * @throws IllegalArgumentException if the array is large and the entity doesn't have a complete
+ * key
+ */
+public static void setLargeProperty(Entity entity, String propertyName, byte[] bytes) {
+	if (bytes == null) {
+		return;
+	}
+
+	byte[] stored = ByteArrayCompression.encode(bytes, mCompressByteArrays);
+	if (stored.length <= LargeProperties.INLINE_BYTES_MAX) {
+		entity.setUnindexedProperty(propertyName, toStoredProperty(stored));
+	} else {
+		entity.setUnindexedProperty(propertyName, LargeProperties.write(entity, propertyName, stored, bytes.length));
+	}
+}
+
+/**
+ * Convert a byte array to the value it's stored as. Compresses the array if enabled.
+ * @param bytes the byte array to convert
+ * @return a short blob if the array is small enough, otherwise a blob
+ */
+static Object toByteArrayProperty(byte[] bytes) {
+	return toStoredProperty(ByteArrayCompression.encode(bytes, mCompressByteArrays));
+}
+
+/**
+ * @param stored bytes as they should be stored
+ * @return a short blob if the array is small enough, otherwise a blob
+ */
+private static Object toStoredProperty(byte[] stored) {
+	if (stored.length <= SHORT_BLOB_MAX_SIZE) {
+		return new ShortBlob(stored);
+	} else {
+		return new Blob(stored);
+	}
+}
+
+/**
+ * Get a UUID property from an entity. Reads both the string and the binary format.
  * @param entity the entity to get the UUID from
  * @param propertyName name of the property
  * @return Stored UUID, null if it doesn't exist
  */
 public static UUID getPropertyUuid(Entity entity, String propertyName) {
 	if (entity.hasProperty(propertyName)) {
-		return UUID.fromString((String) entity.getProperty(propertyName));
+		return fromUuidProperty(entity.getProperty(propertyName));
 	}
 
 	return null;
 }
 
+/**
+ * Get a UUID property from an entity. Reads both the string and the binary format.
+ * @param entity the entity to get the UUID from
+ * @param propertyName name of the property
+ * @param defaultValue returns this value if the property wasn't found or isn't a UUID
+ * @return stored UUID, default value if it doesn't exist
+ */
+public static UUID getPropertyUuid(Entity entity, String propertyName, UUID defaultValue) {
+	Object value = entity.getProperty(propertyName);
+	if (value instanceof String && isUuidString((String) value)) {
+		return UUID.fromString((String) value);
+	} else if (value instanceof ShortBlob && ((ShortBlob) value).getBytes().length == UUID_BYTES) {
+		return fromUuidProperty(value);
+	}
+	return defaultValue;
+}
+
+/**
+ * Check if a string is a UUID in the format of {@link UUID#toString()}
+ * @param value the string to check
+ * @return true if the string can be parsed as a UUID
+ */
+private static boolean isUuidString(String value) {
+	if (value.length() != 36) {
+		return false;
+	}
+	for (int i = 0; i < value.length(); i++) {
+		char c = value.charAt(i);
+		if (i == 8 || i == 13 || i == 18 || i == 23) {
+			if (c != '-') {
+				return false;
+			}
+		} else if (Character.digit(c, 16) == -1) {
+			return false;
+		}
+	}
+	return true;
+}
+
 /**
  * Get an integer property
  * @param entity the entity to get the integer from
  * @param propertyName name of the property
- * @param defaultValue returns this value if the property wasn't found
+ * @param defaultValue returns this value if the property wasn't found or isn't an integer
  * @return stored integer, default value if it doesn't exist
  */
 public static int getPropertyInt(Entity entity, String propertyName, int defaultValue) {
-	try {
-		return getPropertyInt(entity, propertyName);
-	} catch (PropertyNotFoundException e) {
-		return defaultValue;
+	Object value = entity.getProperty(propertyName);
+	if (isIntegral(value)) {
+		return ((Number) value).intValue();
 	}
+	return defaultValue;
 }
 
 /**
@@ -581,61 +1708,227 @@ public static int getPropertyInt(Entity entity, String propertyName, int default
  * @param entity the entity to get the integer from
  * @param propertyName name of the property
  * @return stored integer
- * @throws PropertyNotFoundException if the property wasn't found
+ * @throws PropertyNotFoundException if the property wasn't found or isn't an integer
  * @see #getPropertyInt(Entity, String, int)
  */
 public static int getPropertyInt(Entity entity, String propertyName) throws PropertyNotFoundException {
-	Long longValue = (Long) entity.getProperty(propertyName);
+	Object value = entity.getProperty(propertyName);
+	if (isIntegral(value)) {
+		return ((Number) value).intValue();
+	}
+	throw new PropertyNotFoundException(propertyName);
+}
 
-	if (longValue != null) {
-		return longValue.intValue();
-	} else {
-		throw new PropertyNotFoundException();
+/**
+ * Get a long property
+ * @param entity the entity to get the long from
+ * @param propertyName name of the property
+ * @param defaultValue returns this value if the property wasn't found or isn't an integer
+ * @return stored long, default value if it doesn't exist
+ */
+public static long getPropertyLong(Entity entity, String propertyName, long defaultValue) {
+	Object value = entity.getProperty(propertyName);
+	if (isIntegral(value)) {
+		return ((Number) value).longValue();
 	}
+	return defaultValue;
 }
 
 /**
- * Get an integer property
- * @param entity the entity to get the integer from
+ * Get a float property
+ * @param entity the entity to get the float from
  * @param propertyName name of the property
- * @param defaultValue returns this value if the property wasn't found
- * @return stored integer, default value if it doesn't exist
+ * @param defaultValue returns this value if the property wasn't found or isn't a floating point
+ * number
+ * @return stored float, default value if it doesn't exist
  */
 public static float getPropertyFloat(Entity entity, String propertyName, float defaultValue) {
-	try {
-		return getPropertyFloat(entity, propertyName);
-	} catch (PropertyNotFoundException e) {
-		return defaultValue;
+	Object value = entity.getProperty(propertyName);
+	if (isFloatingPoint(value)) {
+		return ((Number) value).floatValue();
 	}
+	return defaultValue;
 }
 
 /**
  * Get a float property
- * @param entity the entity to get the integer from
+ * @param entity the entity to get the float from
  * @param propertyName name of the property
  * @return stored float
- * @throws PropertyNotFoundException if the property wasn't found
+ * @throws PropertyNotFoundException if the property wasn't found or isn't a floating point number
  * @see #getPropertyFloat(Entity, String, float)
  */
 public static float getPropertyFloat(Entity entity, String propertyName) throws PropertyNotFoundException {
-	Double doubleValue = (Double) entity.getProperty(propertyName);
+	Object value = entity.getProperty(propertyName);
+	if (isFloatingPoint(value)) {
+		return ((Number) value).floatValue();
+	}
+	throw new PropertyNotFoundException(propertyName);
+}
 
-	if (doubleValue != null) {
-		return doubleValue.floatValue();
-	} else {
-		throw new PropertyNotFoundException();
+/**
+ * Get a double property
+ * @param entity the entity to get the double from
+ * @param propertyName name of the property
+ * @param defaultValue returns this value if the property wasn't found or isn't a floating point
+ * number
+ * @return stored double, default value if it doesn't exist
+ */
+public static double getPropertyDouble(Entity entity, String propertyName, double defaultValue) {
+	Object value = entity.getProperty(propertyName);
+	if (isFloatingPoint(value)) {
+		return ((Number) value).doubleValue();
+	}
+	return defaultValue;
+}
+
+/**
+ * Get a boolean property
+ * @param entity the entity to get the boolean from
+ * @param propertyName name of the property
+ * @param defaultValue returns this value if the property wasn't found or isn't a boolean
+ * @return stored boolean, default value if it doesn't exist
+ */
+public static boolean getPropertyBoolean(Entity entity, String propertyName, boolean defaultValue) {
+	Object value = entity.getProperty(propertyName);
+	if (value instanceof Boolean) {
+		return (Boolean) value;
+	}
+	return defaultValue;
+}
+
+/**
+ * Get a string property. Reads both short strings and {@link Text}.
+ * @param entity the entity to get the string from
+ * @param propertyName name of the property
+ * @param defaultValue returns this value if the property wasn't found or isn't a string
+ * @return stored string, default value if it doesn't exist
+ */
+public static String getPropertyString(Entity entity, String propertyName, String defaultValue) {
+	Object value = entity.getProperty(propertyName);
+	if (value instanceof String) {
+		return (String) value;
+	} else if (value instanceof Text) {
+		return ((Text) value).getValue();
+	}
+	return defaultValue;
+}
+
+/**
+ * Get a date property
+ * @param entity the entity to get the date from
+ * @param propertyName name of the property
+ * @param defaultValue returns this value if the property wasn't found or isn't a date
+ * @return stored date, default value if it doesn't exist
+ */
+public static Date getPropertyDate(Entity entity, String propertyName, Date defaultValue) {
+	Object value = entity.getProperty(propertyName);
+	if (value instanceof Date) {
+		return (Date) value;
 	}
+	return defaultValue;
 }
 
 /**
- * Get a byte array from an entity
+ * @param value a property value
+ * @return true if the value is an integer. The datastore returns integers as Long, but entities
+ * that haven't been stored can have any integer type.
+ */
+static boolean isIntegral(Object value) {
+	return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+}
+
+/**
+ * @param value a property value
+ * @return true if the value is a floating point number. The datastore returns them as Double.
+ */
+static boolean isFloatingPoint(Object value) {
+	return value instanceof Double || value instanceof Float;
+}
+
+/**
+ * Get a byte array from an entity. Decompresses the array if it was stored compressed and gets the
+ * chunks of large arrays in one batch.
  * @param entity the entity to get the byte array from
  * @param propertyName name of the property
  * @return stored byte array, null if wasn't set
+ * @throws DatastoreFailureException if a chunk of a large array is missing
  */
 public static byte[] getPropertyByteArray(Entity entity, String propertyName) {
-	Object blob = entity.getProperty(propertyName);
+	byte[] stored = getStoredBytes(entity, propertyName);
+	if (stored != null) {
+		return ByteArrayCompression.decompress(stored);
+	}
+	return null;
+}
 
+/**
+ * Get a byte array from an entity into a buffer, e.g. to reuse the buffer for several entities.
+ * Decompresses the array if it was stored compressed.
+ * @param entity the entity to get the byte array from
+ * @param propertyName name of the property
+ * @param buffer where to put the byte array, needs to be at least {@link
+ * #getPropertyByteArrayLength(Entity, String)} long
+ * @return number of bytes put in the buffer, -1 if the property wasn't set
+ * @throws IllegalArgumentException if the buffer is too small
+ * @throws DatastoreFailureException if a chunk of a large array is missing
+ */
+public static int getPropertyByteArray(Entity entity, String propertyName, byte[] buffer) {
+	byte[] stored = getStoredBytes(entity, propertyName);
+	if (stored == null) {
+		return -1;
+	}
+	return ByteArrayCompression.decompress(stored, buffer);
+}
+
+/**
+ * Get the length of a byte array property without decompressing it or getting its chunks
+ * @param entity the entity to get the byte array length from
+ * @param propertyName name of the property
+ * @return length of the byte array, -1 if the property wasn't set
+ */
+public static int getPropertyByteArrayLength(Entity entity, String propertyName) {
+	byte[] stored = getStoredBytes(entity.getProperty(propertyName));
+	if (stored == null) {
+		return -1;
+	} else if (LargeProperties.isReference(stored)) {
+		return LargeProperties.getLength(stored);
+	}
+	return ByteArrayCompression.getLength(stored);
+}
+
+/**
+ * Convert a stored byte array property value to a byte array
+ * @param blob the property value
+ * @return stored byte array, decompressed if it was compressed. Null if the value isn't a blob
+ */
+static byte[] fromByteArrayProperty(Object blob) {
+	byte[] stored = getStoredBytes(blob);
+	if (stored != null) {
+		return ByteArrayCompression.decompress(stored);
+	}
+	return null;
+}
+
+/**
+ * Get the stored bytes of a property, gets the chunks if the property is a reference to chunks
+ * @param entity the entity to get the bytes from
+ * @param propertyName name of the property
+ * @return bytes as they're stored, null if the value isn't a blob
+ */
+private static byte[] getStoredBytes(Entity entity, String propertyName) {
+	byte[] stored = getStoredBytes(entity.getProperty(propertyName));
+	if (stored != null && LargeProperties.isReference(stored)) {
+		return LargeProperties.read(entity.getKey(), propertyName, stored);
+	}
+	return stored;
+}
+
+/**
+ * @param blob the property value
+ * @return bytes of the blob as they're stored, null if the value isn't a blob
+ */
+private static byte[] getStoredBytes(Object blob) {
 	if (blob instanceof ShortBlob) {
 		return ((ShortBlob) blob).getBytes();
 	} else if (blob instanceof Blob) {
@@ -655,44 +1948,15 @@ public static byte[] getPropertyByteArray(Entity entity, String propertyName) {
  * fromId(int)' otherwise an exception is thrown.
  * @return id object (usually an enumeration), null if not found
  * @throws IllegalArgumentException if the class doesn't have an public method with the signature:
- *                                  'T fromId(int)'
+ *                                  'T fromId(int)'. The method is looked up once per class.
  */
-@SuppressWarnings("unchecked")
 public static <T extends IIdStore> T getPropertyIdStore(Entity entity, String propertyName, Class<T> clazz) {
 	// Check so that T has the required method
-	Method fromIdMehod = null;
-	try {
-		fromIdMehod = clazz.getMethod("fromId", int.class);
+	IdStoreDecoder<T> decoder = IdStoreDecoder.get(clazz);
 
-		// Invalid return type
-		if (fromIdMehod.getReturnType() != clazz) {
-			throw new IllegalArgumentException(clazz.getName() + " method 'T fromId(int)' doesn't return itself");
-		}
-	}
-	// Doesn't exist
-	catch (NoSuchMethodException e) {
-		throw new IllegalArgumentException(clazz.getName() + " method 'T fromId(int)' wasn't found");
-	}
-	// Method isn't public
-	catch (SecurityException e) {
-		throw new IllegalArgumentException(clazz.getName() + " method 'T fromId(int)' isn't public");
-	}
-
-	// Get the value
-	try {
-		int property = getPropertyInt(entity, propertyName);
-
-		// Convert to T
-		try {
-			Object object = fromIdMehod.invoke(null, property);
-
-			if (object != null) {
-				return (T) object;
-			}
-		} catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-			throw new IllegalArgumentException(clazz.getName() + " method 'T fromId(int)' isn't static");
-		}
-	} catch (PropertyNotFoundException e) {
+	Object value = entity.getProperty(propertyName);
+	if (isIntegral(value)) {
+		return decoder.fromId(((Number) value).intValue());
 	}
 
 	return null;
@@ -704,14 +1968,79 @@ public static <T extends IIdStore> T getPropertyIdStore(Entity entity, String pr
  * @return prepared query
  */
 public static PreparedQuery prepare(Query query) {
-	return mDatastore.prepare(query);
+	return getDatastore().prepare(query);
 }
 
 /**
- * Property not found exception when the property wasn't found
+ * Property not found exception when the property wasn't found. Doesn't fill in the stack trace, it's
+ * thrown for missing properties which are common and only used for control flow.
  */
 public static class PropertyNotFoundException extends Exception {
 	private static final long serialVersionUID = -2475594610909583785L;
+
+	/**
+	 * Missing property without a name
+	 */
+	public PropertyNotFoundException() {
+		this(null);
+	}
+
+	/**
+	 * @param propertyName name of the property that wasn't found
+	 */
+	public PropertyNotFoundException(String propertyName) {
+		super(propertyName, null, false, false);
+	}
+}
+
+/**
+ * How {@link #getEntities(Query, QueryMode)} runs a query
+ */
+public enum QueryMode {
+	/** Run the query and fetch the entities directly */
+	ENTITIES,
+	/**
+	 * Run the query as keys-only and get the entities in batches, which are served from {@link
+	 * RequestCache} and {@link EntityMemcache} when possible. Faster and cheaper when most of the
+	 * entities are cached. Entities can have changed since the query matched them.
+	 */
+	KEYS_THEN_GET,
+}
+
+/**
+ * How UUID properties are stored
+ */
+public enum UuidFormat {
+	/** 36 character string, the default */
+	STRING,
+	/**
+	 * 16 byte short blob. Filters only match binary UUIDs, so all string UUIDs need to be migrated
+	 * first.
+	 */
+	BINARY,
+	/**
+	 * 16 byte short blob, but filters match both formats. Use while migrating with {@link
+	 * #migrateUuidProperties(Query, String...)}.
+	 */
+	BINARY_MIGRATING,
+}
+
+/**
+ * Projection wrapper. Contains the property name and the type it was set as
+ */
+public static class ProjectionWrapper {
+	/** Property name */
+	public String name;
+	/** Property type, e.g. UUID, int or an IIdStore */
+	public Class<?> type;
+
+	/**
+	 * Sets the name and type of the property
+	 */
+	public ProjectionWrapper(String name, Class<?> type) {
+		this.name = name;
+		this.type = type;
+	}
 }
 
 /**
@@ -0,0 +1,184 @@
+package com.spiddekauga.appengine;
+
+import com.google.appengine.api.datastore.Entity;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Numeric properties of many entities extracted into primitive arrays, e.g. for aggregations over
+ * query results. The entities are iterated once for all properties. Values that are missing or
+ * aren't numbers are marked in a bitmap and are 0 in the arrays, no exceptions are thrown.
+ * <pre>
+ * EntityColumns columns = EntityColumns.extract(DatastoreUtils.getEntities(query), "level", "score");
+ * int[] levels = columns.getInts("level");
+ * BitSet missingLevels = columns.getMissing("level");
+ * </pre>
+ */
+public class EntityColumns {
+/** Initial capacity when the number of entities isn't known */
+private static final int CAPACITY_DEFAULT = 256;
+private final Map<String, Column> mColumns = new HashMap<>();
+private int mSize = 0;
+
+/**
+ * Use {@link #extract(Iterable, String...)}
+ */
+private EntityColumns() {
+}
+
+/**
+ * Extract numeric properties of entities
+ * @param entities the entities to extract the properties from, iterated once
+ * @param propertyNames names of the properties to extract
+ * @return columns of the properties in the same order as the entities
+ */
+public static EntityColumns extract(Iterable<Entity> entities, String... propertyNames) {
+	int capacity = entities instanceof Collection ? ((Collection<?>) entities).size() : CAPACITY_DEFAULT;
+	EntityColumns columns = new EntityColumns();
+	Column[] columnArray = new Column[propertyNames.length];
+	for (int i = 0; i < propertyNames.length; i++) {
+		columnArray[i] = new Column(capacity);
+		columns.mColumns.put(propertyNames[i], columnArray[i]);
+	}
+
+	int row = 0;
+	for (Entity entity : entities) {
+		for (int i = 0; i < propertyNames.length; i++) {
+			columnArray[i].set(row, entity.getProperty(propertyNames[i]));
+		}
+		row++;
+	}
+	columns.mSize = row;
+	return columns;
+}
+
+/**
+ * @return number of entities
+ */
+public int size() {
+	return mSize;
+}
+
+/**
+ * @param propertyName name of the property
+ * @return values of the property as integers, 0 where the value is missing
+ * @throws IllegalArgumentException if the property wasn't extracted
+ */
+public int[] getInts(String propertyName) {
+	long[] longs = getColumn(propertyName).mLongs;
+	int[] ints = new int[mSize];
+	for (int i = 0; i < mSize; i++) {
+		ints[i] = (int) longs[i];
+	}
+	return ints;
+}
+
+/**
+ * @param propertyName name of the property
+ * @return values of the property as longs, 0 where the value is missing
+ * @throws IllegalArgumentException if the property wasn't extracted
+ */
+public long[] getLongs(String propertyName) {
+	return Arrays.copyOf(getColumn(propertyName).mLongs, mSize);
+}
+
+/**
+ * @param propertyName name of the property
+ * @return values of the property as floats, 0 where the value is missing
+ * @throws IllegalArgumentException if the property wasn't extracted
+ */
+public float[] getFloats(String propertyName) {
+	double[] doubles = getColumn(propertyName).mDoubles;
+	float[] floats = new float[mSize];
+	for (int i = 0; i < mSize; i++) {
+		floats[i] = (float) doubles[i];
+	}
+	return floats;
+}
+
+/**
+ * @param propertyName name of the property
+ * @return values of the property as doubles, 0 where the value is missing
+ * @throws IllegalArgumentException if the property wasn't extracted
+ */
+public double[] getDoubles(String propertyName) {
+	return Arrays.copyOf(getColumn(propertyName).mDoubles, mSize);
+}
+
+/**
+ * @param propertyName name of the property
+ * @return set bits for the entities where the property is missing or isn't a number
+ * @throws IllegalArgumentException if the property wasn't extracted
+ */
+public BitSet getMissing(String propertyName) {
+	return (BitSet) getColumn(propertyName).mMissing.clone();
+}
+
+/**
+ * @param propertyName name of the property
+ * @return number of entities that have a numeric value of the property
+ * @throws IllegalArgumentException if the property wasn't extracted
+ */
+public int getPresentCount(String propertyName) {
+	return mSize - getColumn(propertyName).mMissing.cardinality();
+}
+
+/**
+ * @param propertyName name of the property
+ * @return the extracted column
+ * @throws IllegalArgumentException if the property wasn't extracted
+ */
+private Column getColumn(String propertyName) {
+	Column column = mColumns.get(propertyName);
+	if (column == null) {
+		throw new IllegalArgumentException("Property " + propertyName + " wasn't extracted");
+	}
+	return column;
+}
+
+/**
+ * Values of one property. Numbers are stored both as long and double so that any primitive type
+ * can be returned without knowing how the property was stored.
+ */
+private static class Column {
+	private long[] mLongs;
+	private double[] mDoubles;
+	private final BitSet mMissing = new BitSet();
+
+	/**
+	 * @param capacity initial number of values
+	 */
+	Column(int capacity) {
+		mLongs = new long[Math.max(capacity, 1)];
+		mDoubles = new double[mLongs.length];
+	}
+
+	/**
+	 * Set the value of an entity
+	 * @param row index of the entity
+	 * @param value the property value, can be anything
+	 */
+	void set(int row, Object value) {
+		if (row == mLongs.length) {
+			mLongs = Arrays.copyOf(mLongs, row * 2);
+			mDoubles = Arrays.copyOf(mDoubles, row * 2);
+		}
+
+		if (DatastoreUtils.isIntegral(value)) {
+			long longValue = ((Number) value).longValue();
+			mLongs[row] = longValue;
+			mDoubles[row] = longValue;
+		} else if (DatastoreUtils.isFloatingPoint(value)) {
+			double doubleValue = ((Number) value).doubleValue();
+			mLongs[row] = (long) doubleValue;
+			mDoubles[row] = doubleValue;
+		} else {
+			mMissing.set(row);
+		}
+	}
+}
+}
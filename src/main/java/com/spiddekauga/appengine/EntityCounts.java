@@ -0,0 +1,364 @@
+package com.spiddekauga.appengine;
+
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Transaction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Counts entities without reading every matching key. Three modes are available:
+ * <ul>
+ * <li>{@link Mode#EXACT} reads the keys of the query, but stops at an upper limit</li>
+ * <li>{@link Mode#APPROXIMATE} reads the datastore statistics, which are updated about once a
+ * day</li>
+ * <li>{@link Mode#MAINTAINED} reads a count that is updated by puts and deletes through {@link
+ * DatastoreUtils}. Has to be enabled per kind with {@link #maintain(String)}</li>
+ * </ul>
+ */
+public class EntityCounts {
+private static final Logger mLogger = Logger.getLogger(EntityCounts.class.getName());
+/** Prefix of the names of the sharded counters that store maintained counts */
+private static final String COUNTER_PREFIX = "DatastoreUtilsCount:";
+/** Default limit when counting exactly */
+private static final int EXACT_LIMIT_DEFAULT = 1000;
+private static final Set<String> mMaintainedKinds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+/**
+ * Count entities using the cheapest mode available. Uses the maintained count if the kind is
+ * maintained, otherwise the statistics if they exist, otherwise an exact count with a limit of
+ * 1000.
+ * @param kind the kind of entities to count
+ * @return number of entities and the mode that counted them
+ */
+public static CountResult count(String kind) {
+	if (mMaintainedKinds.contains(kind)) {
+		return countMaintained(kind);
+	}
+
+	CountResult approximate = countApproximate(kind);
+	if (approximate != null) {
+		return approximate;
+	}
+
+	return countExact(new Query(kind), EXACT_LIMIT_DEFAULT);
+}
+
+/**
+ * Count the entities of a query by reading their keys, but stop at the limit. Reads one key more
+ * than the limit to know if there are more entities.
+ * @param query the query to count the results of, does not need to be keys-only
+ * @param limit maximum number of entities to count
+ * @return number of entities, at most the limit. If {@link CountResult#isLimitReached()} there are
+ * more.
+ */
+public static CountResult countExact(Query query, int limit) {
+	Query keysQuery = DatastoreUtils.copyQuery(query);
+	keysQuery.setKeysOnly();
+	int readLimit = limit < Integer.MAX_VALUE ? limit + 1 : limit;
+	int count = DatastoreUtils.prepare(keysQuery).countEntities(FetchOptions.Builder.withLimit(readLimit));
+	return new CountResult(Math.min(count, limit), Mode.EXACT, count > limit, new Date());
+}
+
+/**
+ * Get the approximate number of entities from the datastore statistics of the current namespace
+ * @param kind the kind of entities to count
+ * @return approximate number of entities and when it was calculated, null if there are no
+ * statistics for the kind
+ */
+public static CountResult countApproximate(String kind) {
+	String namespace = NamespaceManager.get();
+	String statKind = namespace == null || namespace.isEmpty() ? "__Stat_Kind__" : "__Stat_Ns_Kind__";
+	Query query = new Query(statKind).setFilter(new FilterPredicate("kind_name", FilterOperator.EQUAL, kind));
+
+	List<Entity> stats = DatastoreUtils.prepare(query).asList(FetchOptions.Builder.withLimit(1));
+	if (stats.isEmpty()) {
+		return null;
+	}
+
+	Entity stat = stats.get(0);
+	long count = (Long) stat.getProperty("count");
+	Date timestamp = (Date) stat.getProperty("timestamp");
+	return new CountResult(count, Mode.APPROXIMATE, false, timestamp);
+}
+
+/**
+ * Get the maintained count of a kind. Cached for a few seconds like {@link
+ * ShardedCounter#get(String)}.
+ * @param kind the kind of entities to count
+ * @return maintained number of entities
+ * @throws IllegalStateException if the kind isn't maintained
+ */
+public static CountResult countMaintained(String kind) {
+	if (!mMaintainedKinds.contains(kind)) {
+		throw new IllegalStateException("Count of " + kind + " isn't maintained");
+	}
+	return new CountResult(ShardedCounter.get(getCounterName(kind)), Mode.MAINTAINED, false, new Date());
+}
+
+/**
+ * Maintain the count of a kind. All puts and deletes of this kind through {@link DatastoreUtils}
+ * will update the count, which costs an extra get of the written keys. The write is issued once the
+ * get has returned, asynchronous writes don't block the caller while waiting for it. The count is
+ * stored in a {@link ShardedCounter}, so it doesn't limit how often the kind can be written. Call
+ * {@link #rebuild(String)} once to set the count of existing entities.
+ * <p>
+ * Writes in {@link TransactionRunner} check which entities exist in the transaction and are counted
+ * exactly. Other writes check it just before the write, so concurrent writes of the same keys can
+ * make the count approximate.
+ * </p>
+ * @param kind the kind of entities to maintain the count of
+ */
+public static void maintain(String kind) {
+	mMaintainedKinds.add(kind);
+}
+
+/**
+ * Stop maintaining the count of a kind
+ * @param kind the kind of entities to stop maintaining the count of
+ */
+public static void stopMaintaining(String kind) {
+	mMaintainedKinds.remove(kind);
+}
+
+/**
+ * Set the maintained count by counting all entities of the kind. Writes of the kind while
+ * rebuilding can make the count approximate.
+ * @param kind the kind of entities to count
+ * @return number of entities
+ */
+public static long rebuild(String kind) {
+	Query query = new Query(kind).setKeysOnly();
+	long count = DatastoreUtils.prepare(query).countEntities(FetchOptions.Builder.withDefaults());
+	String counterName = getCounterName(kind);
+	ShardedCounter.add(counterName, count - ShardedCounter.getUncached(counterName));
+	return count;
+}
+
+/**
+ * Check which of the entities that will be put are new. Only entities of maintained kinds with
+ * complete keys are checked, with one asynchronous get that the put has to be issued after.
+ * @param entities the entities that will be put
+ * @return change of the maintained counts, null if no entity is of a maintained kind
+ */
+static CountChange getPutChange(List<Entity> entities) {
+	return getPutChange(entities, null, null);
+}
+
+/**
+ * Check which of the entities that will be put in a transaction are new
+ * @param entities the entities that will be put
+ * @param datastore the datastore service of the transaction, null to check outside of a
+ * transaction
+ * @param transaction the transaction, null to check outside of a transaction
+ * @return change of the maintained counts, null if no entity is of a maintained kind
+ */
+static CountChange getPutChange(List<Entity> entities, DatastoreService datastore, Transaction transaction) {
+	if (mMaintainedKinds.isEmpty()) {
+		return null;
+	}
+
+	Map<String, Integer> written = new HashMap<>();
+	List<Key> completeKeys = new ArrayList<>();
+	for (Entity entity : entities) {
+		if (mMaintainedKinds.contains(entity.getKind())) {
+			if (entity.getKey().isComplete()) {
+				completeKeys.add(entity.getKey());
+			}
+			increment(written, entity.getKind(), 1);
+		}
+	}
+
+	return written.isEmpty() ? null : new CountChange(written, completeKeys, datastore, transaction);
+}
+
+/**
+ * Check which of the keys of maintained kinds that will be deleted exist, with one asynchronous get
+ * that the delete has to be issued after
+ * @param keys the keys that will be deleted
+ * @return change of the maintained counts, null if no key is of a maintained kind
+ */
+static CountChange getDeleteChange(List<Key> keys) {
+	return getDeleteChange(keys, null, null);
+}
+
+/**
+ * Check which of the keys that will be deleted in a transaction exist
+ * @param keys the keys that will be deleted
+ * @param datastore the datastore service of the transaction, null to check outside of a
+ * transaction
+ * @param transaction the transaction, null to check outside of a transaction
+ * @return change of the maintained counts, null if no key is of a maintained kind
+ */
+static CountChange getDeleteChange(List<Key> keys, DatastoreService datastore, Transaction transaction) {
+	if (mMaintainedKinds.isEmpty()) {
+		return null;
+	}
+
+	List<Key> maintainedKeys = new ArrayList<>();
+	for (Key key : keys) {
+		if (mMaintainedKinds.contains(key.getKind())) {
+			maintainedKeys.add(key);
+		}
+	}
+
+	return maintainedKeys.isEmpty() ? null : new CountChange(new HashMap<String, Integer>(), maintainedKeys, datastore, transaction);
+}
+
+/**
+ * Add to a count in a map
+ * @param counts all counts
+ * @param kind the kind to add to
+ * @param delta how much to add
+ */
+private static void increment(Map<String, Integer> counts, String kind, int delta) {
+	Integer count = counts.get(kind);
+	counts.put(kind, count == null ? delta : count + delta);
+}
+
+/**
+ * @param kind the kind that is counted
+ * @return name of the sharded counter with the maintained count
+ */
+private static String getCounterName(String kind) {
+	return COUNTER_PREFIX + kind;
+}
+
+/**
+ * How a write changes the maintained counts. Entities that existed before the write are subtracted
+ * from the written entities.
+ */
+static class CountChange {
+	private final Map<String, Integer> mWritten;
+	/** Entities that existed before the write */
+	private final Future<Map<Key, Entity>> mExisting;
+
+	/**
+	 * @param written number of put entities per maintained kind
+	 * @param keys keys to check if they existed before the write
+	 * @param datastore the datastore service of the transaction, null to check outside of a
+	 * transaction
+	 * @param transaction the transaction, null to check outside of a transaction
+	 */
+	private CountChange(Map<String, Integer> written, List<Key> keys, DatastoreService datastore, Transaction transaction) {
+		mWritten = written;
+		if (keys.isEmpty()) {
+			mExisting = new CompletedFuture<>(Collections.<Key, Entity>emptyMap());
+		} else if (datastore != null) {
+			mExisting = new CompletedFuture<>(datastore.get(transaction, keys));
+		} else {
+			// Always strongly consistent, whatever the current profile is
+			mExisting = DatastoreProfile.DEFAULT.getAsyncDatastore().get(keys);
+		}
+	}
+
+	/**
+	 * @return future that is done when it's known which entities existed, the write has to be
+	 * issued after it
+	 */
+	Future<?> getExisting() {
+		return mExisting;
+	}
+
+	/**
+	 * Update the maintained counts after the write succeeded. Failures are logged, the write has
+	 * already been done.
+	 */
+	void apply() {
+		try {
+			Map<String, Integer> counts = new HashMap<>(mWritten);
+			for (Key key : DatastoreUtils.waitFor(mExisting).keySet()) {
+				increment(counts, key.getKind(), -1);
+			}
+
+			for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+				if (entry.getValue() != 0) {
+					ShardedCounter.add(getCounterName(entry.getKey()), entry.getValue());
+				}
+			}
+		} catch (RuntimeException e) {
+			mLogger.log(Level.WARNING, "Failed to update maintained counts, rebuild them to correct them", e);
+		}
+	}
+}
+
+/**
+ * How a count was produced
+ */
+public enum Mode {
+	/** Counted by reading the keys, up to a limit */
+	EXACT,
+	/** Read from the datastore statistics */
+	APPROXIMATE,
+	/** Read from the count maintained by writes through DatastoreUtils */
+	MAINTAINED,
+}
+
+/**
+ * Result of a count
+ */
+public static class CountResult {
+	private final long mCount;
+	private final Mode mMode;
+	private final boolean mLimitReached;
+	private final Date mTimestamp;
+
+	/**
+	 * @param count number of entities
+	 * @param mode how the count was produced
+	 * @param limitReached true if there are more entities than the limit of an exact count
+	 * @param timestamp when the count was calculated
+	 */
+	private CountResult(long count, Mode mode, boolean limitReached, Date timestamp) {
+		mCount = count;
+		mMode = mode;
+		mLimitReached = limitReached;
+		mTimestamp = timestamp;
+	}
+
+	/**
+	 * @return number of entities
+	 */
+	public long getCount() {
+		return mCount;
+	}
+
+	/**
+	 * @return how the count was produced
+	 */
+	public Mode getMode() {
+		return mMode;
+	}
+
+	/**
+	 * @return true if there are more entities than the limit of an exact count
+	 */
+	public boolean isLimitReached() {
+		return mLimitReached;
+	}
+
+	/**
+	 * @return when the count was calculated. For approximate counts this is when the statistics were
+	 * updated
+	 */
+	public Date getTimestamp() {
+		return mTimestamp;
+	}
+}
+}
@@ -0,0 +1,521 @@
+package com.spiddekauga.appengine;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.spiddekauga.utils.IIdStore;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Converts entities to and from objects of classes annotated with {@link MappedEntity}. The
+ * annotations of a class are read once and every property gets a precompiled accessor, so
+ * converting doesn't use reflection. Primitive fields are read and written without boxing, only
+ * the values stored in the entity are boxed.
+ * <p>
+ * The class needs a constructor without arguments, it doesn't need to be public. Fields annotated
+ * with {@link MappedProperty} are stored as properties and the field annotated with {@link
+ * MappedKey} holds the key of the entity.
+ * </p>
+ * @param <T> the mapped class
+ */
+public class EntityMapper<T> {
+private static final ClassValue<EntityMapper<?>> mMappers = new ClassValue<EntityMapper<?>>() {
+	@Override
+	protected EntityMapper<?> computeValue(Class<?> type) {
+		return new EntityMapper<>(type);
+	}
+};
+private final Class<T> mClass;
+private final String mKind;
+/** Type ()Object */
+private final MethodHandle mConstructor;
+/** Type (Object)Object, null if the class doesn't have a key field */
+private final MethodHandle mKeyGetter;
+/** Type (Object,Object)void, null if the class doesn't have a key field */
+private final MethodHandle mKeySetter;
+private final PropertyMapper[] mProperties;
+
+/**
+ * Get the mapper of a class. Mappers are created once per class.
+ * @param clazz the class to map, needs to be annotated with {@link MappedEntity}
+ * @param <T> the mapped class
+ * @return mapper of the class
+ * @throws IllegalArgumentException if the class isn't annotated, doesn't have a constructor
+ * without arguments or has properties of unsupported types
+ */
+@SuppressWarnings("unchecked")
+public static <T> EntityMapper<T> get(Class<T> clazz) {
+	return (EntityMapper<T>) mMappers.get(clazz);
+}
+
+/**
+ * Read the annotations of the class and create the accessors
+ * @param clazz the class to map
+ */
+private EntityMapper(Class<T> clazz) {
+	MappedEntity mappedEntity = clazz.getAnnotation(MappedEntity.class);
+	if (mappedEntity == null) {
+		throw new IllegalArgumentException(clazz.getName() + " isn't annotated with @MappedEntity");
+	}
+	mClass = clazz;
+	mKind = mappedEntity.kind().isEmpty() ? clazz.getSimpleName() : mappedEntity.kind();
+	MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+	try {
+		Constructor<T> constructor = clazz.getDeclaredConstructor();
+		constructor.setAccessible(true);
+		mConstructor = lookup.unreflectConstructor(constructor).asType(MethodType.methodType(Object.class));
+	} catch (NoSuchMethodException | IllegalAccessException e) {
+		throw new IllegalArgumentException(clazz.getName() + " doesn't have a constructor without arguments", e);
+	}
+
+	MethodHandle keyGetter = null;
+	MethodHandle keySetter = null;
+	List<PropertyMapper> properties = new ArrayList<>();
+	for (Class<?> current = clazz; current != null && current != Object.class; current = current.getSuperclass()) {
+		for (Field field : current.getDeclaredFields()) {
+			if (Modifier.isStatic(field.getModifiers())) {
+				continue;
+			}
+
+			MappedProperty mappedProperty = field.getAnnotation(MappedProperty.class);
+			boolean isKey = field.isAnnotationPresent(MappedKey.class);
+			if (mappedProperty == null && !isKey) {
+				continue;
+			}
+
+			field.setAccessible(true);
+			MethodHandle getter;
+			MethodHandle setter;
+			try {
+				getter = lookup.unreflectGetter(field);
+				setter = lookup.unreflectSetter(field);
+			} catch (IllegalAccessException e) {
+				throw new IllegalArgumentException("Can't access " + field, e);
+			}
+
+			if (isKey) {
+				if (field.getType() != Key.class) {
+					throw new IllegalArgumentException("@MappedKey field " + field + " isn't a Key");
+				}
+				keyGetter = getter.asType(MethodType.methodType(Object.class, Object.class));
+				keySetter = setter.asType(MethodType.methodType(void.class, Object.class, Object.class));
+			} else {
+				String name = mappedProperty.name().isEmpty() ? field.getName() : mappedProperty.name();
+				properties.add(createPropertyMapper(field, name, mappedProperty.indexed(), getter, setter));
+			}
+		}
+	}
+
+	mKeyGetter = keyGetter;
+	mKeySetter = keySetter;
+	mProperties = properties.toArray(new PropertyMapper[properties.size()]);
+}
+
+/**
+ * Create the accessor of a property
+ * @param field the mapped field
+ * @param name name of the property
+ * @param indexed true if the property is indexed
+ * @param getter getter of the field
+ * @param setter setter of the field
+ * @return accessor of the property
+ * @throws IllegalArgumentException if the type of the field isn't supported
+ */
+@SuppressWarnings("unchecked")
+private static PropertyMapper createPropertyMapper(Field field, String name, boolean indexed, MethodHandle getter, MethodHandle setter) {
+	Class<?> type = field.getType();
+	PropertyType propertyType;
+	IdStoreDecoder<?> decoder = null;
+	if (type == int.class) {
+		propertyType = PropertyType.INT;
+	} else if (type == long.class) {
+		propertyType = PropertyType.LONG;
+	} else if (type == float.class) {
+		propertyType = PropertyType.FLOAT;
+	} else if (type == double.class) {
+		propertyType = PropertyType.DOUBLE;
+	} else if (type == boolean.class) {
+		propertyType = PropertyType.BOOLEAN;
+	} else if (type == Integer.class) {
+		propertyType = PropertyType.INTEGER_OBJECT;
+	} else if (type == Float.class) {
+		propertyType = PropertyType.FLOAT_OBJECT;
+	} else if (type == UUID.class) {
+		propertyType = PropertyType.UUID;
+	} else if (type == byte[].class) {
+		propertyType = PropertyType.BYTE_ARRAY;
+		indexed = false;
+	} else if (IIdStore.class.isAssignableFrom(type)) {
+		propertyType = PropertyType.ID_STORE;
+		decoder = IdStoreDecoder.get((Class<? extends IIdStore>) type);
+	} else if (type == Long.class || type == Double.class || type == Boolean.class || type == String.class || type == Date.class || type == Key.class) {
+		propertyType = PropertyType.OBJECT;
+	} else {
+		throw new IllegalArgumentException("Unsupported type of @MappedProperty field " + field);
+	}
+	return new PropertyMapper(name, indexed, propertyType, getter, setter, decoder);
+}
+
+/**
+ * @return kind of the mapped entities
+ */
+public String getKind() {
+	return mKind;
+}
+
+/**
+ * Convert an object to a new entity. Uses the key of the object if it has one.
+ * @param object the object to convert
+ * @return new entity with all mapped properties of the object
+ */
+public Entity toEntity(T object) {
+	Key key = getKey(object);
+	Entity entity = key != null ? new Entity(key) : new Entity(mKind);
+	copyToEntity(object, entity);
+	return entity;
+}
+
+/**
+ * Convert an object to a new entity with a parent. Only used when the object doesn't have a key.
+ * @param object the object to convert
+ * @param parent parent of the new entity
+ * @return new entity with all mapped properties of the object
+ */
+public Entity toEntity(T object, Key parent) {
+	Key key = getKey(object);
+	Entity entity = key != null ? new Entity(key) : new Entity(mKind, parent);
+	copyToEntity(object, entity);
+	return entity;
+}
+
+/**
+ * Set all mapped properties of an object in an existing entity. Properties that are null in the
+ * object are removed from the entity.
+ * @param object the object to read the properties from
+ * @param entity the entity to set the properties in
+ */
+public void copyToEntity(T object, Entity entity) {
+	for (PropertyMapper property : mProperties) {
+		property.toEntity(object, entity);
+	}
+}
+
+/**
+ * Convert several objects to new entities
+ * @param objects the objects to convert
+ * @return new entities in the same order as the objects
+ */
+public List<Entity> toEntities(Collection<T> objects) {
+	List<Entity> entities = new ArrayList<>(objects.size());
+	for (T object : objects) {
+		entities.add(toEntity(object));
+	}
+	return entities;
+}
+
+/**
+ * Convert an entity to a new object
+ * @param entity the entity to convert
+ * @return new object with the key and mapped properties of the entity
+ */
+public T fromEntity(Entity entity) {
+	T object = newInstance();
+	copyFromEntity(entity, object);
+	return object;
+}
+
+/**
+ * Set the key and all mapped properties of an entity in an existing object. Fields of properties
+ * that are missing in the entity are left unchanged.
+ * @param entity the entity to read the properties from
+ * @param object the object to set the properties in
+ */
+public void copyFromEntity(Entity entity, T object) {
+	if (mKeySetter != null) {
+		try {
+			mKeySetter.invokeExact((Object) object, (Object) entity.getKey());
+		} catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+	for (PropertyMapper property : mProperties) {
+		property.fromEntity(entity, object);
+	}
+}
+
+/**
+ * Convert several entities to new objects
+ * @param entities the entities to convert
+ * @return new objects in the same order as the entities
+ */
+public List<T> fromEntities(Iterable<Entity> entities) {
+	List<T> objects = entities instanceof Collection ? new ArrayList<T>(((Collection<?>) entities).size()) : new ArrayList<T>();
+	for (Entity entity : entities) {
+		objects.add(fromEntity(entity));
+	}
+	return objects;
+}
+
+/**
+ * @param object the object to get the key from
+ * @return key of the object, null if the class doesn't have a key field or it isn't set
+ */
+private Key getKey(T object) {
+	if (mKeyGetter == null) {
+		return null;
+	}
+	try {
+		return (Key) (Object) mKeyGetter.invokeExact((Object) object);
+	} catch (Throwable e) {
+		throw rethrow(e);
+	}
+}
+
+/**
+ * @return new instance of the mapped class
+ */
+private T newInstance() {
+	try {
+		return mClass.cast((Object) mConstructor.invokeExact());
+	} catch (Throwable e) {
+		throw rethrow(e);
+	}
+}
+
+/**
+ * Rethrow unchecked exceptions and wrap checked exceptions thrown by an accessor
+ * @param e the thrown exception
+ * @return exception to throw
+ */
+private static RuntimeException rethrow(Throwable e) {
+	if (e instanceof RuntimeException) {
+		return (RuntimeException) e;
+	} else if (e instanceof Error) {
+		throw (Error) e;
+	}
+	return new IllegalStateException(e);
+}
+
+/**
+ * Set a property in an entity
+ * @param entity the entity to set the property in
+ * @param name name of the property
+ * @param indexed true if the property is indexed
+ * @param value value of the property, removes the property if null
+ */
+private static void setProperty(Entity entity, String name, boolean indexed, Object value) {
+	if (value == null) {
+		entity.removeProperty(name);
+	} else if (indexed) {
+		entity.setProperty(name, value);
+	} else {
+		entity.setUnindexedProperty(name, value);
+	}
+}
+
+/**
+ * How a field is stored
+ */
+private enum PropertyType {
+	/** int field stored as a long */
+	INT,
+	/** long field */
+	LONG,
+	/** float field stored as a double */
+	FLOAT,
+	/** double field */
+	DOUBLE,
+	/** boolean field */
+	BOOLEAN,
+	/** Integer field stored as a long */
+	INTEGER_OBJECT,
+	/** Float field stored as a double */
+	FLOAT_OBJECT,
+	/** Field stored as it is */
+	OBJECT,
+	/** UUID field stored the same way as {@link DatastoreUtils#setProperty(Entity, String, UUID)} */
+	UUID,
+	/** IIdStore field stored as its id */
+	ID_STORE,
+	/** byte[] field stored as a short blob or blob */
+	BYTE_ARRAY,
+}
+
+/**
+ * Reads and writes one property. A single class with a switch instead of one class per type keeps
+ * the calls from the mapper monomorphic.
+ */
+private static final class PropertyMapper {
+	private final String mName;
+	private final boolean mIndexed;
+	private final PropertyType mType;
+	/** Getter with a primitive return type for primitive fields, otherwise (Object)Object */
+	private final MethodHandle mGetter;
+	/** Setter with a primitive argument for primitive fields, otherwise (Object,Object)void */
+	private final MethodHandle mSetter;
+	/** Decoder of IIdStore fields, otherwise null */
+	private final IdStoreDecoder<?> mDecoder;
+
+	/**
+	 * @param name name of the property
+	 * @param indexed true if the property is indexed
+	 * @param type how the field is stored
+	 * @param getter getter of the field
+	 * @param setter setter of the field
+	 * @param decoder decoder of IIdStore fields, null for other types
+	 */
+	PropertyMapper(String name, boolean indexed, PropertyType type, MethodHandle getter, MethodHandle setter, IdStoreDecoder<?> decoder) {
+		mName = name;
+		mIndexed = indexed;
+		mType = type;
+		mDecoder = decoder;
+
+		Class<?> fieldType;
+		switch (type) {
+		case INT:
+			fieldType = int.class;
+			break;
+		case LONG:
+			fieldType = long.class;
+			break;
+		case FLOAT:
+			fieldType = float.class;
+			break;
+		case DOUBLE:
+			fieldType = double.class;
+			break;
+		case BOOLEAN:
+			fieldType = boolean.class;
+			break;
+		default:
+			fieldType = Object.class;
+			break;
+		}
+		mGetter = getter.asType(MethodType.methodType(fieldType, Object.class));
+		mSetter = setter.asType(MethodType.methodType(void.class, Object.class, fieldType));
+	}
+
+	/**
+	 * Set the property in an entity
+	 * @param object the object to read the field from
+	 * @param entity the entity to set the property in
+	 */
+	void toEntity(Object object, Entity entity) {
+		try {
+			Object value;
+			switch (mType) {
+			case INT:
+				value = (long) (int) mGetter.invokeExact(object);
+				break;
+			case LONG:
+				value = (long) mGetter.invokeExact(object);
+				break;
+			case FLOAT:
+				value = (double) (float) mGetter.invokeExact(object);
+				break;
+			case DOUBLE:
+				value = (double) mGetter.invokeExact(object);
+				break;
+			case BOOLEAN:
+				value = (boolean) mGetter.invokeExact(object) ? Boolean.TRUE : Boolean.FALSE;
+				break;
+			default:
+				value = (Object) mGetter.invokeExact(object);
+				if (value != null) {
+					value = toProperty(value);
+				}
+				break;
+			}
+			setProperty(entity, mName, mIndexed, value);
+		} catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	/**
+	 * Set the field of an object if the entity has the property
+	 * @param entity the entity to read the property from
+	 * @param object the object to set the field in
+	 */
+	void fromEntity(Entity entity, Object object) {
+		Object value = entity.getProperty(mName);
+		if (value == null) {
+			return;
+		}
+
+		try {
+			switch (mType) {
+			case INT:
+				mSetter.invokeExact(object, ((Number) value).intValue());
+				break;
+			case LONG:
+				mSetter.invokeExact(object, ((Number) value).longValue());
+				break;
+			case FLOAT:
+				mSetter.invokeExact(object, ((Number) value).floatValue());
+				break;
+			case DOUBLE:
+				mSetter.invokeExact(object, ((Number) value).doubleValue());
+				break;
+			case BOOLEAN:
+				mSetter.invokeExact(object, ((Boolean) value).booleanValue());
+				break;
+			default:
+				mSetter.invokeExact(object, fromProperty(value));
+				break;
+			}
+		} catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	/**
+	 * @param value value of an object field, not null
+	 * @return value to store in the entity
+	 */
+	private Object toProperty(Object value) {
+		switch (mType) {
+		case UUID:
+			return DatastoreUtils.toUuidProperty((UUID) value);
+		case ID_STORE:
+			return (long) ((IIdStore) value).toId();
+		case BYTE_ARRAY:
+			return DatastoreUtils.toByteArrayProperty((byte[]) value);
+		default:
+			return value;
+		}
+	}
+
+	/**
+	 * @param value property value of an object field, not null
+	 * @return value to set in the field
+	 */
+	private Object fromProperty(Object value) {
+		switch (mType) {
+		case INTEGER_OBJECT:
+			return ((Number) value).intValue();
+		case FLOAT_OBJECT:
+			return ((Number) value).floatValue();
+		case UUID:
+			return DatastoreUtils.fromUuidProperty(value);
+		case ID_STORE:
+			return mDecoder.fromId(((Number) value).intValue());
+		case BYTE_ARRAY:
+			return DatastoreUtils.fromByteArrayProperty(value);
+		default:
+			return value;
+		}
+	}
+}
+}
@@ -0,0 +1,201 @@
+package com.spiddekauga.appengine;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Memcache backed second-level cache of entities used by {@link DatastoreUtils}. Caching is enabled
+ * per kind. Entities are stored in their protocol buffer form, entities that are too large for
+ * memcache aren't cached. Reads from the datastore add entities to the cache and puts and deletes
+ * through {@link DatastoreUtils} remove them.
+ */
+public class EntityMemcache {
+private static final Logger mLogger = Logger.getLogger(EntityMemcache.class.getName());
+/** Memcache namespace of all cached entities */
+private static final String NAMESPACE = "DatastoreUtils.Entity";
+/** Maximum size of a cached entity, memcache items are limited to 1 MB including the key */
+private static final int ENTITY_BYTES_MAX = 1000 * 1000 - 1024;
+/** How long a deleted entity can't be added again, prevents adding stale reads after a write */
+private static final long INVALIDATE_LOCK_MILLIS = 1000;
+private static final MemcacheService mMemcache = MemcacheServiceFactory.getMemcacheService(NAMESPACE);
+/** Expiration time in seconds of all enabled kinds */
+private static final Map<String, Integer> mKinds = new ConcurrentHashMap<>();
+private static final AtomicLong mHits = new AtomicLong();
+private static final AtomicLong mMisses = new AtomicLong();
+
+/**
+ * Enable caching of a kind
+ * @param kind the kind of entities to cache
+ * @param expirationSeconds how long an entity is cached
+ */
+public static void enable(String kind, int expirationSeconds) {
+	if (expirationSeconds <= 0) {
+		throw new IllegalArgumentException("expirationSeconds needs to be positive");
+	}
+	mKinds.put(kind, expirationSeconds);
+}
+
+/**
+ * Disable caching of a kind. Already cached entities are not removed but will not be read.
+ * @param kind the kind of entities to stop caching
+ */
+public static void disable(String kind) {
+	mKinds.remove(kind);
+}
+
+/**
+ * @param key key of the entity
+ * @return true if entities of this kind are cached
+ */
+static boolean isEnabled(Key key) {
+	return !mKinds.isEmpty() && mKinds.containsKey(key.getKind());
+}
+
+/**
+ * Get a cached entity
+ * @param key key of the entity
+ * @return cached entity, null if not cached or caching isn't enabled for the kind
+ */
+static Entity get(Key key) {
+	if (!isEnabled(key)) {
+		return null;
+	}
+
+	Entity entity = toEntity(mMemcache.get(KeyFactory.keyToString(key)));
+	if (entity != null) {
+		mHits.incrementAndGet();
+	} else {
+		mMisses.incrementAndGet();
+	}
+	return entity;
+}
+
+/**
+ * Get several cached entities in one call
+ * @param keys keys of the entities
+ * @return all cached entities. Keys that aren't cached or of kinds that aren't enabled are skipped
+ */
+static Map<Key, Entity> getAll(Collection<Key> keys) {
+	Map<String, Key> cacheKeys = new HashMap<>();
+	for (Key key : keys) {
+		if (isEnabled(key)) {
+			cacheKeys.put(KeyFactory.keyToString(key), key);
+		}
+	}
+
+	Map<Key, Entity> entities = new HashMap<>();
+	if (cacheKeys.isEmpty()) {
+		return entities;
+	}
+
+	Map<String, Object> cached = mMemcache.getAll(cacheKeys.keySet());
+	for (Map.Entry<String, Object> entry : cached.entrySet()) {
+		Entity entity = toEntity(entry.getValue());
+		if (entity != null) {
+			entities.put(cacheKeys.get(entry.getKey()), entity);
+		}
+	}
+	mHits.addAndGet(entities.size());
+	mMisses.addAndGet(cacheKeys.size() - entities.size());
+	return entities;
+}
+
+/**
+ * Cache entities that were read from the datastore. Entities of kinds that aren't enabled are
+ * skipped. Doesn't replace already cached entities.
+ * @param entities the entities to cache
+ */
+static void addAll(Collection<Entity> entities) {
+	if (mKinds.isEmpty()) {
+		return;
+	}
+
+	// Group by expiration
+	Map<Integer, Map<String, byte[]>> expirationGroups = new HashMap<>();
+	for (Entity entity : entities) {
+		Integer expiration = mKinds.get(entity.getKind());
+		if (expiration != null) {
+			byte[] bytes = EntityTranslator.convertToPb(entity).toByteArray();
+			if (bytes.length <= ENTITY_BYTES_MAX) {
+				Map<String, byte[]> group = expirationGroups.get(expiration);
+				if (group == null) {
+					group = new HashMap<>();
+					expirationGroups.put(expiration, group);
+				}
+				group.put(KeyFactory.keyToString(entity.getKey()), bytes);
+			}
+		}
+	}
+
+	for (Map.Entry<Integer, Map<String, byte[]>> entry : expirationGroups.entrySet()) {
+		Expiration expiration = Expiration.byDeltaSeconds(entry.getKey());
+		mMemcache.putAll(entry.getValue(), expiration, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+	}
+}
+
+/**
+ * Remove entities from the cache after they have been written
+ * @param keys keys of the entities that were written
+ */
+static void invalidateAll(Collection<Key> keys) {
+	if (mKinds.isEmpty()) {
+		return;
+	}
+
+	List<String> cacheKeys = new ArrayList<>();
+	for (Key key : keys) {
+		if (isEnabled(key)) {
+			cacheKeys.add(KeyFactory.keyToString(key));
+		}
+	}
+
+	if (!cacheKeys.isEmpty()) {
+		mMemcache.deleteAll(cacheKeys, INVALIDATE_LOCK_MILLIS);
+	}
+}
+
+/**
+ * Convert a cached value to an entity
+ * @param value the cached value
+ * @return the entity, null if the value isn't a cached entity
+ */
+private static Entity toEntity(Object value) {
+	if (value instanceof byte[]) {
+		try {
+			return EntityTranslator.createFromPbBytes((byte[]) value);
+		} catch (IllegalArgumentException e) {
+			mLogger.warning("Failed to read cached entity: " + e.getMessage());
+		}
+	}
+	return null;
+}
+
+/**
+ * @return number of reads that were served from memcache
+ */
+public static long getHitCount() {
+	return mHits.get();
+}
+
+/**
+ * @return number of reads of enabled kinds that weren't in memcache
+ */
+public static long getMissCount() {
+	return mMisses.get();
+}
+}
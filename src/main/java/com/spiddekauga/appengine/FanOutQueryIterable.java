@@ -0,0 +1,553 @@
+package com.spiddekauga.appengine;
+
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.datastore.Category;
+import com.google.appengine.api.datastore.Email;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.datastore.IMHandle;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Link;
+import com.google.appengine.api.datastore.PhoneNumber;
+import com.google.appengine.api.datastore.PostalAddress;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilter;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.Query.SortPredicate;
+import com.google.appengine.api.datastore.Rating;
+import com.google.appengine.api.datastore.ShortBlob;
+import com.google.appengine.api.users.User;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Runs several sub-queries concurrently and merges their results. The results are merged in the
+ * sort order of the query, or in key order if the query isn't sorted, which is the order the
+ * datastore returns them in. Entities that match several sub-queries are only returned once.
+ * <p>
+ * The sub-queries are started when the first entity is requested, at most {@link
+ * #SUB_QUERIES_IN_FLIGHT_MAX} at the same time. The merge needs the first entity of every
+ * sub-query before it can return anything, so the first batches are kept small when there are many
+ * sub-queries.
+ * </p>
+ * <p>
+ * Use {@link #split(Query, Collection)} to split IN filters, OR filters and several ancestors into
+ * sub-queries that only use AND and EQUAL.
+ * </p>
+ */
+class FanOutQueryIterable implements Iterable<Entity> {
+/** Maximum number of sub-queries a query can be split into */
+static final int SUB_QUERIES_MAX = 1000;
+/** Maximum number of sub-queries that are started at the same time */
+private static final int SUB_QUERIES_IN_FLIGHT_MAX = 10;
+/** Number of entities each sub-query fetches in each batch */
+private static final int CHUNK_SIZE = 50;
+/** Number of entities the first batches of all sub-queries together fetch at most */
+private static final int FIRST_BATCHES_SIZE_MAX = 1000;
+private final List<PreparedQuery> mQueries;
+private final List<SortPredicate> mSortPredicates;
+
+/**
+ * @param queries sub-queries prepared by the async datastore service
+ * @param sortPredicates sort orders of the sub-queries, empty if not sorted
+ */
+FanOutQueryIterable(List<PreparedQuery> queries, List<SortPredicate> sortPredicates) {
+	mQueries = queries;
+	mSortPredicates = sortPredicates;
+}
+
+/**
+ * Checks if a query has filters that should be split into sub-queries
+ * @param query the query to check
+ * @return true if the query has an IN or OR filter and isn't a projection query
+ */
+static boolean isSplittable(Query query) {
+	return query.getProjections().isEmpty() && hasSplittableFilter(query.getFilter());
+}
+
+/**
+ * @param filter the filter to check, can be null
+ * @return true if the filter contains an IN or OR filter
+ */
+private static boolean hasSplittableFilter(Filter filter) {
+	if (filter instanceof FilterPredicate) {
+		return ((FilterPredicate) filter).getOperator() == FilterOperator.IN;
+	} else if (filter instanceof CompositeFilter) {
+		CompositeFilter compositeFilter = (CompositeFilter) filter;
+		if (compositeFilter.getOperator() == CompositeFilterOperator.OR) {
+			return true;
+		}
+		for (Filter subFilter : compositeFilter.getSubFilters()) {
+			if (hasSplittableFilter(subFilter)) {
+				return true;
+			}
+		}
+	}
+	return false;
+}
+
+/**
+ * Split a query into sub-queries without IN and OR filters
+ * @param query the query to split. Sort orders and the namespace are kept. Keys-only is kept
+ * unless the query is sorted by a property, as the merge needs the property values.
+ * @param ancestors run the sub-queries for each of these ancestors, null to use the ancestor of the
+ * query
+ * @return all sub-queries
+ * @throws IllegalArgumentException if the query would be split into more than {@link
+ * #SUB_QUERIES_MAX} sub-queries
+ */
+static List<Query> split(Query query, Collection<Key> ancestors) {
+	List<List<FilterPredicate>> conjunctions = toConjunctions(query.getFilter());
+	if (ancestors == null) {
+		ancestors = Collections.singletonList(query.getAncestor());
+	}
+
+	int subQueryCount = conjunctions.size() * ancestors.size();
+	if (subQueryCount > SUB_QUERIES_MAX) {
+		throw new IllegalArgumentException("Query would be split into " + subQueryCount + " sub-queries, maximum is " + SUB_QUERIES_MAX);
+	}
+
+	boolean keysOnly = query.isKeysOnly();
+	for (SortPredicate sortPredicate : query.getSortPredicates()) {
+		if (!Entity.KEY_RESERVED_PROPERTY.equals(sortPredicate.getPropertyName())) {
+			keysOnly = false;
+		}
+	}
+
+	List<Query> queries = new ArrayList<>(subQueryCount);
+	String namespace = NamespaceManager.get();
+	try {
+		NamespaceManager.set(query.getNamespace());
+		for (Key ancestor : ancestors) {
+			for (List<FilterPredicate> conjunction : conjunctions) {
+				Query subQuery = new Query(query.getKind(), ancestor);
+				if (conjunction.size() == 1) {
+					subQuery.setFilter(conjunction.get(0));
+				} else if (conjunction.size() > 1) {
+					subQuery.setFilter(new CompositeFilter(CompositeFilterOperator.AND, new ArrayList<Filter>(conjunction)));
+				}
+				for (SortPredicate sortPredicate : query.getSortPredicates()) {
+					subQuery.addSort(sortPredicate.getPropertyName(), sortPredicate.getDirection());
+				}
+				if (keysOnly) {
+					subQuery.setKeysOnly();
+				}
+				queries.add(subQuery);
+			}
+		}
+	} finally {
+		NamespaceManager.set(namespace);
+	}
+	return queries;
+}
+
+/**
+ * Convert a filter to an OR of ANDs, where IN filters are converted to an OR of EQUAL filters
+ * @param filter the filter to convert, can be null
+ * @return list of conjunctions, at least one
+ */
+private static List<List<FilterPredicate>> toConjunctions(Filter filter) {
+	List<List<FilterPredicate>> conjunctions = new ArrayList<>();
+
+	if (filter == null) {
+		conjunctions.add(new ArrayList<FilterPredicate>());
+	} else if (filter instanceof FilterPredicate) {
+		FilterPredicate predicate = (FilterPredicate) filter;
+		if (predicate.getOperator() == FilterOperator.IN) {
+			for (Object value : new HashSet<>((Collection<?>) predicate.getValue())) {
+				List<FilterPredicate> conjunction = new ArrayList<>();
+				conjunction.add(new FilterPredicate(predicate.getPropertyName(), FilterOperator.EQUAL, value));
+				conjunctions.add(conjunction);
+			}
+		} else {
+			List<FilterPredicate> conjunction = new ArrayList<>();
+			conjunction.add(predicate);
+			conjunctions.add(conjunction);
+		}
+	} else if (filter instanceof CompositeFilter) {
+		CompositeFilter compositeFilter = (CompositeFilter) filter;
+		if (compositeFilter.getOperator() == CompositeFilterOperator.OR) {
+			for (Filter subFilter : compositeFilter.getSubFilters()) {
+				conjunctions.addAll(toConjunctions(subFilter));
+			}
+		} else {
+			// AND: cross product of the conjunctions of all sub-filters
+			conjunctions.add(new ArrayList<FilterPredicate>());
+			for (Filter subFilter : compositeFilter.getSubFilters()) {
+				List<List<FilterPredicate>> subConjunctions = toConjunctions(subFilter);
+				List<List<FilterPredicate>> product = new ArrayList<>(conjunctions.size() * subConjunctions.size());
+				for (List<FilterPredicate> conjunction : conjunctions) {
+					for (List<FilterPredicate> subConjunction : subConjunctions) {
+						List<FilterPredicate> combined = new ArrayList<>(conjunction);
+						combined.addAll(subConjunction);
+						product.add(combined);
+					}
+				}
+				if (product.size() > SUB_QUERIES_MAX) {
+					throw new IllegalArgumentException("Query would be split into more than " + SUB_QUERIES_MAX + " sub-queries");
+				}
+				conjunctions = product;
+			}
+		}
+	} else {
+		throw new IllegalArgumentException("Unknown filter type: " + filter.getClass().getName());
+	}
+
+	return conjunctions;
+}
+
+@Override
+public Iterator<Entity> iterator() {
+	return new MergingIterator(mQueries, new EntityComparator(mSortPredicates));
+}
+
+/**
+ * Merges the results of all sub-queries in the sort order of the query, or in key order if the
+ * query isn't sorted. The sub-queries are started when the first entity is requested and the
+ * merge needs the first entity of every sub-query before it can return anything. Entities are
+ * compared by their sort values and key, so an entity that matches several sub-queries is returned
+ * right after itself and only the key of the last returned entity is kept to skip it.
+ */
+private static class MergingIterator implements Iterator<Entity> {
+	private final List<PreparedQuery> mQueries;
+	private final Comparator<Entity> mComparator;
+	private PriorityQueue<Head> mHeads = null;
+	private Key mLastKey = null;
+	private Entity mNext = null;
+
+	/**
+	 * @param queries all sub-queries
+	 * @param comparator sort order of the sub-queries
+	 */
+	MergingIterator(List<PreparedQuery> queries, Comparator<Entity> comparator) {
+		mQueries = queries;
+		mComparator = comparator;
+	}
+
+	/**
+	 * Start the sub-queries and read their first entities. At most {@link #SUB_QUERIES_IN_FLIGHT_MAX}
+	 * sub-queries wait for their first batch at the same time, the next one is started as soon as
+	 * the oldest one has its first entity. The first batches are kept small when there are many
+	 * sub-queries so that at most about {@link #FIRST_BATCHES_SIZE_MAX} entities are buffered.
+	 */
+	private void startQueries() {
+		mHeads = new PriorityQueue<>(Math.max(1, mQueries.size()), new Comparator<Head>() {
+			@Override
+			public int compare(Head left, Head right) {
+				return mComparator.compare(left.mEntity, right.mEntity);
+			}
+		});
+
+		int prefetchSize = Math.max(1, Math.min(CHUNK_SIZE, FIRST_BATCHES_SIZE_MAX / Math.max(1, mQueries.size())));
+		FetchOptions fetchOptions = FetchOptions.Builder.withChunkSize(CHUNK_SIZE).prefetchSize(prefetchSize);
+		Iterator<PreparedQuery> queries = mQueries.iterator();
+		LinkedList<Iterator<Entity>> started = new LinkedList<>();
+		while (queries.hasNext() || !started.isEmpty()) {
+			while (started.size() < SUB_QUERIES_IN_FLIGHT_MAX && queries.hasNext()) {
+				started.add(queries.next().asIterator(fetchOptions));
+			}
+			Iterator<Entity> iterator = started.removeFirst();
+			if (iterator.hasNext()) {
+				mHeads.add(new Head(iterator));
+			}
+		}
+	}
+
+	/**
+	 * @return next entity of any sub-query, null if there are no more entities
+	 */
+	private Entity fetchNext() {
+		if (mHeads == null) {
+			startQueries();
+		}
+		Head head = mHeads.poll();
+		if (head == null) {
+			return null;
+		}
+		Entity entity = head.mEntity;
+		if (head.mIterator.hasNext()) {
+			head.mEntity = head.mIterator.next();
+			mHeads.add(head);
+		}
+		return entity;
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (mNext == null) {
+			Entity entity = fetchNext();
+			if (entity == null) {
+				return false;
+			}
+			if (!entity.getKey().equals(mLastKey)) {
+				mLastKey = entity.getKey();
+				mNext = entity;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public Entity next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		Entity next = mNext;
+		mNext = null;
+		return next;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * The next entity of a sub-query
+	 */
+	private static class Head {
+		private final Iterator<Entity> mIterator;
+		private Entity mEntity;
+
+		/**
+		 * @param iterator sub-query iterator that has at least one more entity
+		 */
+		Head(Iterator<Entity> iterator) {
+			mIterator = iterator;
+			mEntity = iterator.next();
+		}
+	}
+}
+
+/**
+ * Compares entities by the sort orders of a query, then by key
+ */
+private static class EntityComparator implements Comparator<Entity> {
+	private static final int TYPE_ORDER_NULL = 0;
+	private static final int TYPE_ORDER_INTEGER = 1;
+	private static final int TYPE_ORDER_BOOLEAN = 2;
+	private static final int TYPE_ORDER_BYTES = 3;
+	private static final int TYPE_ORDER_STRING = 4;
+	private static final int TYPE_ORDER_DOUBLE = 5;
+	private static final int TYPE_ORDER_GEO_PT = 6;
+	private static final int TYPE_ORDER_USER = 7;
+	private static final int TYPE_ORDER_KEY = 8;
+	private static final int TYPE_ORDER_UNINDEXED = 9;
+	private final List<SortPredicate> mSortPredicates;
+
+	/**
+	 * @param sortPredicates sort orders of the query
+	 */
+	EntityComparator(List<SortPredicate> sortPredicates) {
+		mSortPredicates = sortPredicates;
+	}
+
+	@Override
+	public int compare(Entity left, Entity right) {
+		for (SortPredicate sortPredicate : mSortPredicates) {
+			boolean ascending = sortPredicate.getDirection() == SortDirection.ASCENDING;
+			Object leftValue = getSortValue(left, sortPredicate.getPropertyName(), ascending);
+			Object rightValue = getSortValue(right, sortPredicate.getPropertyName(), ascending);
+			int diff = compareValues(leftValue, rightValue);
+			if (diff != 0) {
+				return ascending ? diff : -diff;
+			}
+		}
+		return left.getKey().compareTo(right.getKey());
+	}
+
+	/**
+	 * Get the value an entity is sorted by. Multi-valued properties are sorted by their smallest value
+	 * when ascending and largest when descending, like the datastore does.
+	 * @param entity the entity to get the value from
+	 * @param propertyName the sorted property
+	 * @param ascending true if sorted ascending
+	 * @return value to sort by
+	 */
+	private static Object getSortValue(Entity entity, String propertyName, boolean ascending) {
+		if (Entity.KEY_RESERVED_PROPERTY.equals(propertyName)) {
+			return entity.getKey();
+		}
+
+		Object value = entity.getProperty(propertyName);
+		if (value instanceof Collection) {
+			Object sortValue = null;
+			boolean first = true;
+			for (Object element : (Collection<?>) value) {
+				if (first) {
+					sortValue = element;
+					first = false;
+				} else {
+					int diff = compareValues(element, sortValue);
+					if (ascending ? diff < 0 : diff > 0) {
+						sortValue = element;
+					}
+				}
+			}
+			return sortValue;
+		}
+		return value;
+	}
+
+	/**
+	 * Compare two property values in the order the datastore sorts them: null, integers and dates,
+	 * booleans, short blobs, strings, floating point numbers, geographical points, users and last
+	 * keys. Values of the same type are compared by value.
+	 * @param left first value, can be null
+	 * @param right second value, can be null
+	 * @return negative if left is less than right, 0 if equal, positive if greater
+	 */
+	private static int compareValues(Object left, Object right) {
+		int leftOrder = getTypeOrder(left);
+		int rightOrder = getTypeOrder(right);
+		if (leftOrder != rightOrder) {
+			return Integer.compare(leftOrder, rightOrder);
+		}
+
+		switch (leftOrder) {
+		case TYPE_ORDER_NULL:
+			return 0;
+		case TYPE_ORDER_INTEGER:
+			return Long.compare(toLong(left), toLong(right));
+		case TYPE_ORDER_BOOLEAN:
+			return Boolean.compare((Boolean) left, (Boolean) right);
+		case TYPE_ORDER_BYTES:
+			return compareBytes(((ShortBlob) left).getBytes(), ((ShortBlob) right).getBytes());
+		case TYPE_ORDER_STRING:
+			return compareStrings(toString(left), toString(right));
+		case TYPE_ORDER_DOUBLE:
+			return Double.compare(((Number) left).doubleValue(), ((Number) right).doubleValue());
+		case TYPE_ORDER_GEO_PT:
+			return ((GeoPt) left).compareTo((GeoPt) right);
+		case TYPE_ORDER_USER:
+			return ((User) left).compareTo((User) right);
+		case TYPE_ORDER_KEY:
+			return ((Key) left).compareTo((Key) right);
+		default:
+			// Not indexed, can't be sorted by
+			return 0;
+		}
+	}
+
+	/**
+	 * @param value a property value, can be null
+	 * @return where the type of the value is sorted by the datastore
+	 */
+	private static int getTypeOrder(Object value) {
+		if (value == null) {
+			return TYPE_ORDER_NULL;
+		} else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte || value instanceof Date
+				|| value instanceof Rating) {
+			return TYPE_ORDER_INTEGER;
+		} else if (value instanceof Boolean) {
+			return TYPE_ORDER_BOOLEAN;
+		} else if (value instanceof ShortBlob) {
+			return TYPE_ORDER_BYTES;
+		} else if (value instanceof String || value instanceof Link || value instanceof Category || value instanceof PhoneNumber
+				|| value instanceof PostalAddress || value instanceof Email || value instanceof IMHandle) {
+			return TYPE_ORDER_STRING;
+		} else if (value instanceof Double || value instanceof Float) {
+			return TYPE_ORDER_DOUBLE;
+		} else if (value instanceof GeoPt) {
+			return TYPE_ORDER_GEO_PT;
+		} else if (value instanceof User) {
+			return TYPE_ORDER_USER;
+		} else if (value instanceof Key) {
+			return TYPE_ORDER_KEY;
+		} else {
+			return TYPE_ORDER_UNINDEXED;
+		}
+	}
+
+	/**
+	 * @param value an integer, date or rating value
+	 * @return the value as the datastore stores it, dates in microseconds
+	 */
+	private static long toLong(Object value) {
+		if (value instanceof Date) {
+			return ((Date) value).getTime() * 1000;
+		} else if (value instanceof Rating) {
+			return ((Rating) value).getRating();
+		} else {
+			return ((Number) value).longValue();
+		}
+	}
+
+	/**
+	 * @param value a string value
+	 * @return the string the datastore stores for the value
+	 */
+	private static String toString(Object value) {
+		if (value instanceof Link) {
+			return ((Link) value).getValue();
+		} else if (value instanceof Category) {
+			return ((Category) value).getCategory();
+		} else if (value instanceof PhoneNumber) {
+			return ((PhoneNumber) value).getNumber();
+		} else if (value instanceof PostalAddress) {
+			return ((PostalAddress) value).getAddress();
+		} else if (value instanceof Email) {
+			return ((Email) value).getEmail();
+		} else if (value instanceof IMHandle) {
+			IMHandle handle = (IMHandle) value;
+			return handle.getProtocol() + " " + handle.getAddress();
+		} else {
+			return (String) value;
+		}
+	}
+
+	/**
+	 * Compare strings by code point, which is the order of their UTF-8 bytes in the datastore
+	 * @param left first string
+	 * @param right second string
+	 * @return negative if left is less than right, 0 if equal, positive if greater
+	 */
+	private static int compareStrings(String left, String right) {
+		int leftIndex = 0;
+		int rightIndex = 0;
+		while (leftIndex < left.length() && rightIndex < right.length()) {
+			int leftCodePoint = left.codePointAt(leftIndex);
+			int rightCodePoint = right.codePointAt(rightIndex);
+			if (leftCodePoint != rightCodePoint) {
+				return Integer.compare(leftCodePoint, rightCodePoint);
+			}
+			leftIndex += Character.charCount(leftCodePoint);
+			rightIndex += Character.charCount(rightCodePoint);
+		}
+		return Boolean.compare(leftIndex < left.length(), rightIndex < right.length());
+	}
+
+	/**
+	 * Compare bytes as unsigned values
+	 * @param left first bytes
+	 * @param right second bytes
+	 * @return negative if left is less than right, 0 if equal, positive if greater
+	 */
+	private static int compareBytes(byte[] left, byte[] right) {
+		int length = Math.min(left.length, right.length);
+		for (int i = 0; i < length; i++) {
+			int diff = (left[i] & 0xFF) - (right[i] & 0xFF);
+			if (diff != 0) {
+				return diff;
+			}
+		}
+		return left.length - right.length;
+	}
+}
+}
@@ -0,0 +1,106 @@
+package com.spiddekauga.appengine;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of the futures a thread has started so that they're completed even if nobody waits
+ * for them. {@link RetryFuture} and {@link ChunkedFuture} only retry, start chunks and run their
+ * hooks when they're polled or waited for, and {@link HedgedReads} records latencies the same way.
+ * The futures are polled every time the thread starts a new one, and {@link #completeAll()} waits
+ * for the rest on the calling thread, so hooks never run on a thread of their own.
+ * <p>
+ * Hooks run while their future is locked, so they {@link #defer(Runnable)} datastore calls of their
+ * own. Deferred work runs when the thread calls {@link #runDeferred()} after a synchronous write,
+ * or at the end of {@link #completeAll()}.
+ * </p>
+ */
+class FutureCompleter {
+private static final Logger mLogger = Logger.getLogger(FutureCompleter.class.getName());
+private static final ThreadLocal<List<Future<?>>> mFutures = new ThreadLocal<List<Future<?>>>() {
+	@Override
+	protected List<Future<?>> initialValue() {
+		return new ArrayList<>();
+	}
+};
+private static final ThreadLocal<List<Runnable>> mDeferred = new ThreadLocal<List<Runnable>>() {
+	@Override
+	protected List<Runnable> initialValue() {
+		return new ArrayList<>();
+	}
+};
+
+/**
+ * Complete a future when the current thread calls {@link #completeAll()} if it isn't waited for
+ * before that. Polls the other futures of the thread and forgets those that are done.
+ * @param future the future to complete
+ * @param <T> result type of the future
+ * @return the same future
+ */
+static <T> Future<T> complete(Future<T> future) {
+	List<Future<?>> futures = mFutures.get();
+	Iterator<Future<?>> iterator = futures.iterator();
+	while (iterator.hasNext()) {
+		try {
+			if (iterator.next().isDone()) {
+				iterator.remove();
+			}
+		} catch (RuntimeException e) {
+			mLogger.log(Level.WARNING, "Failed to complete asynchronous datastore operation", e);
+			iterator.remove();
+		}
+	}
+	futures.add(future);
+	return future;
+}
+
+/**
+ * Run work after the current operation, outside the hook that calls this
+ * @param work the work to run
+ */
+static void defer(Runnable work) {
+	mDeferred.get().add(work);
+}
+
+/**
+ * Run all work that has been deferred on the current thread. Failures are logged.
+ */
+static void runDeferred() {
+	List<Runnable> deferred = mDeferred.get();
+	while (!deferred.isEmpty()) {
+		// The work may defer more work
+		Runnable work = deferred.remove(0);
+		try {
+			work.run();
+		} catch (RuntimeException e) {
+			mLogger.log(Level.WARNING, "Failed to run deferred datastore work", e);
+		}
+	}
+}
+
+/**
+ * Wait for all futures the current thread has started and not waited for, then run the deferred
+ * work. Failures are logged, whoever waits for the future gets the same failure.
+ */
+static void completeAll() {
+	List<Future<?>> futures = mFutures.get();
+	while (!futures.isEmpty()) {
+		Future<?> future = futures.remove(0);
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		} catch (ExecutionException | CancellationException | RuntimeException e) {
+			mLogger.log(Level.WARNING, "Failed to complete asynchronous datastore operation", e);
+		}
+	}
+	runDeferred();
+}
+}
@@ -0,0 +1,503 @@
+package com.spiddekauga.appengine;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hedged key reads used by {@link DatastoreUtils}. Hedging is enabled per kind. When a get of an
+ * enabled kind hasn't returned within the rolling 95th percentile latency of the kind, a second
+ * identical get is issued and whichever returns first is used. Single gets and batch gets of
+ * different sizes have their own latency percentiles. Batch gets are only hedged when all keys are
+ * of the same kind. Reads are polled in the background so that the latency is measured when the
+ * read returns, not when the caller gets around to waiting for it.
+ * <p>
+ * Hedges are rate limited to a fraction of the reads of each kind, 5% by default, so that a slow
+ * datastore doesn't get twice the load.
+ * </p>
+ */
+public class HedgedReads {
+/** Number of latencies the percentile is calculated from */
+private static final int SAMPLES = 256;
+/** Reads aren't hedged until this many latencies have been recorded */
+private static final int SAMPLES_MIN = 32;
+/** The percentile is recalculated after this many new latencies */
+private static final int RECALCULATE_INTERVAL = 16;
+/** Percentile of the latency to hedge after */
+private static final double PERCENTILE = 0.95;
+/** Never hedge before this delay */
+private static final long HEDGE_DELAY_MIN_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+/** How long to wait for the first read before checking the hedge again */
+private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+/** Largest batch size of each bucket of batch latencies, larger batches use the last bucket */
+private static final int[] BATCH_BUCKET_SIZES_MAX = {10, 100};
+/** Maximum number of hedges that can be saved up */
+private static final double HEDGE_BURST_MAX = 10;
+private static final ConcurrentMap<String, KindStatistics> mKinds = new ConcurrentHashMap<>();
+private static volatile double mMaxHedgeRate = 0.05;
+
+/**
+ * Enable hedging of key reads of a kind
+ * @param kind the kind of entities to hedge reads of
+ */
+public static void enable(String kind) {
+	if (!mKinds.containsKey(kind)) {
+		mKinds.putIfAbsent(kind, new KindStatistics());
+	}
+}
+
+/**
+ * Disable hedging of a kind, also removes the statistics of the kind
+ * @param kind the kind of entities to stop hedging reads of
+ */
+public static void disable(String kind) {
+	mKinds.remove(kind);
+}
+
+/**
+ * Set the maximum fraction of reads that are hedged, per kind
+ * @param maxHedgeRate between 0 and 1, defaults to 0.05
+ */
+public static void setMaxHedgeRate(double maxHedgeRate) {
+	if (maxHedgeRate < 0 || maxHedgeRate > 1) {
+		throw new IllegalArgumentException("maxHedgeRate needs to be between 0 and 1");
+	}
+	mMaxHedgeRate = maxHedgeRate;
+}
+
+/**
+ * @return maximum fraction of reads that are hedged, per kind
+ */
+public static double getMaxHedgeRate() {
+	return mMaxHedgeRate;
+}
+
+/**
+ * @param kind the kind to get the statistics of
+ * @return number of reads of the kind since hedging was enabled, 0 if it isn't enabled
+ */
+public static long getReadCount(String kind) {
+	KindStatistics statistics = mKinds.get(kind);
+	return statistics != null ? statistics.mReads.get() : 0;
+}
+
+/**
+ * @param kind the kind to get the statistics of
+ * @return number of hedges that were issued for the kind, 0 if it isn't enabled
+ */
+public static long getHedgeCount(String kind) {
+	KindStatistics statistics = mKinds.get(kind);
+	return statistics != null ? statistics.mHedges.get() : 0;
+}
+
+/**
+ * @param kind the kind to get the statistics of
+ * @return number of hedges that returned before the first read, 0 if it isn't enabled
+ */
+public static long getHedgeWinCount(String kind) {
+	KindStatistics statistics = mKinds.get(kind);
+	return statistics != null ? statistics.mHedgeWins.get() : 0;
+}
+
+/**
+ * @param kind the kind to get the delay of
+ * @return how long single key reads of the kind wait before hedging in milliseconds, -1 if not
+ * enough reads have been made yet or hedging isn't enabled
+ */
+public static double getHedgeDelayMillis(String kind) {
+	KindStatistics statistics = mKinds.get(kind);
+	if (statistics == null) {
+		return -1;
+	}
+	long threshold = statistics.mSingleLatencies.getThreshold();
+	return threshold >= 0 ? threshold / (double) TimeUnit.MILLISECONDS.toNanos(1) : -1;
+}
+
+/**
+ * Get an entity, hedged if enabled for the kind
+ * @param datastore where to get the entity from
+ * @param key key of the entity
+ * @return future of the get
+ */
+static Future<Entity> get(final AsyncDatastoreService datastore, final Key key) {
+	KindStatistics statistics = mKinds.isEmpty() ? null : mKinds.get(key.getKind());
+	if (statistics == null) {
+		return datastore.get(key);
+	}
+
+	return FutureCompleter.complete(new HedgedFuture<Entity>(statistics, statistics.mSingleLatencies) {
+		@Override
+		protected Future<Entity> call() {
+			return datastore.get(key);
+		}
+	}.start());
+}
+
+/**
+ * Get entities, hedged if enabled for the kind and all keys are of the same kind
+ * @param datastore where to get the entities from
+ * @param keys keys of the entities
+ * @return future of the get
+ */
+static Future<Map<Key, Entity>> get(final AsyncDatastoreService datastore, final List<Key> keys) {
+	KindStatistics statistics = mKinds.isEmpty() || keys.isEmpty() ? null : mKinds.get(keys.get(0).getKind());
+	if (statistics == null) {
+		return datastore.get(keys);
+	}
+	String kind = keys.get(0).getKind();
+	for (Key key : keys) {
+		if (!kind.equals(key.getKind())) {
+			return datastore.get(keys);
+		}
+	}
+
+	return FutureCompleter.complete(new HedgedFuture<Map<Key, Entity>>(statistics, statistics.getBatchLatencies(keys.size())) {
+		@Override
+		protected Future<Map<Key, Entity>> call() {
+			return datastore.get(keys);
+		}
+	}.start());
+}
+
+/**
+ * Statistics and hedge budget of a kind
+ */
+static class KindStatistics {
+	private final AtomicLong mReads = new AtomicLong();
+	private final AtomicLong mHedges = new AtomicLong();
+	private final AtomicLong mHedgeWins = new AtomicLong();
+	private final LatencyWindow mSingleLatencies = new LatencyWindow();
+	/** Latencies of batch gets, bucketed by batch size */
+	private final LatencyWindow[] mBatchLatencies = new LatencyWindow[BATCH_BUCKET_SIZES_MAX.length + 1];
+	/** Number of hedges that can be issued, grows with the max hedge rate for each read */
+	private double mHedgeBudget = 0;
+
+	/**
+	 * Create empty statistics
+	 */
+	KindStatistics() {
+		for (int i = 0; i < mBatchLatencies.length; i++) {
+			mBatchLatencies[i] = new LatencyWindow();
+		}
+	}
+
+	/**
+	 * Called when a read is started, adds to the hedge budget
+	 */
+	synchronized void onRead() {
+		mReads.incrementAndGet();
+		mHedgeBudget = Math.min(mHedgeBudget + mMaxHedgeRate, HEDGE_BURST_MAX);
+	}
+
+	/**
+	 * Take a hedge from the budget
+	 * @return true if a hedge can be issued
+	 */
+	synchronized boolean tryHedge() {
+		if (mHedgeBudget < 1) {
+			return false;
+		}
+		mHedgeBudget -= 1;
+		mHedges.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * @return number of hedges that were issued
+	 */
+	long getHedgeCount() {
+		return mHedges.get();
+	}
+
+	/**
+	 * @return number of hedges that returned before the first read
+	 */
+	long getHedgeWinCount() {
+		return mHedgeWins.get();
+	}
+
+	/**
+	 * @return latencies of single key reads
+	 */
+	LatencyWindow getSingleLatencies() {
+		return mSingleLatencies;
+	}
+
+	/**
+	 * @param batchSize number of keys in the batch
+	 * @return latencies of batch reads of about the same size
+	 */
+	LatencyWindow getBatchLatencies(int batchSize) {
+		int bucket = 0;
+		while (bucket < BATCH_BUCKET_SIZES_MAX.length && batchSize > BATCH_BUCKET_SIZES_MAX[bucket]) {
+			bucket++;
+		}
+		return mBatchLatencies[bucket];
+	}
+}
+
+/**
+ * The latest read latencies and their percentile
+ */
+static class LatencyWindow {
+	private final long[] mSamples = new long[SAMPLES];
+	private int mCount = 0;
+	private int mNext = 0;
+	private volatile long mThreshold = -1;
+
+	/**
+	 * Add a latency, recalculates the percentile every {@link #RECALCULATE_INTERVAL} latencies
+	 * @param nanos the latency
+	 */
+	synchronized void add(long nanos) {
+		mSamples[mNext] = nanos;
+		mNext = (mNext + 1) % mSamples.length;
+		mCount = Math.min(mCount + 1, mSamples.length);
+
+		if (mCount >= SAMPLES_MIN && mNext % RECALCULATE_INTERVAL == 0) {
+			long[] sorted = Arrays.copyOf(mSamples, mCount);
+			Arrays.sort(sorted);
+			mThreshold = Math.max(sorted[(int) (PERCENTILE * (sorted.length - 1))], HEDGE_DELAY_MIN_NANOS);
+		}
+	}
+
+	/**
+	 * @return how long to wait before hedging in nanoseconds, -1 if not enough latencies have been
+	 * added
+	 */
+	long getThreshold() {
+		return mThreshold;
+	}
+}
+
+/**
+ * Future of a read that issues a second identical read when the first one is slow. Uses the
+ * result of whichever read returns first.
+ * @param <T> result type of the read
+ */
+abstract static class HedgedFuture<T> implements Future<T> {
+	private final KindStatistics mStatistics;
+	private final LatencyWindow mLatencies;
+	/** How long to wait before hedging, -1 to never hedge */
+	private long mThreshold;
+	private long mStartTime = 0;
+	private Future<T> mPrimary = null;
+	private Future<T> mHedge = null;
+	private boolean mHedgeFailed = false;
+	private boolean mHedgeWon = false;
+	private boolean mLatencyRecorded = false;
+
+	/**
+	 * @param statistics statistics and hedge budget of the kind
+	 * @param latencies latencies of this type of read
+	 */
+	HedgedFuture(KindStatistics statistics, LatencyWindow latencies) {
+		mStatistics = statistics;
+		mLatencies = latencies;
+	}
+
+	/**
+	 * Issue the read
+	 * @return this future
+	 */
+	HedgedFuture<T> start() {
+		mStatistics.onRead();
+		mThreshold = mLatencies.getThreshold();
+		mStartTime = System.nanoTime();
+		mPrimary = call();
+		return this;
+	}
+
+	/**
+	 * Issue the read. Called once for the read and once more if it's hedged.
+	 * @return future of the read
+	 */
+	protected abstract Future<T> call();
+
+	/**
+	 * Issue the hedge if the read is slower than the threshold and the budget allows it
+	 */
+	private void hedgeIfDue() {
+		if (mHedge == null && mThreshold >= 0 && System.nanoTime() - mStartTime >= mThreshold && !mPrimary.isDone()) {
+			if (mStatistics.tryHedge()) {
+				mHedge = call();
+			} else {
+				mThreshold = -1;
+			}
+		}
+	}
+
+	/**
+	 * @return true if the hedge has returned successfully
+	 */
+	private boolean isHedgeSucceeded() {
+		if (mHedge == null || mHedgeFailed || !mHedge.isDone()) {
+			return false;
+		}
+		try {
+			mHedge.get();
+			return true;
+		} catch (ExecutionException | InterruptedException e) {
+			mHedgeFailed = true;
+			return false;
+		}
+	}
+
+	/**
+	 * Check if the hedge returned before the read. The first time it's seen the win is counted, the
+	 * latency is recorded and the read is cancelled.
+	 * @return true if the hedge returned successfully before the read
+	 */
+	private boolean isHedgeWon() {
+		if (!mHedgeWon && !mPrimary.isDone() && isHedgeSucceeded()) {
+			mHedgeWon = true;
+			// The read took at least this long, the real latency is unknown
+			recordLatency();
+			mStatistics.mHedgeWins.incrementAndGet();
+			mPrimary.cancel(false);
+		}
+		return mHedgeWon;
+	}
+
+	/**
+	 * Record the latency of the read once, when it's first seen as done. Reads that nobody waits for
+	 * are polled by {@link FutureCompleter}.
+	 */
+	private void recordLatency() {
+		if (!mLatencyRecorded) {
+			mLatencyRecorded = true;
+			mLatencies.add(System.nanoTime() - mStartTime);
+		}
+	}
+
+	@Override
+	public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+		boolean cancelled = mPrimary.cancel(mayInterruptIfRunning);
+		if (mHedge != null) {
+			cancelled |= mHedge.cancel(mayInterruptIfRunning);
+		}
+		return cancelled;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return !mHedgeWon && mPrimary.isCancelled();
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		hedgeIfDue();
+		if (isHedgeWon()) {
+			return true;
+		}
+		if (mPrimary.isDone()) {
+			recordLatency();
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public T get() throws InterruptedException, ExecutionException {
+		try {
+			return await(0, false);
+		} catch (TimeoutException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		return await(System.nanoTime() + unit.toNanos(timeout), true);
+	}
+
+	/**
+	 * Wait for the read or the hedge, whichever returns first. Waits without holding the lock so
+	 * that {@link #cancel(boolean)} and other callers aren't blocked by the read.
+	 * @param deadline System.nanoTime() when to stop waiting
+	 * @param timed true if the deadline should be used
+	 * @return result of the first read that returned
+	 */
+	private T await(long deadline, boolean timed) throws InterruptedException, ExecutionException, TimeoutException {
+		while (true) {
+			Future<T> primary;
+			Future<T> hedge;
+			long wait;
+			synchronized (this) {
+				primary = mPrimary;
+				hedge = mHedge == null || mHedgeFailed ? null : mHedge;
+				if (isHedgeWon()) {
+					// Doesn't block, the hedge is already done
+					return mHedge.get();
+				} else if (mPrimary.isDone()) {
+					recordLatency();
+					wait = -1;
+				} else {
+					long now = System.nanoTime();
+					if (timed && now - deadline >= 0) {
+						throw new TimeoutException();
+					}
+
+					if (mHedge != null && !mHedgeFailed) {
+						wait = POLL_NANOS;
+					} else if (mHedge == null && mThreshold >= 0) {
+						wait = Math.max(mStartTime + mThreshold - now, 0);
+					} else {
+						wait = Long.MAX_VALUE;
+					}
+					if (timed) {
+						wait = Math.min(wait, deadline - now);
+					}
+				}
+			}
+
+			// The read is done, may wait for the hedge if the read failed
+			if (wait < 0) {
+				return getPrimary(primary, hedge, deadline, timed);
+			}
+
+			try {
+				primary.get(wait, TimeUnit.NANOSECONDS);
+			} catch (TimeoutException | ExecutionException e) {
+				// Handled in the next iteration
+			}
+			synchronized (this) {
+				hedgeIfDue();
+			}
+		}
+	}
+
+	/**
+	 * Get the result of the read. Uses the hedge if the read failed and the hedge is still running.
+	 * @param primary the read, already done
+	 * @param hedge the hedge, null if there's no hedge or it failed
+	 * @param deadline System.nanoTime() when to stop waiting for the hedge
+	 * @param timed true if the deadline should be used
+	 * @return result of the read or the hedge
+	 */
+	private T getPrimary(Future<T> primary, Future<T> hedge, long deadline, boolean timed) throws InterruptedException, ExecutionException, TimeoutException {
+		try {
+			return primary.get();
+		} catch (ExecutionException e) {
+			if (hedge == null) {
+				throw e;
+			}
+			if (timed) {
+				return hedge.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+			}
+			return hedge.get();
+		}
+	}
+}
+}
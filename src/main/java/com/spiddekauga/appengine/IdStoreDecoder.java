@@ -0,0 +1,184 @@
+package com.spiddekauga.appengine;
+
+import com.spiddekauga.utils.IIdStore;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * Decodes ids to {@link IIdStore} objects through their static 'T fromId(int)' method. The method
+ * is looked up and validated once per class. For enumerations a dense id to constant array is built
+ * so that decoding is just an array lookup.
+ * @param <T> type of the IdStore
+ */
+abstract class IdStoreDecoder<T extends IIdStore> {
+/** Maximum size of the lookup array of an enumeration, larger ids use the fromId method */
+private static final int ENUM_ID_MAX = 1024;
+private static final ClassValue<IdStoreDecoder<?>> mDecoders = new ClassValue<IdStoreDecoder<?>>() {
+	@Override
+	protected IdStoreDecoder<?> computeValue(Class<?> type) {
+		return create(type.asSubclass(IIdStore.class));
+	}
+};
+
+/**
+ * Get the decoder of a class
+ * @param clazz the class to decode to. Needs a public static method 'T fromId(int)'
+ * @param <T> type of the IdStore
+ * @return decoder of the class
+ * @throws IllegalArgumentException if the class doesn't have a public static method with the
+ * signature 'T fromId(int)'
+ */
+@SuppressWarnings("unchecked")
+static <T extends IIdStore> IdStoreDecoder<T> get(Class<T> clazz) {
+	return (IdStoreDecoder<T>) mDecoders.get(clazz);
+}
+
+/**
+ * Decode an id
+ * @param id the id to decode
+ * @return object with the id, whatever fromId returns for unknown ids
+ */
+abstract T fromId(int id);
+
+/**
+ * Create and validate the decoder of a class
+ * @param clazz the class to decode to
+ * @param <T> type of the IdStore
+ * @return new decoder of the class
+ * @throws IllegalArgumentException if the class doesn't have a public static method with the
+ * signature 'T fromId(int)'
+ */
+private static <T extends IIdStore> IdStoreDecoder<T> create(Class<T> clazz) {
+	Method fromIdMethod;
+	try {
+		fromIdMethod = clazz.getMethod("fromId", int.class);
+	}
+	// Doesn't exist
+	catch (NoSuchMethodException e) {
+		throw new IllegalArgumentException(clazz.getName() + " method 'T fromId(int)' wasn't found");
+	}
+	// Method isn't public
+	catch (SecurityException e) {
+		throw new IllegalArgumentException(clazz.getName() + " method 'T fromId(int)' isn't public");
+	}
+
+	// Invalid return type
+	if (fromIdMethod.getReturnType() != clazz) {
+		throw new IllegalArgumentException(clazz.getName() + " method 'T fromId(int)' doesn't return itself");
+	}
+	if (!Modifier.isStatic(fromIdMethod.getModifiers())) {
+		throw new IllegalArgumentException(clazz.getName() + " method 'T fromId(int)' isn't static");
+	}
+
+	MethodHandle fromIdHandle;
+	try {
+		fromIdHandle = MethodHandles.lookup().unreflect(fromIdMethod).asType(MethodType.methodType(Object.class, int.class));
+	} catch (IllegalAccessException e) {
+		throw new IllegalArgumentException(clazz.getName() + " method 'T fromId(int)' isn't public");
+	}
+
+	MethodHandleDecoder<T> methodHandleDecoder = new MethodHandleDecoder<>(clazz, fromIdHandle);
+	if (clazz.isEnum()) {
+		EnumDecoder<T> enumDecoder = EnumDecoder.create(clazz, methodHandleDecoder);
+		if (enumDecoder != null) {
+			return enumDecoder;
+		}
+	}
+	return methodHandleDecoder;
+}
+
+/**
+ * Calls the fromId method through a method handle
+ * @param <T> type of the IdStore
+ */
+private static class MethodHandleDecoder<T extends IIdStore> extends IdStoreDecoder<T> {
+	private final Class<T> mClass;
+	private final MethodHandle mFromId;
+
+	/**
+	 * @param clazz the class to decode to
+	 * @param fromId handle of the fromId method with the type (int)Object
+	 */
+	MethodHandleDecoder(Class<T> clazz, MethodHandle fromId) {
+		mClass = clazz;
+		mFromId = fromId;
+	}
+
+	@Override
+	T fromId(int id) {
+		try {
+			return mClass.cast((Object) mFromId.invokeExact(id));
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalArgumentException(mClass.getName() + " method 'T fromId(int)' failed", e);
+		}
+	}
+}
+
+/**
+ * Looks up enumeration constants in an array indexed by id
+ * @param <T> type of the IdStore
+ */
+private static class EnumDecoder<T extends IIdStore> extends IdStoreDecoder<T> {
+	private final T[] mConstants;
+	private final MethodHandleDecoder<T> mFallback;
+
+	/**
+	 * @param constants constants indexed by their id
+	 * @param fallback decodes ids that aren't in the array
+	 */
+	private EnumDecoder(T[] constants, MethodHandleDecoder<T> fallback) {
+		mConstants = constants;
+		mFallback = fallback;
+	}
+
+	/**
+	 * Build the lookup array of an enumeration. Every constant is checked so that fromId returns the
+	 * constant for its id.
+	 * @param clazz the enumeration class
+	 * @param fallback decodes through the fromId method
+	 * @param <T> type of the IdStore
+	 * @return decoder of the enumeration, null if the ids are negative or too large for an array or
+	 * fromId doesn't return the constant with the id
+	 */
+	@SuppressWarnings("unchecked")
+	static <T extends IIdStore> EnumDecoder<T> create(Class<T> clazz, MethodHandleDecoder<T> fallback) {
+		T[] constants = clazz.getEnumConstants();
+		int maxId = -1;
+		for (T constant : constants) {
+			int id = constant.toId();
+			if (id < 0 || id >= ENUM_ID_MAX) {
+				return null;
+			}
+			maxId = Math.max(maxId, id);
+		}
+
+		T[] lookup = (T[]) Array.newInstance(clazz, maxId + 1);
+		for (T constant : constants) {
+			int id = constant.toId();
+			if (fallback.fromId(id) != constant) {
+				return null;
+			}
+			lookup[id] = constant;
+		}
+		return new EnumDecoder<>(lookup, fallback);
+	}
+
+	@Override
+	T fromId(int id) {
+		if (id >= 0 && id < mConstants.length) {
+			T constant = mConstants[id];
+			if (constant != null) {
+				return constant;
+			}
+		}
+		return mFallback.fromId(id);
+	}
+}
+}
@@ -0,0 +1,433 @@
+package com.spiddekauga.appengine;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.utils.SystemProperty;
+import com.google.apphosting.api.ApiProxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Maps all entities of a kind in parallel, e.g. for schema migrations and backfills. The kind is
+ * split into key ranges by sampling the __scatter__ property and the ranges are mapped concurrently
+ * on a bounded pool of threads. Writes go through one {@link BatchWriter} per range.
+ * <p>
+ * The cursor of each range is checkpointed after every batch, once the writes of the batch have
+ * been flushed. Running a job with the same name again resumes the ranges that weren't finished;
+ * entities of a batch that was interrupted are mapped again, so the mapper should be idempotent.
+ * Call {@link #deleteCheckpoints()} to run a finished job again from the start.
+ * </p>
+ */
+public class KindMapper {
+private static final Logger mLogger = Logger.getLogger(KindMapper.class.getName());
+/** Kind of the job checkpoint entities */
+static final String JOB_KIND = "DatastoreUtilsMapperJob";
+/** Kind of the range checkpoint entities, children of the job */
+static final String RANGE_KIND = "DatastoreUtilsMapperRange";
+/** Number of __scatter__ samples per range */
+private static final int SCATTER_OVERSAMPLE = 32;
+private static final String PROPERTY_START = "start";
+private static final String PROPERTY_END = "end";
+private static final String PROPERTY_CURSOR = "cursor";
+private static final String PROPERTY_DONE = "done";
+private static final String PROPERTY_MAPPED = "mapped";
+private final String mJobName;
+private final String mKind;
+private final Mapper mMapper;
+private final int mRangeCount;
+private final int mThreadCount;
+private final int mBatchSize;
+
+/**
+ * Create a mapper with 16 ranges, 4 threads and batches of 100 entities
+ * @param jobName unique name of the job, used for the checkpoints
+ * @param kind the kind to map
+ * @param mapper called for each entity
+ */
+public KindMapper(String jobName, String kind, Mapper mapper) {
+	this(jobName, kind, mapper, 16, 4, 100);
+}
+
+/**
+ * Create a mapper
+ * @param jobName unique name of the job, used for the checkpoints
+ * @param kind the kind to map
+ * @param mapper called for each entity, from several threads at once
+ * @param rangeCount maximum number of key ranges to split the kind into. Small kinds get fewer
+ * ranges
+ * @param threadCount number of ranges to map at once
+ * @param batchSize number of entities to fetch at once, writes are flushed and the cursor is
+ * checkpointed after each batch
+ */
+public KindMapper(String jobName, String kind, Mapper mapper, int rangeCount, int threadCount, int batchSize) {
+	if (rangeCount < 1 || threadCount < 1 || batchSize < 1) {
+		throw new IllegalArgumentException("rangeCount, threadCount and batchSize need to be at least 1");
+	}
+	mJobName = jobName;
+	mKind = kind;
+	mMapper = mapper;
+	mRangeCount = rangeCount;
+	mThreadCount = threadCount;
+	mBatchSize = batchSize;
+}
+
+/**
+ * Map all entities of the kind, or the rest of them if the job was interrupted. Blocks until all
+ * ranges have been mapped or have failed. Failed ranges are resumed the next time the job runs.
+ * @return how many entities were mapped and how fast
+ */
+public Result run() {
+	long startTime = System.nanoTime();
+	List<Entity> ranges = getRanges();
+
+	Result result = new Result(ranges.size());
+	List<Future<?>> futures = new ArrayList<>(ranges.size());
+	ExecutorService executor = Executors.newFixedThreadPool(mThreadCount, new EnvironmentThreadFactory());
+	try {
+		for (Entity range : ranges) {
+			if ((Boolean) range.getProperty(PROPERTY_DONE)) {
+				result.mRangesCompleted.incrementAndGet();
+			} else {
+				futures.add(executor.submit(new RangeTask(range, result)));
+			}
+		}
+
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new DatastoreFailureException("Interrupted while mapping " + mKind, e);
+			} catch (ExecutionException e) {
+				result.mFailures.add(e.getCause());
+			}
+		}
+	} finally {
+		executor.shutdownNow();
+	}
+
+	result.mElapsedNanos = System.nanoTime() - startTime;
+	mLogger.info("Job " + mJobName + " mapped " + result.getMappedCount() + " " + mKind + " entities in " + result.getElapsedMillis() + "ms ("
+			+ (int) result.getEntitiesPerSecond() + "/s), " + result.getFailedRangeCount() + " of " + result.getRangeCount() + " ranges failed");
+	return result;
+}
+
+/**
+ * Delete the checkpoints of the job, the next run starts from the beginning
+ */
+public void deleteCheckpoints() {
+	Key jobKey = getJobKey();
+	List<Key> keys = new ArrayList<>();
+	for (Entity range : DatastoreUtils.getEntities(new Query(RANGE_KIND, jobKey).setKeysOnly())) {
+		keys.add(range.getKey());
+	}
+	keys.add(jobKey);
+	DatastoreUtils.delete(keys);
+}
+
+/**
+ * Get the checkpointed ranges of the job, or split the kind into new ranges if the job hasn't run
+ * @return all ranges of the job ordered by their start
+ */
+private List<Entity> getRanges() {
+	Key jobKey = getJobKey();
+	if (DatastoreUtils.getEntity(jobKey) != null) {
+		Query query = new Query(RANGE_KIND, jobKey);
+		List<Entity> ranges = new ArrayList<>();
+		for (Entity range : DatastoreUtils.getEntities(query)) {
+			ranges.add(range);
+		}
+		return ranges;
+	}
+
+	List<Key> splitKeys = getSplitKeys();
+	List<Entity> ranges = new ArrayList<>(splitKeys.size() + 1);
+	for (int i = 0; i <= splitKeys.size(); i++) {
+		Entity range = new Entity(KeyFactory.createKey(jobKey, RANGE_KIND, i + 1));
+		range.setProperty(PROPERTY_START, i > 0 ? splitKeys.get(i - 1) : null);
+		range.setProperty(PROPERTY_END, i < splitKeys.size() ? splitKeys.get(i) : null);
+		range.setUnindexedProperty(PROPERTY_CURSOR, null);
+		range.setProperty(PROPERTY_DONE, false);
+		range.setProperty(PROPERTY_MAPPED, 0L);
+		ranges.add(range);
+	}
+
+	// Ranges first so that a resumed job always finds all of them
+	DatastoreUtils.put(ranges);
+	DatastoreUtils.put(new Entity(jobKey));
+	return ranges;
+}
+
+/**
+ * Sample keys through the __scatter__ property and pick keys that split the kind into ranges of
+ * about the same size
+ * @return sorted keys where the ranges start, empty if the kind should be mapped as one range
+ */
+private List<Key> getSplitKeys() {
+	if (mRangeCount == 1) {
+		return Collections.emptyList();
+	}
+
+	Query query = new Query(mKind).addSort(Entity.SCATTER_RESERVED_PROPERTY).setKeysOnly();
+	List<Key> samples = new ArrayList<>();
+	for (Entity entity : DatastoreUtils.prepare(query).asIterable(FetchOptions.Builder.withLimit(mRangeCount * SCATTER_OVERSAMPLE))) {
+		samples.add(entity.getKey());
+	}
+	Collections.sort(samples);
+
+	List<Key> splitKeys = new ArrayList<>(mRangeCount - 1);
+	int rangeCount = Math.min(mRangeCount, samples.size());
+	for (int i = 1; i < rangeCount; i++) {
+		Key splitKey = samples.get(i * samples.size() / rangeCount);
+		if (splitKeys.isEmpty() || !splitKeys.get(splitKeys.size() - 1).equals(splitKey)) {
+			splitKeys.add(splitKey);
+		}
+	}
+	return splitKeys;
+}
+
+/**
+ * @return key of the job checkpoint
+ */
+private Key getJobKey() {
+	return KeyFactory.createKey(JOB_KIND, mJobName);
+}
+
+/**
+ * Create the query of a range
+ * @param range the range checkpoint
+ * @return query of all entities of the kind in the range, ordered by key
+ */
+private Query createRangeQuery(Entity range) {
+	Key start = (Key) range.getProperty(PROPERTY_START);
+	Key end = (Key) range.getProperty(PROPERTY_END);
+	List<Filter> filters = new ArrayList<>(2);
+	if (start != null) {
+		filters.add(new FilterPredicate(Entity.KEY_RESERVED_PROPERTY, FilterOperator.GREATER_THAN_OR_EQUAL, start));
+	}
+	if (end != null) {
+		filters.add(new FilterPredicate(Entity.KEY_RESERVED_PROPERTY, FilterOperator.LESS_THAN, end));
+	}
+
+	Query query = new Query(mKind).addSort(Entity.KEY_RESERVED_PROPERTY, SortDirection.ASCENDING);
+	if (filters.size() == 1) {
+		query.setFilter(filters.get(0));
+	} else if (filters.size() == 2) {
+		query.setFilter(CompositeFilterOperator.and(filters));
+	}
+	return query;
+}
+
+/**
+ * Called for each entity of the kind
+ */
+public interface Mapper {
+	/**
+	 * Map an entity. Called from several threads at once.
+	 * @param entity the entity to map
+	 * @param writer buffer the puts and deletes of the mapping here, they're flushed before the
+	 * checkpoint of the batch
+	 * @throws Exception stops the range, it's resumed from the last checkpoint the next time the job
+	 * runs
+	 */
+	void map(Entity entity, BatchWriter writer) throws Exception;
+}
+
+/**
+ * Maps all entities of a range
+ */
+private class RangeTask implements Callable<Void> {
+	private final Entity mRange;
+	private final Result mResult;
+
+	/**
+	 * @param range checkpoint of the range to map
+	 * @param result where to add the number of mapped entities
+	 */
+	RangeTask(Entity range, Result result) {
+		mRange = range;
+		mResult = result;
+	}
+
+	@Override
+	public Void call() throws Exception {
+		Text cursorText = (Text) mRange.getProperty(PROPERTY_CURSOR);
+		Cursor cursor = cursorText != null ? Cursor.fromWebSafeString(cursorText.getValue()) : null;
+		CursorQueryIterator iterator = DatastoreUtils.getEntityStream(createRangeQuery(mRange), mBatchSize, mBatchSize, CursorQueryIterator.NO_LIMIT, cursor);
+		BatchWriter writer = new BatchWriter(Integer.MAX_VALUE, Long.MAX_VALUE);
+		long mapped = (Long) mRange.getProperty(PROPERTY_MAPPED);
+
+		while (iterator.hasNext()) {
+			mMapper.map(iterator.next(), writer);
+			mapped++;
+			mResult.mMapped.incrementAndGet();
+
+			if (iterator.isBatchComplete()) {
+				checkpoint(writer, iterator.getCursor(), mapped, false);
+			}
+		}
+		checkpoint(writer, iterator.getCursor(), mapped, true);
+		mResult.mRangesCompleted.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Flush the writes of the batch and store the cursor
+	 * @param writer writes of the batch
+	 * @param cursor where the range continues
+	 * @param mapped number of entities mapped in the range
+	 * @param done true if the whole range has been mapped
+	 * @throws DatastoreFailureException if the writes failed, the checkpoint isn't updated
+	 */
+	private void checkpoint(BatchWriter writer, Cursor cursor, long mapped, boolean done) {
+		BatchWriter.FlushResult flushResult = writer.flush();
+		if (!flushResult.isSuccessful()) {
+			Exception cause = null;
+			for (Exception exception : flushResult.getFailures().values()) {
+				cause = exception;
+				break;
+			}
+			throw new DatastoreFailureException("Failed to write " + flushResult.getFailureCount() + " entities of range " + mRange.getKey(), cause);
+		}
+
+		mRange.setUnindexedProperty(PROPERTY_CURSOR, cursor != null ? new Text(cursor.toWebSafeString()) : null);
+		mRange.setProperty(PROPERTY_MAPPED, mapped);
+		mRange.setProperty(PROPERTY_DONE, done);
+		DatastoreUtils.put(mRange);
+	}
+}
+
+/**
+ * Creates threads that run with the App Engine environment of the thread that created the mapper.
+ * Uses request threads in production and plain threads locally.
+ */
+private static class EnvironmentThreadFactory implements ThreadFactory {
+	private final ApiProxy.Environment mEnvironment = ApiProxy.getCurrentEnvironment();
+	private final ThreadFactory mThreadFactory;
+
+	/**
+	 * Create a thread factory for the current environment
+	 */
+	EnvironmentThreadFactory() {
+		if (SystemProperty.environment.value() == SystemProperty.Environment.Value.Production) {
+			mThreadFactory = ThreadManager.currentRequestThreadFactory();
+		} else {
+			mThreadFactory = Executors.defaultThreadFactory();
+		}
+	}
+
+	@Override
+	public Thread newThread(final Runnable runnable) {
+		return mThreadFactory.newThread(new Runnable() {
+			@Override
+			public void run() {
+				if (ApiProxy.getCurrentEnvironment() == null && mEnvironment != null) {
+					ApiProxy.setEnvironmentForCurrentThread(mEnvironment);
+				}
+				runnable.run();
+			}
+		});
+	}
+}
+
+/**
+ * Result and throughput of a run
+ */
+public static class Result {
+	private final AtomicLong mMapped = new AtomicLong();
+	private final AtomicInteger mRangesCompleted = new AtomicInteger();
+	private final List<Throwable> mFailures = Collections.synchronizedList(new ArrayList<Throwable>());
+	private final int mRangeCount;
+	private long mElapsedNanos = 0;
+
+	/**
+	 * @param rangeCount number of ranges of the job
+	 */
+	private Result(int rangeCount) {
+		mRangeCount = rangeCount;
+	}
+
+	/**
+	 * @return true if all ranges have been mapped
+	 */
+	public boolean isComplete() {
+		return mRangesCompleted.get() == mRangeCount;
+	}
+
+	/**
+	 * @return number of entities mapped in this run
+	 */
+	public long getMappedCount() {
+		return mMapped.get();
+	}
+
+	/**
+	 * @return number of ranges of the job
+	 */
+	public int getRangeCount() {
+		return mRangeCount;
+	}
+
+	/**
+	 * @return number of ranges that have been mapped, including ranges mapped in earlier runs
+	 */
+	public int getCompletedRangeCount() {
+		return mRangesCompleted.get();
+	}
+
+	/**
+	 * @return number of ranges that failed in this run
+	 */
+	public int getFailedRangeCount() {
+		return mFailures.size();
+	}
+
+	/**
+	 * @return why the ranges failed
+	 */
+	public List<Throwable> getFailures() {
+		return Collections.unmodifiableList(mFailures);
+	}
+
+	/**
+	 * @return how long the run took in milliseconds
+	 */
+	public long getElapsedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(mElapsedNanos);
+	}
+
+	/**
+	 * @return number of mapped entities per second in this run
+	 */
+	public double getEntitiesPerSecond() {
+		if (mElapsedNanos <= 0) {
+			return 0;
+		}
+		return mMapped.get() * (double) TimeUnit.SECONDS.toNanos(1) / mElapsedNanos;
+	}
+}
+}
@@ -0,0 +1,404 @@
+package com.spiddekauga.appengine;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.ShortBlob;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Stores byte arrays that are too large for an entity as ordered chunk entities under the key of
+ * the owning entity. The owner stores a small reference with the generation, number of chunks and
+ * length of the value. The chunks are kept in memory until the owner is put and are put right
+ * before it, or in the same transaction if the owner is put in one. Every write uses a new
+ * generation so the chunks of the previous value stay readable until the owner has been put.
+ * <p>
+ * Set large values with {@link DatastoreUtils#setLargeProperty(Entity, String, byte[])} and read
+ * them with {@link DatastoreUtils#getPropertyByteArray(Entity, String)}, which gets all chunks in
+ * one batch without caching them. Chunks that are no longer referenced are only deleted for kinds
+ * that are enabled with {@link #enable(String)}. A put of the owner finds its chunks with an
+ * ancestor query and deletes those that the stored owner doesn't reference. Chunks of values that
+ * were set less than {@link #setCleanupDelay(long) the cleanup delay} ago may belong to a
+ * concurrent writer that hasn't put the owner yet, they're deleted by a later put or when the owner
+ * is deleted. Put the owner within that time after setting the value.
+ * </p>
+ */
+public class LargeProperties {
+/** Default of how long chunks are kept after the value was set before puts may delete them */
+public static final long CLEANUP_DELAY_MILLIS_DEFAULT = 10 * 60 * 1000;
+/** Kind of the chunk entities */
+static final String CHUNK_KIND = "DatastoreUtilsChunk";
+/** Property with the bytes of a chunk */
+private static final String CHUNK_PROPERTY = "data";
+/** Maximum number of bytes in each chunk, leaves room for the key in the 1 MB entity limit */
+static final int CHUNK_BYTES = 1000 * 1000;
+/** Values up to this size are stored in the owner */
+static final int INLINE_BYTES_MAX = 500 * 1000;
+/** Magic number at the start of a reference */
+private static final byte[] MAGIC = {(byte) 0x9f, 'D', 'U', 'C'};
+/** Magic number, generation, chunk count, stored length and length */
+static final int REFERENCE_SIZE = MAGIC.length + 8 + 4 + 4 + 4;
+/** Number of random bits at the end of a generation, the rest is when the value was set */
+private static final int GENERATION_RANDOM_BITS = 22;
+/** Kinds that chunks are deleted for */
+private static final Set<String> mKinds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+/** Chunks that haven't been put yet, by the reference that the owner stores */
+private static final Map<ShortBlob, List<Entity>> mUnputChunks = Collections.synchronizedMap(new WeakHashMap<ShortBlob, List<Entity>>());
+private static volatile long mCleanupDelay = CLEANUP_DELAY_MILLIS_DEFAULT;
+
+/**
+ * Delete chunks that are no longer referenced after puts and deletes of a kind. Every put and
+ * delete of the kind costs a keys-only ancestor query, puts also get the stored owners.
+ * @param kind kind of the entities that have large properties
+ */
+public static void enable(String kind) {
+	mKinds.add(kind);
+}
+
+/**
+ * Stop deleting chunks of a kind
+ * @param kind kind of the entities that have large properties
+ */
+public static void disable(String kind) {
+	mKinds.remove(kind);
+}
+
+/**
+ * Set how long the chunks of a value are kept before a put of the owner may delete them. Owners
+ * have to be put within this time after the value is set, otherwise a concurrent put of the same
+ * owner may delete the chunks before the owner references them.
+ * @param delayMillis how long after the value was set in milliseconds, default is 10 minutes
+ */
+public static void setCleanupDelay(long delayMillis) {
+	mCleanupDelay = delayMillis;
+}
+
+/**
+ * Split a value into chunks that are put with the owner
+ * @param owner entity that owns the value, needs a complete key
+ * @param propertyName name of the property
+ * @param stored the bytes to store, already compressed if compression is enabled
+ * @param length uncompressed length of the bytes
+ * @return reference to store in the owner
+ * @throws IllegalArgumentException if the owner doesn't have a complete key
+ */
+static ShortBlob write(Entity owner, String propertyName, byte[] stored, int length) {
+	if (!owner.getKey().isComplete()) {
+		throw new IllegalArgumentException("Large properties need an entity with a complete key, allocate an id first");
+	}
+
+	long random = ThreadLocalRandom.current().nextLong() & ((1L << GENERATION_RANDOM_BITS) - 1);
+	long generation = (System.currentTimeMillis() << GENERATION_RANDOM_BITS) | random;
+	int chunkCount = (stored.length + CHUNK_BYTES - 1) / CHUNK_BYTES;
+	List<Entity> chunks = new ArrayList<>(chunkCount);
+	for (int i = 0; i < chunkCount; i++) {
+		int offset = i * CHUNK_BYTES;
+		byte[] bytes = new byte[Math.min(CHUNK_BYTES, stored.length - offset)];
+		System.arraycopy(stored, offset, bytes, 0, bytes.length);
+		Entity chunk = new Entity(getChunkKey(owner.getKey(), propertyName, generation, i));
+		chunk.setUnindexedProperty(CHUNK_PROPERTY, new Blob(bytes));
+		chunks.add(chunk);
+	}
+
+	byte[] referenceBytes = new byte[REFERENCE_SIZE];
+	System.arraycopy(MAGIC, 0, referenceBytes, 0, MAGIC.length);
+	int offset = writeLong(referenceBytes, MAGIC.length, generation);
+	offset = writeInt(referenceBytes, offset, chunkCount);
+	offset = writeInt(referenceBytes, offset, stored.length);
+	writeInt(referenceBytes, offset, length);
+
+	// Kept as long as the reference is, a value that is replaced before it's put is never written
+	ShortBlob reference = new ShortBlob(referenceBytes);
+	mUnputChunks.put(reference, chunks);
+	return reference;
+}
+
+/**
+ * Get the chunks that have to be put before entities can be put
+ * @param owners the entities that will be put
+ * @return chunks of all values in the entities that haven't been put yet
+ */
+static List<Entity> getUnputChunks(Iterable<Entity> owners) {
+	if (mUnputChunks.isEmpty()) {
+		return Collections.emptyList();
+	}
+
+	List<Entity> chunks = new ArrayList<>();
+	for (Entity owner : owners) {
+		for (Object value : owner.getProperties().values()) {
+			if (value instanceof ShortBlob) {
+				List<Entity> valueChunks = mUnputChunks.get(value);
+				if (valueChunks != null) {
+					chunks.addAll(valueChunks);
+				}
+			}
+		}
+	}
+	return chunks;
+}
+
+/**
+ * @param stored bytes stored in a property
+ * @return true if the bytes are a reference to chunks
+ */
+static boolean isReference(byte[] stored) {
+	if (stored.length != REFERENCE_SIZE) {
+		return false;
+	}
+	for (int i = 0; i < MAGIC.length; i++) {
+		if (stored[i] != MAGIC[i]) {
+			return false;
+		}
+	}
+	return true;
+}
+
+/**
+ * @param reference reference to chunks
+ * @return uncompressed length of the value
+ */
+static int getLength(byte[] reference) {
+	return readInt(reference, MAGIC.length + 8 + 4 + 4);
+}
+
+/**
+ * Get all chunks of a value in one batch and put them together. The chunks are read from the
+ * datastore directly and never cached.
+ * @param owner key of the entity that owns the value
+ * @param propertyName name of the property
+ * @param reference reference to the chunks
+ * @return the stored bytes, compressed if they were compressed when stored
+ * @throws DatastoreFailureException if a chunk is missing
+ */
+static byte[] read(Key owner, String propertyName, byte[] reference) {
+	List<Key> keys = getChunkKeys(owner, propertyName, reference);
+	Map<Key, Entity> chunks = DatastoreProfile.current().getDatastore().get(keys);
+
+	byte[] stored = new byte[readInt(reference, MAGIC.length + 8 + 4)];
+	int offset = 0;
+	for (Key key : keys) {
+		Entity chunk = chunks.get(key);
+		if (chunk == null) {
+			throw new DatastoreFailureException("Chunk " + key + " of large property is missing");
+		}
+		byte[] bytes = ((Blob) chunk.getProperty(CHUNK_PROPERTY)).getBytes();
+		System.arraycopy(bytes, 0, stored, offset, bytes.length);
+		offset += bytes.length;
+	}
+	return stored;
+}
+
+/**
+ * Called from the hook of a put. Forgets the chunks that were put with the entities and deletes
+ * the chunks that are no longer referenced once the hook has returned, see {@link
+ * FutureCompleter#defer(Runnable)}.
+ * @param entities the entities that were put
+ */
+static void onPut(List<Entity> entities) {
+	if (!mUnputChunks.isEmpty()) {
+		for (Entity entity : entities) {
+			for (Object value : entity.getProperties().values()) {
+				if (value instanceof ShortBlob) {
+					mUnputChunks.remove(value);
+				}
+			}
+		}
+	}
+	if (mKinds.isEmpty()) {
+		return;
+	}
+
+	final List<Key> owners = new ArrayList<>();
+	for (Entity entity : entities) {
+		if (mKinds.contains(entity.getKind())) {
+			owners.add(entity.getKey());
+		}
+	}
+
+	if (!owners.isEmpty()) {
+		FutureCompleter.defer(new Runnable() {
+			@Override
+			public void run() {
+				deleteUnreferencedChunks(owners);
+			}
+		});
+	}
+}
+
+/**
+ * Called from the hook of a delete. Deletes all chunks of the deleted entities once the hook has
+ * returned, see {@link FutureCompleter#defer(Runnable)}.
+ * @param keys keys of the deleted entities
+ */
+static void onDeleted(List<Key> keys) {
+	if (mKinds.isEmpty()) {
+		return;
+	}
+
+	final List<Key> owners = new ArrayList<>();
+	for (Key key : keys) {
+		if (mKinds.contains(key.getKind())) {
+			owners.add(key);
+		}
+	}
+
+	if (!owners.isEmpty()) {
+		FutureCompleter.defer(new Runnable() {
+			@Override
+			public void run() {
+				deleteChunks(owners, Collections.<Key, Entity>emptyMap(), Long.MAX_VALUE);
+			}
+		});
+	}
+}
+
+/**
+ * Delete the chunks of owners that the stored owners don't reference and that are old enough to
+ * not belong to a writer that hasn't put the owner yet
+ * @param owners keys of the owners
+ */
+private static void deleteUnreferencedChunks(List<Key> owners) {
+	Map<Key, Entity> stored = DatastoreProfile.DEFAULT.getDatastore().get(owners);
+	long writtenBefore = System.currentTimeMillis() - mCleanupDelay;
+	deleteChunks(owners, stored, writtenBefore);
+}
+
+/**
+ * Delete the chunks of owners that the stored owners don't reference
+ * @param owners keys of the owners
+ * @param stored the stored owners, owners that don't exist don't reference any chunks
+ * @param writtenBefore only delete chunks of values that were set at or before this time, in
+ * milliseconds
+ */
+private static void deleteChunks(List<Key> owners, Map<Key, Entity> stored, long writtenBefore) {
+	Set<Key> referenced = new HashSet<>();
+	for (Entity owner : stored.values()) {
+		for (Map.Entry<String, Object> property : owner.getProperties().entrySet()) {
+			if (property.getValue() instanceof ShortBlob) {
+				byte[] bytes = ((ShortBlob) property.getValue()).getBytes();
+				if (isReference(bytes)) {
+					referenced.addAll(getChunkKeys(owner.getKey(), property.getKey(), bytes));
+				}
+			}
+		}
+	}
+
+	// The chunks of all owners are queried concurrently
+	List<Key> chunks = new ArrayList<>();
+	Set<Key> ownerSet = new HashSet<>(owners);
+	for (Key key : DatastoreUtils.getKeysOfParents(CHUNK_KIND, owners)) {
+		// Ancestor queries also return chunks of child entities
+		if (ownerSet.contains(key.getParent()) && !referenced.contains(key) && getWriteTime(key) <= writtenBefore) {
+			chunks.add(key);
+		}
+	}
+
+	if (!chunks.isEmpty()) {
+		DatastoreUtils.delete(chunks);
+	}
+}
+
+/**
+ * Get the keys of all chunks of a value in order
+ * @param owner key of the entity that owns the value
+ * @param propertyName name of the property
+ * @param reference reference to the chunks
+ * @return keys of all chunks
+ */
+private static List<Key> getChunkKeys(Key owner, String propertyName, byte[] reference) {
+	long generation = readLong(reference, MAGIC.length);
+	int chunkCount = readInt(reference, MAGIC.length + 8);
+
+	List<Key> keys = new ArrayList<>(chunkCount);
+	for (int i = 0; i < chunkCount; i++) {
+		keys.add(getChunkKey(owner, propertyName, generation, i));
+	}
+	return keys;
+}
+
+/**
+ * @param owner key of the entity that owns the value
+ * @param propertyName name of the property
+ * @param generation generation of the value
+ * @param index index of the chunk
+ * @return key of the chunk
+ */
+private static Key getChunkKey(Key owner, String propertyName, long generation, int index) {
+	return KeyFactory.createKey(owner, CHUNK_KIND, propertyName + "/" + generation + "/" + index);
+}
+
+/**
+ * @param chunk key of a chunk
+ * @return when the value of the chunk was set, in milliseconds
+ */
+private static long getWriteTime(Key chunk) {
+	String name = chunk.getName();
+	int generationEnd = name.lastIndexOf('/');
+	int generationStart = name.lastIndexOf('/', generationEnd - 1) + 1;
+	return Long.parseLong(name.substring(generationStart, generationEnd)) >>> GENERATION_RANDOM_BITS;
+}
+
+/**
+ * Write a big endian int
+ * @param bytes where to write
+ * @param offset where in the array to write
+ * @param value the value to write
+ * @return offset after the written int
+ */
+private static int writeInt(byte[] bytes, int offset, int value) {
+	bytes[offset] = (byte) (value >>> 24);
+	bytes[offset + 1] = (byte) (value >>> 16);
+	bytes[offset + 2] = (byte) (value >>> 8);
+	bytes[offset + 3] = (byte) value;
+	return offset + 4;
+}
+
+/**
+ * Write a big endian long
+ * @param bytes where to write
+ * @param offset where in the array to write
+ * @param value the value to write
+ * @return offset after the written long
+ */
+private static int writeLong(byte[] bytes, int offset, long value) {
+	for (int i = 0; i < 8; i++) {
+		bytes[offset + i] = (byte) (value >>> (56 - i * 8));
+	}
+	return offset + 8;
+}
+
+/**
+ * Read a big endian long
+ * @param bytes where to read from
+ * @param offset where in the array to read
+ * @return the read value
+ */
+private static long readLong(byte[] bytes, int offset) {
+	long value = 0;
+	for (int i = 0; i < 8; i++) {
+		value = (value << 8) | (bytes[offset + i] & 0xff);
+	}
+	return value;
+}
+
+/**
+ * Read a big endian int
+ * @param bytes where to read from
+ * @param offset where in the array to read
+ * @return the read value
+ */
+private static int readInt(byte[] bytes, int offset) {
+	return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16) | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+}
+}
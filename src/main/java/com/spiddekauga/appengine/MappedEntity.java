@@ -0,0 +1,18 @@
+package com.spiddekauga.appengine;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a class that can be converted to and from entities by {@link EntityMapper}
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface MappedEntity {
+/**
+ * @return kind of the entities, the simple name of the class if empty
+ */
+String kind() default "";
+}
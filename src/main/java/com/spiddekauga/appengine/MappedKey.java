@@ -0,0 +1,15 @@
+package com.spiddekauga.appengine;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks the {@link com.google.appengine.api.datastore.Key} field that holds the key of the entity
+ * in a {@link MappedEntity} class. When null a new entity with an incomplete key is created.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface MappedKey {
+}
@@ -0,0 +1,27 @@
+package com.spiddekauga.appengine;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a field in a {@link MappedEntity} class that is stored as an entity property. Supported
+ * types are int, long, float, double, boolean and their wrappers, String, Date, Key, {@link
+ * java.util.UUID}, {@link com.spiddekauga.utils.IIdStore} and byte[]. Null values aren't stored
+ * and properties that are missing in the entity leave the field at the value the constructor set,
+ * which works as a default value.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface MappedProperty {
+/**
+ * @return name of the property, the field name if empty
+ */
+String name() default "";
+
+/**
+ * @return false to store the property unindexed. byte[] properties are always unindexed.
+ */
+boolean indexed() default true;
+}
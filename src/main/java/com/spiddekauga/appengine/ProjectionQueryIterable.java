@@ -0,0 +1,62 @@
+package com.spiddekauga.appengine;
+
+import com.google.appengine.api.datastore.DatastoreNeedIndexException;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.PreparedQuery;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.logging.Logger;
+
+/**
+ * Runs a projection query and falls back to the full query when the composite index the
+ * projection needs is missing.
+ */
+class ProjectionQueryIterable implements Iterable<Entity> {
+private static final Logger mLogger = Logger.getLogger(ProjectionQueryIterable.class.getName());
+private final PreparedQuery mProjectionQuery;
+private final PreparedQuery mFullQuery;
+
+/**
+ * @param projectionQuery the prepared projection query
+ * @param fullQuery the same query without projections
+ */
+ProjectionQueryIterable(PreparedQuery projectionQuery, PreparedQuery fullQuery) {
+	mProjectionQuery = projectionQuery;
+	mFullQuery = fullQuery;
+}
+
+@Override
+public Iterator<Entity> iterator() {
+	return new Iterator<Entity>() {
+		private Iterator<Entity> mIterator = null;
+
+		@Override
+		public boolean hasNext() {
+			if (mIterator == null) {
+				try {
+					mIterator = mProjectionQuery.asIterator();
+					return mIterator.hasNext();
+				} catch (DatastoreNeedIndexException e) {
+					mLogger.warning("Missing index for projection query, fetching full entities instead: " + e.getMissingIndexDefinitionXml());
+					mIterator = mFullQuery.asIterator();
+				}
+			}
+			return mIterator.hasNext();
+		}
+
+		@Override
+		public Entity next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return mIterator.next();
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	};
+}
+}
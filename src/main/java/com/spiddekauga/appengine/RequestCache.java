@@ -0,0 +1,180 @@
+package com.spiddekauga.appengine;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Request scoped first-level cache of entities used by {@link DatastoreUtils}. Repeated reads of
+ * the same key during a request are served without a datastore call. Puts through {@link
+ * DatastoreUtils} update the cache and deletes invalidate it. Keys that weren't found are cached as
+ * well. Only strongly consistent reads are cached. The cache is bounded and evicts the least
+ * recently used entity.
+ * <p>
+ * Entities are copied when they're cached and when they're returned, so changing a returned entity
+ * or an entity after it has been put doesn't change the cache.
+ * </p>
+ * <p>
+ * The cache is opt-in. Call {@link #begin()} at the start of the request and {@link #end()} when
+ * the request has finished, or add {@link com.spiddekauga.servlet.RequestCacheFilter} to the
+ * application.
+ * </p>
+ */
+public class RequestCache {
+/** Default maximum number of cached entities */
+public static final int MAX_SIZE_DEFAULT = 1000;
+private static final ThreadLocal<RequestCache> mCurrent = new ThreadLocal<>();
+private final Map<Key, Entity> mEntities;
+private long mHits = 0;
+private long mMisses = 0;
+
+/**
+ * @param maxSize maximum number of cached entities
+ */
+private RequestCache(final int maxSize) {
+	mEntities = new LinkedHashMap<Key, Entity>(16, 0.75f, true) {
+		private static final long serialVersionUID = 4313529006287218376L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Entity> eldest) {
+			return size() > maxSize;
+		}
+	};
+}
+
+/**
+ * Start caching entities for the current request with the default size
+ * @return the cache of the current request
+ */
+public static RequestCache begin() {
+	return begin(MAX_SIZE_DEFAULT);
+}
+
+/**
+ * Start caching entities for the current request. Replaces any existing cache of this thread.
+ * @param maxSize maximum number of cached entities
+ * @return the cache of the current request
+ */
+public static RequestCache begin(int maxSize) {
+	RequestCache cache = new RequestCache(maxSize);
+	mCurrent.set(cache);
+	return cache;
+}
+
+/**
+ * Stop caching entities and clear the cache of the current request
+ */
+public static void end() {
+	RequestCache cache = mCurrent.get();
+	if (cache != null) {
+		cache.clear();
+		mCurrent.remove();
+	}
+}
+
+/**
+ * @return cache of the current request, null if caching hasn't been started
+ */
+public static RequestCache current() {
+	return mCurrent.get();
+}
+
+/**
+ * Check if a key is cached. Counts as a hit or a miss.
+ * @param key key of the entity
+ * @return true if the key is cached, even if the entity didn't exist
+ */
+synchronized boolean contains(Key key) {
+	if (mEntities.containsKey(key)) {
+		mHits++;
+		return true;
+	} else {
+		mMisses++;
+		return false;
+	}
+}
+
+/**
+ * Get a cached entity. Call {@link #contains(Key)} first to know if it's cached.
+ * @param key key of the entity
+ * @return copy of the cached entity, null if not cached or if the entity doesn't exist
+ */
+synchronized Entity get(Key key) {
+	return copy(mEntities.get(key));
+}
+
+/**
+ * Get all cached entities of several keys. Counts a hit or a miss for every key.
+ * @param keys keys of the entities
+ * @return all cached keys and copies of their entities, null values for entities that didn't exist
+ */
+synchronized Map<Key, Entity> getAll(Iterable<Key> keys) {
+	Map<Key, Entity> cached = new HashMap<>();
+	for (Key key : keys) {
+		if (mEntities.containsKey(key)) {
+			mHits++;
+			// get() also refreshes the key as recently used
+			cached.put(key, copy(mEntities.get(key)));
+		} else {
+			mMisses++;
+		}
+	}
+	return cached;
+}
+
+/**
+ * Cache a copy of an entity that has been read or written
+ * @param key key of the entity
+ * @param entity the entity, null if it doesn't exist
+ */
+synchronized void put(Key key, Entity entity) {
+	mEntities.put(key, copy(entity));
+}
+
+/**
+ * @param entity the entity to copy, can be null
+ * @return copy of the entity, null if the entity is null
+ */
+private static Entity copy(Entity entity) {
+	return entity != null ? entity.clone() : null;
+}
+
+/**
+ * Remove an entity from the cache
+ * @param key key of the entity
+ */
+synchronized void remove(Key key) {
+	mEntities.remove(key);
+}
+
+/**
+ * Remove all cached entities
+ */
+public synchronized void clear() {
+	mEntities.clear();
+}
+
+/**
+ * @return number of cached keys
+ */
+public synchronized int size() {
+	return mEntities.size();
+}
+
+/**
+ * @return number of reads that were served from the cache
+ */
+public synchronized long getHitCount() {
+	return mHits;
+}
+
+/**
+ * @return number of reads that had to go to the datastore
+ */
+public synchronized long getMissCount() {
+	return mMisses;
+}
+}
@@ -0,0 +1,341 @@
+package com.spiddekauga.appengine;
+
+import com.spiddekauga.appengine.RetryPolicy.RetriesExhaustedException;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Future for an asynchronous datastore operation. Reissues the operation when it fails with a
+ * {@link ConcurrentModificationException} as specified by a {@link RetryPolicy}.
+ * @param <T> result type of the operation
+ */
+abstract class RetryFuture<T> implements Future<T> {
+private static final Logger mLogger = Logger.getLogger(RetryFuture.class.getName());
+private final RetryPolicy mPolicy;
+private Future<T> mFuture = null;
+/** Have to be done before the first attempt is issued, removed when they're done */
+private final List<Future<?>> mPrerequisites = new ArrayList<>();
+private RuntimeException mIssueException = null;
+private long mStartTime = 0;
+/** System.nanoTime() when the next attempt should be issued, only used when mFuture is null */
+private long mRetryAt = 0;
+private int mRetries = 0;
+private boolean mDone = false;
+private boolean mCancelled = false;
+private T mResult = null;
+private ExecutionException mFailure = null;
+
+/**
+ * @param policy how to retry concurrent modifications
+ */
+RetryFuture(RetryPolicy policy) {
+	mPolicy = policy;
+}
+
+/**
+ * Issue the operation for the first time
+ * @return this future
+ */
+RetryFuture<T> start() {
+	mStartTime = System.nanoTime();
+	issue();
+	return this;
+}
+
+/**
+ * Issue the operation for the first time once other operations are done, without blocking the
+ * caller. The operation is issued even if the other operations fail, {@link #call()} can check
+ * their results.
+ * @param prerequisites the operations to wait for, null elements are skipped
+ * @return this future
+ */
+RetryFuture<T> startAfter(Future<?>... prerequisites) {
+	for (Future<?> prerequisite : prerequisites) {
+		if (prerequisite != null) {
+			mPrerequisites.add(prerequisite);
+		}
+	}
+	if (mPrerequisites.isEmpty()) {
+		return start();
+	}
+	mStartTime = System.nanoTime();
+	return this;
+}
+
+/**
+ * @return true if there's no prerequisite to wait for
+ */
+private boolean isPrerequisiteDone() {
+	Iterator<Future<?>> iterator = mPrerequisites.iterator();
+	while (iterator.hasNext()) {
+		if (iterator.next().isDone()) {
+			iterator.remove();
+		}
+	}
+	return mPrerequisites.isEmpty();
+}
+
+/**
+ * Issue the asynchronous datastore operation. Called once for every attempt.
+ * @return future of the datastore operation
+ */
+protected abstract Future<T> call();
+
+/**
+ * Called when the operation succeeded. Exceptions are logged and the result of the operation is
+ * returned instead.
+ * @param result result of the operation
+ * @return the result to return from this future
+ */
+protected T onSuccess(T result) {
+	return result;
+}
+
+/**
+ * Called when the operation failed with something else than a concurrent modification. Rethrows
+ * the exception by default.
+ * @param exception the exception the operation failed with
+ * @return value to return from this future instead of failing
+ * @throws ExecutionException if the future should fail
+ */
+protected T onFailure(ExecutionException exception) throws ExecutionException {
+	throw exception;
+}
+
+/**
+ * Issue a new attempt of the operation
+ */
+private void issue() {
+	try {
+		mFuture = call();
+		mIssueException = null;
+	} catch (RuntimeException e) {
+		mFuture = null;
+		mIssueException = e;
+	}
+}
+
+/**
+ * Schedule a retry after a concurrent modification, or give up if the policy says so
+ * @param exception the concurrent modification
+ */
+private void retry(Throwable exception) {
+	mFuture = null;
+	mIssueException = null;
+
+	long backoff = mPolicy.getBackoffNanos(mRetries + 1);
+	mRetryAt = System.nanoTime() + backoff;
+
+	if (mRetries + 1 >= mPolicy.getMaxAttempts() || mRetryAt - mStartTime > mPolicy.getDeadlineNanos()) {
+		mFailure = new ExecutionException(new RetriesExhaustedException(mRetries + 1, exception));
+		complete(false);
+	} else {
+		mRetries++;
+	}
+}
+
+/**
+ * Mark this future as done
+ * @param success false if it gave up retrying
+ */
+private void complete(boolean success) {
+	mDone = true;
+	mPolicy.onCompleted(mRetries, success);
+}
+
+@Override
+public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+	if (mDone || mCancelled) {
+		return false;
+	}
+	mCancelled = true;
+	if (mFuture != null) {
+		mFuture.cancel(mayInterruptIfRunning);
+	}
+	return true;
+}
+
+@Override
+public synchronized boolean isCancelled() {
+	return mCancelled;
+}
+
+@Override
+public synchronized boolean isDone() {
+	while (!mDone && !mCancelled) {
+		if (mFuture == null && mIssueException == null) {
+			if (!isPrerequisiteDone() || System.nanoTime() < mRetryAt) {
+				break;
+			}
+			issue();
+		} else if (mIssueException != null || mFuture.isDone()) {
+			// Doesn't block, the attempt is already done
+			Future<T> future = mFuture;
+			RuntimeException issueException = mIssueException;
+			handle(future, issueException, getOutcome(future, issueException));
+		} else {
+			break;
+		}
+	}
+	return mDone || mCancelled;
+}
+
+@Override
+public T get() throws InterruptedException, ExecutionException {
+	try {
+		return await(0, false);
+	} catch (TimeoutException e) {
+		throw new IllegalStateException(e);
+	}
+}
+
+@Override
+public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+	return await(System.nanoTime() + unit.toNanos(timeout), true);
+}
+
+/**
+ * Wait for the operation, retrying it on concurrent modifications. Waits without holding the lock
+ * so that {@link #cancel(boolean)} and other callers aren't blocked by the backoff.
+ * @param deadline System.nanoTime() when to stop waiting
+ * @param timed true if the deadline should be used
+ * @return result of the operation
+ */
+private T await(long deadline, boolean timed) throws InterruptedException, ExecutionException, TimeoutException {
+	while (true) {
+		Future<T> future;
+		RuntimeException issueException;
+		Future<?> prerequisite;
+		long retryAt;
+		synchronized (this) {
+			if (mCancelled) {
+				throw new CancellationException();
+			} else if (mDone) {
+				if (mFailure != null) {
+					throw mFailure;
+				}
+				return mResult;
+			} else if (mFuture == null && mIssueException == null && isPrerequisiteDone() && System.nanoTime() >= mRetryAt) {
+				issue();
+			}
+			future = mFuture;
+			issueException = mIssueException;
+			prerequisite = mPrerequisites.isEmpty() ? null : mPrerequisites.get(0);
+			retryAt = mRetryAt;
+		}
+
+		// Waiting for the prerequisite, its failures are handled by whoever started it
+		if (prerequisite != null) {
+			try {
+				if (timed) {
+					prerequisite.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+				} else {
+					prerequisite.get();
+				}
+			} catch (ExecutionException | CancellationException e) {
+				// Issues the operation in the next iteration
+			}
+			continue;
+		}
+
+		// Waiting for backoff
+		if (future == null && issueException == null) {
+			long sleepTime = retryAt - System.nanoTime();
+			if (timed && deadline - System.nanoTime() < sleepTime) {
+				TimeUnit.NANOSECONDS.sleep(Math.max(deadline - System.nanoTime(), 0));
+				throw new TimeoutException();
+			}
+			TimeUnit.NANOSECONDS.sleep(sleepTime);
+			continue;
+		}
+
+		Object outcome;
+		if (issueException != null) {
+			outcome = new ExecutionException(issueException);
+		} else {
+			try {
+				outcome = timed ? future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS) : future.get();
+			} catch (ExecutionException e) {
+				outcome = e;
+			} catch (ConcurrentModificationException e) {
+				outcome = new ExecutionException(e);
+			}
+		}
+		handle(future, issueException, outcome);
+	}
+}
+
+/**
+ * Get the outcome of an attempt that is done
+ * @param future future of the attempt, null if it couldn't be issued
+ * @param issueException why the attempt couldn't be issued
+ * @return the result of the attempt, or an ExecutionException if it failed
+ */
+private Object getOutcome(Future<T> future, RuntimeException issueException) {
+	if (issueException != null) {
+		return new ExecutionException(issueException);
+	}
+	try {
+		return future.get();
+	} catch (ExecutionException e) {
+		return e;
+	} catch (ConcurrentModificationException e) {
+		return new ExecutionException(e);
+	} catch (InterruptedException e) {
+		// Can't happen, the attempt is already done
+		Thread.currentThread().interrupt();
+		return new ExecutionException(e);
+	}
+}
+
+/**
+ * Handle the outcome of an attempt. Only the datastore operation is retried, {@link
+ * #onSuccess(Object)} and {@link #onFailure(ExecutionException)} run once after this future has
+ * been marked as done.
+ * @param future future of the attempt
+ * @param issueException why the attempt couldn't be issued
+ * @param outcome the result of the attempt, or an ExecutionException if it failed
+ */
+@SuppressWarnings("unchecked")
+private synchronized void handle(Future<T> future, RuntimeException issueException, Object outcome) {
+	// Another caller already handled this attempt
+	if (mDone || mCancelled || future != mFuture || issueException != mIssueException) {
+		return;
+	}
+
+	if (outcome instanceof ExecutionException && ((ExecutionException) outcome).getCause() instanceof ConcurrentModificationException) {
+		retry(((ExecutionException) outcome).getCause());
+		return;
+	}
+
+	complete(true);
+	if (outcome instanceof ExecutionException) {
+		try {
+			mResult = onFailure((ExecutionException) outcome);
+		} catch (ExecutionException e) {
+			mFailure = e;
+		} catch (RuntimeException e) {
+			mFailure = new ExecutionException(e);
+		}
+	} else {
+		// The operation has already succeeded, failing here could make callers retry a write that
+		// isn't idempotent
+		try {
+			mResult = onSuccess((T) outcome);
+		} catch (RuntimeException e) {
+			mLogger.log(Level.WARNING, "Failed to run the hook of a successful datastore operation", e);
+			mResult = (T) outcome;
+		}
+	}
+}
+}
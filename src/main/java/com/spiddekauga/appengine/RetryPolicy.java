@@ -0,0 +1,191 @@
+package com.spiddekauga.appengine;
+
+import com.google.appengine.api.datastore.DatastoreFailureException;
+
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How datastore operations are retried when they fail with a {@link
+ * ConcurrentModificationException}. Retries are delayed using exponential backoff with full jitter
+ * and stop either after a maximum number of attempts or when the total deadline has passed. Keeps
+ * track of how many retries the calls needed.
+ */
+public class RetryPolicy {
+/** Default policy used by {@link DatastoreUtils} */
+public static final RetryPolicy DEFAULT = new RetryPolicy();
+private final int mMaxAttempts;
+private final long mInitialBackoff;
+private final long mMaxBackoff;
+private final long mDeadline;
+private final AtomicLong mCalls = new AtomicLong();
+private final AtomicLong mRetries = new AtomicLong();
+private final AtomicLong mFailures = new AtomicLong();
+private final AtomicLong mMaxRetries = new AtomicLong();
+private volatile Listener mListener = null;
+
+/**
+ * Default policy. 10 attempts, backoff from 25ms up to 2s, and a total deadline of 30s.
+ */
+public RetryPolicy() {
+	this(10, 25, 2000, 30000);
+}
+
+/**
+ * Create a retry policy
+ * @param maxAttempts maximum number of attempts, including the first one
+ * @param initialBackoffMillis maximum delay before the first retry, doubled for every retry
+ * @param maxBackoffMillis maximum delay between two attempts
+ * @param deadlineMillis the call gives up if a retry would start after this time
+ */
+public RetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis, long deadlineMillis) {
+	if (maxAttempts < 1) {
+		throw new IllegalArgumentException("maxAttempts needs to be at least 1");
+	}
+	mMaxAttempts = maxAttempts;
+	mInitialBackoff = TimeUnit.MILLISECONDS.toNanos(initialBackoffMillis);
+	mMaxBackoff = TimeUnit.MILLISECONDS.toNanos(maxBackoffMillis);
+	mDeadline = TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+}
+
+/**
+ * @return maximum number of attempts, including the first one
+ */
+public int getMaxAttempts() {
+	return mMaxAttempts;
+}
+
+/**
+ * @return total deadline of a call in nanoseconds
+ */
+long getDeadlineNanos() {
+	return mDeadline;
+}
+
+/**
+ * Calculate the delay before a retry
+ * @param retry the retry number, starts at 1
+ * @return random delay in nanoseconds between 0 and the exponential backoff of this retry
+ */
+long getBackoffNanos(int retry) {
+	long backoff = mInitialBackoff;
+	for (int i = 1; i < retry && backoff < mMaxBackoff; i++) {
+		backoff *= 2;
+	}
+	backoff = Math.min(backoff, mMaxBackoff);
+
+	if (backoff <= 0) {
+		return 0;
+	}
+	return (long) (ThreadLocalRandom.current().nextDouble() * backoff);
+}
+
+/**
+ * Called when a call has finished
+ * @param retries number of retries the call needed
+ * @param success true if the call succeeded, false if it gave up
+ */
+void onCompleted(int retries, boolean success) {
+	mCalls.incrementAndGet();
+	mRetries.addAndGet(retries);
+	if (!success) {
+		mFailures.incrementAndGet();
+	}
+
+	long maxRetries = mMaxRetries.get();
+	while (retries > maxRetries && !mMaxRetries.compareAndSet(maxRetries, retries)) {
+		maxRetries = mMaxRetries.get();
+	}
+
+	Listener listener = mListener;
+	if (listener != null) {
+		listener.onCompleted(retries, success);
+	}
+}
+
+/**
+ * Set a listener that is called after every call
+ * @param listener called after every call, set to null to remove
+ */
+public void setListener(Listener listener) {
+	mListener = listener;
+}
+
+/**
+ * @return number of calls that have finished using this policy
+ */
+public long getCallCount() {
+	return mCalls.get();
+}
+
+/**
+ * @return total number of retries of all calls
+ */
+public long getRetryCount() {
+	return mRetries.get();
+}
+
+/**
+ * @return number of calls that gave up
+ */
+public long getFailureCount() {
+	return mFailures.get();
+}
+
+/**
+ * @return most retries a single call needed
+ */
+public long getMaxRetryCount() {
+	return mMaxRetries.get();
+}
+
+/**
+ * Reset all statistics
+ */
+public void resetStatistics() {
+	mCalls.set(0);
+	mRetries.set(0);
+	mFailures.set(0);
+	mMaxRetries.set(0);
+}
+
+/**
+ * Called after every call that used the policy
+ */
+public interface Listener {
+	/**
+	 * Called when a call has finished
+	 * @param retries number of retries the call needed
+	 * @param success true if the call succeeded, false if it gave up
+	 */
+	void onCompleted(int retries, boolean success);
+}
+
+/**
+ * Thrown when a call gave up retrying concurrent modifications. Isn't a {@link
+ * ConcurrentModificationException} so that outer retry layers don't retry it as a new conflict, the
+ * last concurrent modification is the cause.
+ */
+public static class RetriesExhaustedException extends DatastoreFailureException {
+	private static final long serialVersionUID = 3818745620954134473L;
+	private final int mAttempts;
+
+	/**
+	 * @param attempts number of attempts that were made
+	 * @param cause the last concurrent modification
+	 */
+	RetriesExhaustedException(int attempts, Throwable cause) {
+		super("Gave up after " + attempts + " attempts", cause);
+		mAttempts = attempts;
+	}
+
+	/**
+	 * @return number of attempts that were made
+	 */
+	public int getAttempts() {
+		return mAttempts;
+	}
+}
+}
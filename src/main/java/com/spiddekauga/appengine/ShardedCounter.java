@@ -0,0 +1,292 @@
+package com.spiddekauga.appengine;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.spiddekauga.appengine.RetryPolicy.RetriesExhaustedException;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+/**
+ * Counters that can be updated often and concurrently, e.g. views, likes and plays. A counter is
+ * split into shards in separate entity groups and each update goes to a random shard, so write
+ * throughput grows with the number of shards instead of being limited by one entity group. The
+ * number of shards starts at 1 and is doubled every time an update fails because of contention.
+ * <p>
+ * Reads sum all shards with one batch get and cache the total in memcache for a few seconds.
+ * Updates are added to the cached total, so reads in the same instance see their own updates.
+ * </p>
+ */
+public class ShardedCounter {
+private static final Logger mLogger = Logger.getLogger(ShardedCounter.class.getName());
+/** Kind of the entities that store the number of shards of a counter */
+static final String COUNTER_KIND = "DatastoreUtilsCounter";
+/** Kind of the shard entities */
+static final String SHARD_KIND = "DatastoreUtilsCounterShard";
+private static final String SHARD_COUNT_PROPERTY = "shards";
+private static final String VALUE_PROPERTY = "value";
+/** Maximum number of shards of a counter, all of them are read in one batch get */
+static final int SHARDS_MAX = 256;
+/** Memcache namespace of the cached totals */
+private static final String NAMESPACE = "DatastoreUtils.Counter";
+/** How long totals are cached */
+private static final int CACHE_SECONDS = 5;
+/** Shard updates aren't retried on the same shard, contention picks another shard instead */
+private static final RetryPolicy SHARD_RETRY_POLICY = new RetryPolicy(1, 0, 0, 0);
+private static final DatastoreService mDatastore = DatastoreServiceFactory.getDatastoreService();
+private static final MemcacheService mMemcache = MemcacheServiceFactory.getMemcacheService(NAMESPACE);
+/** Latest known number of shards of each counter, can only be lower than the stored count */
+private static final Map<String, Integer> mShardCounts = new ConcurrentHashMap<>();
+
+/**
+ * Add 1 to a counter
+ * @param name name of the counter
+ * @throws RetriesExhaustedException if the shard was too contended even after growing
+ */
+public static void increment(String name) {
+	add(name, 1);
+}
+
+/**
+ * Add to a counter. Retries contended updates on another shard and grows the number of shards of
+ * the counter.
+ * @param name name of the counter
+ * @param delta how much to add, negative to subtract
+ * @throws RetriesExhaustedException if the shard was too contended even after growing
+ */
+public static void add(String name, long delta) {
+	int shardCount = getShardCount(name);
+	int maxAttempts = DatastoreUtils.getRetryPolicy().getMaxAttempts();
+	for (int attempt = 1; ; attempt++) {
+		int shard = ThreadLocalRandom.current().nextInt(shardCount);
+		try {
+			addToShard(getShardKey(name, shard), delta);
+			break;
+		} catch (ConcurrentModificationException e) {
+			if (attempt >= maxAttempts) {
+				throw new RetriesExhaustedException(attempt, e);
+			}
+			// Only grow once per update, the other attempts can use the new shards
+			if (attempt == 1) {
+				shardCount = grow(name, shardCount);
+			}
+		}
+	}
+
+	mMemcache.increment(getCacheKey(name), delta);
+}
+
+/**
+ * Get the total of a counter. Cached for a few seconds.
+ * @param name name of the counter
+ * @return sum of all shards, 0 if the counter doesn't exist
+ */
+public static long get(String name) {
+	String cacheKey = getCacheKey(name);
+	Object cached = mMemcache.get(cacheKey);
+	if (cached instanceof Long) {
+		return (Long) cached;
+	}
+
+	long total = getUncached(name);
+	mMemcache.put(cacheKey, total, Expiration.byDeltaSeconds(CACHE_SECONDS), MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+	return total;
+}
+
+/**
+ * Get the total of a counter from the datastore. Gets the number of shards and all known shards in
+ * one batch get, and only gets the rest of the shards if the counter has grown.
+ * @param name name of the counter
+ * @return sum of all shards, 0 if the counter doesn't exist
+ */
+public static long getUncached(String name) {
+	Key counterKey = getCounterKey(name);
+	int knownShardCount = getKnownShardCount(name);
+	List<Key> keys = new ArrayList<>(knownShardCount + 1);
+	keys.add(counterKey);
+	for (int i = 0; i < knownShardCount; i++) {
+		keys.add(getShardKey(name, i));
+	}
+	Map<Key, Entity> entities = mDatastore.get(keys);
+
+	Entity counter = entities.get(counterKey);
+	int shardCount = counter != null ? ((Long) counter.getProperty(SHARD_COUNT_PROPERTY)).intValue() : 1;
+	if (shardCount > knownShardCount) {
+		setKnownShardCount(name, shardCount);
+		List<Key> newKeys = new ArrayList<>(shardCount - knownShardCount);
+		for (int i = knownShardCount; i < shardCount; i++) {
+			newKeys.add(getShardKey(name, i));
+		}
+		entities.putAll(mDatastore.get(newKeys));
+	}
+
+	long total = 0;
+	for (Entity entity : entities.values()) {
+		if (entity.getKey().getKind().equals(SHARD_KIND)) {
+			total += (Long) entity.getProperty(VALUE_PROPERTY);
+		}
+	}
+	return total;
+}
+
+/**
+ * Make sure a counter has at least a number of shards, e.g. for counters that are known to be
+ * updated often
+ * @param name name of the counter
+ * @param shardCount minimum number of shards, at most {@link #SHARDS_MAX}
+ */
+public static void ensureShards(String name, int shardCount) {
+	if (shardCount < 1 || shardCount > SHARDS_MAX) {
+		throw new IllegalArgumentException("shardCount needs to be between 1 and " + SHARDS_MAX);
+	}
+	setStoredShardCount(name, shardCount);
+}
+
+/**
+ * @param name name of the counter
+ * @return number of shards of the counter
+ */
+public static int getShardCount(String name) {
+	Integer shardCount = mShardCounts.get(getCacheKey(name));
+	if (shardCount != null) {
+		return shardCount;
+	}
+
+	try {
+		Entity counter = mDatastore.get(getCounterKey(name));
+		shardCount = ((Long) counter.getProperty(SHARD_COUNT_PROPERTY)).intValue();
+	} catch (EntityNotFoundException e) {
+		shardCount = 1;
+	}
+	setKnownShardCount(name, shardCount);
+	return shardCount;
+}
+
+/**
+ * Double the number of shards of a contended counter
+ * @param name name of the counter
+ * @param shardCount number of shards the contended update used
+ * @return new number of shards
+ */
+private static int grow(String name, int shardCount) {
+	if (shardCount >= SHARDS_MAX) {
+		return shardCount;
+	}
+	int grownCount = setStoredShardCount(name, Math.min(shardCount * 2, SHARDS_MAX));
+	if (grownCount > shardCount) {
+		mLogger.info("Counter " + name + " is contended, grew from " + shardCount + " to " + grownCount + " shards");
+	}
+	return grownCount;
+}
+
+/**
+ * Transactionally raise the stored number of shards, never lowers it
+ * @param name name of the counter
+ * @param shardCount the minimum number of shards
+ * @return the stored number of shards
+ */
+private static int setStoredShardCount(String name, final int shardCount) {
+	final Key key = getCounterKey(name);
+	int storedCount = TransactionRunner.run(new TransactionRunner.Work<Integer>() {
+		@Override
+		public Integer run(TransactionRunner.Context context) {
+			Entity counter = context.get(key);
+			int storedCount = counter != null ? ((Long) counter.getProperty(SHARD_COUNT_PROPERTY)).intValue() : 1;
+			if (storedCount < shardCount) {
+				counter = new Entity(key);
+				counter.setUnindexedProperty(SHARD_COUNT_PROPERTY, (long) shardCount);
+				context.put(counter);
+				storedCount = shardCount;
+			}
+			return storedCount;
+		}
+	});
+	setKnownShardCount(name, storedCount);
+	return storedCount;
+}
+
+/**
+ * Transactionally add to a shard, a single attempt
+ * @param key key of the shard
+ * @param delta how much to add
+ * @throws ConcurrentModificationException if the shard was updated concurrently
+ */
+private static void addToShard(final Key key, final long delta) {
+	try {
+		TransactionRunner.run(TransactionRunner.Mode.READ_WRITE, SHARD_RETRY_POLICY, new TransactionRunner.Work<Void>() {
+			@Override
+			public Void run(TransactionRunner.Context context) {
+				Entity shard = context.get(key);
+				if (shard == null) {
+					shard = new Entity(key);
+					shard.setUnindexedProperty(VALUE_PROPERTY, 0L);
+				}
+				shard.setUnindexedProperty(VALUE_PROPERTY, (Long) shard.getProperty(VALUE_PROPERTY) + delta);
+				context.put(shard);
+				return null;
+			}
+		});
+	} catch (RetriesExhaustedException e) {
+		// Only one attempt is made, the caller picks another shard
+		throw (ConcurrentModificationException) e.getCause();
+	}
+}
+
+/**
+ * @param name name of the counter
+ * @return latest known number of shards, 1 if unknown
+ */
+private static int getKnownShardCount(String name) {
+	Integer shardCount = mShardCounts.get(getCacheKey(name));
+	return shardCount != null ? shardCount : 1;
+}
+
+/**
+ * Update the known number of shards if it has grown
+ * @param name name of the counter
+ * @param shardCount the number of shards
+ */
+private static void setKnownShardCount(String name, int shardCount) {
+	Integer knownCount = mShardCounts.get(getCacheKey(name));
+	if (knownCount == null || knownCount < shardCount) {
+		mShardCounts.put(getCacheKey(name), shardCount);
+	}
+}
+
+/**
+ * @param name name of the counter
+ * @return key of the counter in the caches, includes the namespace
+ */
+private static String getCacheKey(String name) {
+	return KeyFactory.keyToString(getCounterKey(name));
+}
+
+/**
+ * @param name name of the counter
+ * @return key of the entity with the number of shards
+ */
+private static Key getCounterKey(String name) {
+	return KeyFactory.createKey(COUNTER_KIND, name);
+}
+
+/**
+ * @param name name of the counter
+ * @param shard index of the shard
+ * @return key of the shard
+ */
+private static Key getShardKey(String name, int shard) {
+	return KeyFactory.createKey(SHARD_KIND, name + "#" + shard);
+}
+}
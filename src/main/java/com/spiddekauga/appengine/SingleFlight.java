@@ -0,0 +1,391 @@
+package com.spiddekauga.appengine;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single-flight reads used by {@link DatastoreUtils}. Enabled per kind. Concurrent reads in this
+ * instance of the same key, or of equal queries, share one datastore call and every caller gets its
+ * own copy of the result. Useful for hot entities such as global configuration, where a cold cache
+ * otherwise makes every concurrent request read the same entity.
+ * <p>
+ * Only calls that are still in flight are joined, a read that starts after another has returned
+ * makes a new call. Puts and deletes through {@link DatastoreUtils} stop later reads from joining
+ * calls of the written keys and of queries of their kinds. Queries of enabled kinds are fetched in
+ * full instead of lazily, so only enable kinds with small query results.
+ * </p>
+ */
+public class SingleFlight {
+private static final Set<String> mKinds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+private static final ConcurrentMap<FlightKey, Flight<?>> mFlights = new ConcurrentHashMap<>();
+private static final AtomicLong mFlightCount = new AtomicLong();
+private static final AtomicLong mJoinCount = new AtomicLong();
+
+/**
+ * Enable single-flight reads of a kind
+ * @param kind the kind of entities to share reads of
+ */
+public static void enable(String kind) {
+	mKinds.add(kind);
+}
+
+/**
+ * Disable single-flight reads of a kind
+ * @param kind the kind of entities to stop sharing reads of
+ */
+public static void disable(String kind) {
+	mKinds.remove(kind);
+}
+
+/**
+ * @param kind the kind to check, may be null for kindless queries
+ * @return true if reads of the kind are shared
+ */
+public static boolean isEnabled(String kind) {
+	return kind != null && !mKinds.isEmpty() && mKinds.contains(kind);
+}
+
+/**
+ * @return number of datastore calls made by reads of enabled kinds
+ */
+public static long getFlightCount() {
+	return mFlightCount.get();
+}
+
+/**
+ * @return number of reads of enabled kinds that joined a call in flight instead of making their own
+ */
+public static long getJoinCount() {
+	return mJoinCount.get();
+}
+
+/**
+ * Reset the flight and join counts
+ */
+public static void resetStatistics() {
+	mFlightCount.set(0);
+	mJoinCount.set(0);
+}
+
+/**
+ * Get an entity, shared with concurrent reads of the same key if enabled for the kind
+ * @param profile datastore profile to read with
+ * @param key key of the entity
+ * @return future of the get, the result is a copy that the caller can change
+ */
+static Future<Entity> get(final DatastoreProfile profile, final Key key) {
+	if (!isEnabled(key.getKind())) {
+		return HedgedReads.get(profile.getAsyncDatastore(), key);
+	}
+
+	return new Flight<Entity>(profile, key) {
+		@Override
+		protected Future<Entity> call() {
+			return HedgedReads.get(profile.getAsyncDatastore(), key);
+		}
+
+		@Override
+		protected Entity copy(Entity result) {
+			return result.clone();
+		}
+	}.start();
+}
+
+/**
+ * Run a query of an enabled kind, shared with concurrent runs of an equal query. Fetches all
+ * results before returning.
+ * @param profile datastore profile to read with
+ * @param query the query to run, its kind should be enabled
+ * @return all results of the query, copies that the caller can change
+ */
+static List<Entity> getEntities(final DatastoreProfile profile, Query query) {
+	// Copied so that later changes to the caller's query don't change the flight key
+	final Query copy = DatastoreUtils.copyQuery(query);
+	Future<List<Entity>> future = new Flight<List<Entity>>(profile, copy) {
+		@Override
+		protected Future<List<Entity>> call() {
+			List<Entity> entities = new ArrayList<>(profile.getDatastore().prepare(copy).asList(FetchOptions.Builder.withDefaults()));
+			return new CompletedFuture<>(entities);
+		}
+
+		@Override
+		protected List<Entity> copy(List<Entity> result) {
+			List<Entity> entities = new ArrayList<>(result.size());
+			for (Entity entity : result) {
+				entities.add(entity.clone());
+			}
+			return entities;
+		}
+	}.start();
+
+	return DatastoreUtils.waitFor(future);
+}
+
+/**
+ * Stop later reads from joining calls of written keys, and of queries of their kinds
+ * @param keys keys that were put or deleted
+ */
+static void onWritten(Collection<Key> keys) {
+	if (mFlights.isEmpty()) {
+		return;
+	}
+
+	Set<String> kinds = new HashSet<>();
+	for (Key key : keys) {
+		if (isEnabled(key.getKind())) {
+			kinds.add(key.getKind());
+		}
+	}
+	if (kinds.isEmpty()) {
+		return;
+	}
+
+	Set<Key> keySet = new HashSet<>(keys);
+	Iterator<FlightKey> iterator = mFlights.keySet().iterator();
+	while (iterator.hasNext()) {
+		Object target = iterator.next().mTarget;
+		if (target instanceof Key ? keySet.contains(target) : kinds.contains(((Query) target).getKind())) {
+			iterator.remove();
+		}
+	}
+}
+
+/**
+ * What a flight reads and how
+ */
+private static final class FlightKey {
+	private final DatastoreProfile mProfile;
+	/** A Key or a Query */
+	private final Object mTarget;
+
+	/**
+	 * @param profile datastore profile that is read with
+	 * @param target the key or query that is read
+	 */
+	FlightKey(DatastoreProfile profile, Object target) {
+		mProfile = profile;
+		mTarget = target;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof FlightKey)) {
+			return false;
+		}
+		FlightKey flightKey = (FlightKey) other;
+		return mProfile == flightKey.mProfile && mTarget.equals(flightKey.mTarget);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * System.identityHashCode(mProfile) + mTarget.hashCode();
+	}
+}
+
+/**
+ * One datastore call that concurrent reads share. The first read makes the call, reads that start
+ * while it's in flight wait for it instead.
+ * @param <T> result type of the read
+ */
+abstract static class Flight<T> {
+	private final FlightKey mFlightKey;
+	/** Counted down when the call has been made */
+	private final CountDownLatch mStarted = new CountDownLatch(1);
+	private volatile Future<T> mFuture = null;
+	private volatile RuntimeException mCallException = null;
+
+	/**
+	 * @param profile datastore profile that is read with
+	 * @param target the key or query that is read
+	 */
+	Flight(DatastoreProfile profile, Object target) {
+		mFlightKey = new FlightKey(profile, target);
+	}
+
+	/**
+	 * Make the datastore call
+	 * @return future of the call
+	 */
+	protected abstract Future<T> call();
+
+	/**
+	 * Copy the shared result for one caller
+	 * @param result the shared result, never null
+	 * @return a copy that the caller can change
+	 */
+	protected abstract T copy(T result);
+
+	/**
+	 * Join the call in flight of the same read, or make the call if there is none
+	 * @return future of this caller's copy of the result
+	 */
+	Future<T> start() {
+		while (true) {
+			Flight<?> existing = mFlights.get(mFlightKey);
+			if (existing != null && !existing.isDone()) {
+				mJoinCount.incrementAndGet();
+				@SuppressWarnings("unchecked")
+				Flight<T> joined = (Flight<T>) existing;
+				return new Passenger<>(joined);
+			}
+
+			boolean boarded = existing == null ? mFlights.putIfAbsent(mFlightKey, this) == null : mFlights.replace(mFlightKey, existing, this);
+			if (boarded) {
+				break;
+			}
+		}
+
+		mFlightCount.incrementAndGet();
+		try {
+			mFuture = call();
+		} catch (RuntimeException e) {
+			mCallException = e;
+			land();
+		} finally {
+			mStarted.countDown();
+		}
+		return new Passenger<>(this);
+	}
+
+	/**
+	 * @return true if the call has returned
+	 */
+	boolean isDone() {
+		if (mStarted.getCount() > 0) {
+			return false;
+		}
+		boolean done = mCallException != null || mFuture.isDone();
+		if (done) {
+			land();
+		}
+		return done;
+	}
+
+	/**
+	 * Wait for the call
+	 * @param timeoutNanos how long to wait, 0 to wait without a timeout
+	 * @return the shared result
+	 * @throws InterruptedException if interrupted while waiting
+	 * @throws ExecutionException if the call failed
+	 * @throws TimeoutException if the call didn't return in time
+	 */
+	T await(long timeoutNanos) throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.nanoTime() + timeoutNanos;
+		if (timeoutNanos == 0) {
+			mStarted.await();
+		} else if (!mStarted.await(timeoutNanos, TimeUnit.NANOSECONDS)) {
+			throw new TimeoutException();
+		}
+
+		if (mCallException != null) {
+			throw new ExecutionException(mCallException);
+		}
+		try {
+			if (timeoutNanos == 0) {
+				return mFuture.get();
+			} else {
+				return mFuture.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+			}
+		} catch (ExecutionException e) {
+			land();
+			throw e;
+		} finally {
+			if (mFuture.isDone()) {
+				land();
+			}
+		}
+	}
+
+	/**
+	 * Stop new reads from joining this call
+	 */
+	private void land() {
+		mFlights.remove(mFlightKey, this);
+	}
+}
+
+/**
+ * One caller's view of a shared call. Cancelling only cancels this caller's wait, the call continues
+ * for the other callers.
+ * @param <T> result type of the read
+ */
+private static class Passenger<T> implements Future<T> {
+	private final Flight<T> mFlight;
+	private volatile boolean mCancelled = false;
+
+	/**
+	 * @param flight the shared call
+	 */
+	Passenger(Flight<T> flight) {
+		mFlight = flight;
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		if (mCancelled || mFlight.isDone()) {
+			return false;
+		}
+		mCancelled = true;
+		return true;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
+	@Override
+	public boolean isDone() {
+		return mCancelled || mFlight.isDone();
+	}
+
+	@Override
+	public T get() throws InterruptedException, ExecutionException {
+		try {
+			return get(0);
+		} catch (TimeoutException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		return get(Math.max(unit.toNanos(timeout), 1));
+	}
+
+	/**
+	 * Wait for the shared call and copy its result
+	 * @param timeoutNanos how long to wait, 0 to wait without a timeout
+	 * @return this caller's copy of the result
+	 * @throws InterruptedException if interrupted while waiting
+	 * @throws ExecutionException if the call failed
+	 * @throws TimeoutException if the call didn't return in time
+	 */
+	private T get(long timeoutNanos) throws InterruptedException, ExecutionException, TimeoutException {
+		if (mCancelled) {
+			throw new CancellationException();
+		}
+		T result = mFlight.await(timeoutNanos);
+		return result != null ? mFlight.copy(result) : null;
+	}
+}
+}
@@ -0,0 +1,411 @@
+package com.spiddekauga.appengine;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import com.spiddekauga.appengine.RetryPolicy.RetriesExhaustedException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs work in a datastore transaction and retries it when the commit conflicts with another
+ * transaction. Retries are delayed and limited by a {@link RetryPolicy}. The transaction is rolled
+ * back when the work fails. Caches and maintained counts are only updated after a successful
+ * commit.
+ * <p>
+ * Conflicts are counted per kind of the root entity of each entity group the transaction used, so
+ * that hot entity groups can be found and split.
+ * </p>
+ * @see DatastoreUtils#runInTransaction(Work)
+ */
+public class TransactionRunner {
+private static final Logger mLogger = Logger.getLogger(TransactionRunner.class.getName());
+private static final ConcurrentMap<String, AtomicLong> mConflicts = new ConcurrentHashMap<>();
+
+/**
+ * Run work in a single entity group transaction using the retry policy of {@link DatastoreUtils}
+ * @param work the work to run, can be run several times
+ * @param <T> result type of the work
+ * @return result of the work from the attempt that committed
+ * @throws RetriesExhaustedException if the commit conflicted on every attempt
+ */
+public static <T> T run(Work<T> work) {
+	return run(Mode.READ_WRITE, DatastoreUtils.getRetryPolicy(), work);
+}
+
+/**
+ * Run work in a transaction
+ * @param mode type of transaction
+ * @param retryPolicy how many times and how quickly to retry conflicts
+ * @param work the work to run, can be run several times
+ * @param <T> result type of the work
+ * @return result of the work from the attempt that committed
+ * @throws RetriesExhaustedException if the commit conflicted on every attempt
+ */
+public static <T> T run(Mode mode, RetryPolicy retryPolicy, Work<T> work) {
+	DatastoreProfile profile = DatastoreProfile.current();
+	// Reads in transactions are always strongly consistent
+	DatastoreService datastore = profile.isEventual() ? DatastoreProfile.DEFAULT.getDatastore() : profile.getDatastore();
+	TransactionOptions options = TransactionOptions.Builder.withXG(mode != Mode.READ_WRITE);
+	RequestCache requestCache = RequestCache.current();
+	long startTime = System.nanoTime();
+
+	for (int attempt = 1; ; attempt++) {
+		Context context = new Context(datastore, datastore.beginTransaction(options), mode, attempt);
+		try {
+			T result = work.run(context);
+			context.commit();
+			retryPolicy.onCompleted(attempt - 1, true);
+			context.onCommitted(requestCache);
+			FutureCompleter.runDeferred();
+			return result;
+		} catch (ConcurrentModificationException e) {
+			context.onConflict();
+			long backoff = retryPolicy.getBackoffNanos(attempt);
+			if (attempt >= retryPolicy.getMaxAttempts() || System.nanoTime() + backoff - startTime > retryPolicy.getDeadlineNanos()) {
+				retryPolicy.onCompleted(attempt - 1, false);
+				throw new RetriesExhaustedException(attempt, e);
+			}
+			sleep(backoff);
+		} finally {
+			context.rollbackIfActive();
+		}
+	}
+}
+
+/**
+ * @param kind kind of the root entity of an entity group
+ * @return number of transactions on entity groups with the root kind that conflicted
+ */
+public static long getConflictCount(String kind) {
+	AtomicLong conflicts = mConflicts.get(kind);
+	return conflicts != null ? conflicts.get() : 0;
+}
+
+/**
+ * @return number of conflicts of all root kinds that have had conflicts
+ */
+public static Map<String, Long> getConflictCounts() {
+	Map<String, Long> conflicts = new HashMap<>();
+	for (Map.Entry<String, AtomicLong> entry : mConflicts.entrySet()) {
+		conflicts.put(entry.getKey(), entry.getValue().get());
+	}
+	return conflicts;
+}
+
+/**
+ * Reset the conflict counts of all kinds
+ */
+public static void resetStatistics() {
+	mConflicts.clear();
+}
+
+/**
+ * Wait before the next attempt
+ * @param nanos how long to wait
+ */
+private static void sleep(long nanos) {
+	try {
+		TimeUnit.NANOSECONDS.sleep(nanos);
+	} catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		throw new ConcurrentModificationException("Interrupted while waiting to retry the transaction");
+	}
+}
+
+/**
+ * Type of transaction
+ */
+public enum Mode {
+	/** Reads and writes entities of a single entity group */
+	READ_WRITE,
+	/** Reads and writes entities of up to 25 entity groups */
+	CROSS_GROUP,
+	/** Consistent reads of up to 25 entity groups, writes throw IllegalStateException. Never commits */
+	READ_ONLY,
+}
+
+/**
+ * Work that is run in a transaction. Can be run several times if the transaction conflicts, so it
+ * shouldn't have side effects outside of the transaction.
+ * @param <T> result type of the work
+ */
+public interface Work<T> {
+	/**
+	 * Run the work
+	 * @param context reads and writes through the transaction
+	 * @return result of the work
+	 */
+	T run(Context context);
+}
+
+/**
+ * Reads and writes through a transaction
+ */
+public static class Context {
+	private final DatastoreService mDatastore;
+	private final Transaction mTransaction;
+	private final Mode mMode;
+	private final int mAttempt;
+	/** Keys of the root entities of all entity groups that have been used */
+	private final Set<Key> mRoots = new HashSet<>();
+	private final Map<Key, Entity> mPuts = new LinkedHashMap<>();
+	private final List<Entity> mNewEntities = new ArrayList<>();
+	private final Set<Key> mDeletes = new HashSet<>();
+	private EntityCounts.CountChange mPutCountChange = null;
+	private EntityCounts.CountChange mDeleteCountChange = null;
+
+	/**
+	 * @param datastore the datastore service
+	 * @param transaction the transaction of this attempt
+	 * @param mode type of transaction
+	 * @param attempt the attempt number, starts at 1
+	 */
+	private Context(DatastoreService datastore, Transaction transaction, Mode mode, int attempt) {
+		mDatastore = datastore;
+		mTransaction = transaction;
+		mMode = mode;
+		mAttempt = attempt;
+	}
+
+	/**
+	 * Get an entity in the transaction
+	 * @param key key of the entity
+	 * @return the entity, null if it doesn't exist
+	 */
+	public Entity get(Key key) {
+		return get(Collections.singletonList(key)).get(key);
+	}
+
+	/**
+	 * Get entities in the transaction
+	 * @param keys keys of the entities
+	 * @return all entities that exist
+	 */
+	public Map<Key, Entity> get(Iterable<Key> keys) {
+		for (Key key : keys) {
+			mRoots.add(getRoot(key));
+		}
+		return mDatastore.get(mTransaction, keys);
+	}
+
+	/**
+	 * Prepare an ancestor query in the transaction
+	 * @param query query with an ancestor
+	 * @return the prepared query
+	 */
+	public PreparedQuery prepare(Query query) {
+		if (query.getAncestor() != null) {
+			mRoots.add(getRoot(query.getAncestor()));
+		}
+		return mDatastore.prepare(mTransaction, query);
+	}
+
+	/**
+	 * Put an entity in the transaction
+	 * @param entity the entity to put
+	 * @return key of the entity
+	 * @throws IllegalStateException if the transaction is read-only
+	 */
+	public Key put(Entity entity) {
+		return put(Collections.singletonList(entity)).get(0);
+	}
+
+	/**
+	 * Put entities in the transaction. The chunks of large values that haven't been put yet are put
+	 * in the same transaction.
+	 * @param entities the entities to put
+	 * @return keys of the entities in the same order
+	 * @throws IllegalStateException if the transaction is read-only
+	 * @see LargeProperties
+	 */
+	public List<Key> put(Iterable<Entity> entities) {
+		checkWritable();
+		List<Entity> entityList = new ArrayList<>();
+		List<Entity> newEntities = new ArrayList<>();
+		for (Entity entity : entities) {
+			entityList.add(entity);
+			if (!entity.getKey().isComplete()) {
+				newEntities.add(entity);
+			}
+		}
+		List<Entity> largeValueChunks = LargeProperties.getUnputChunks(entityList);
+		if (!largeValueChunks.isEmpty()) {
+			mDatastore.put(mTransaction, largeValueChunks);
+		}
+		List<Key> keys = mDatastore.put(mTransaction, entityList);
+
+		mNewEntities.addAll(newEntities);
+		for (Entity entity : entityList) {
+			mRoots.add(getRoot(entity.getKey()));
+			if (!newEntities.contains(entity)) {
+				mPuts.put(entity.getKey(), entity);
+				mDeletes.remove(entity.getKey());
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Delete entities in the transaction
+	 * @param keys keys of the entities to delete
+	 * @throws IllegalStateException if the transaction is read-only
+	 */
+	public void delete(Key... keys) {
+		delete(Arrays.asList(keys));
+	}
+
+	/**
+	 * Delete entities in the transaction
+	 * @param keys keys of the entities to delete
+	 * @throws IllegalStateException if the transaction is read-only
+	 */
+	public void delete(Iterable<Key> keys) {
+		checkWritable();
+		mDatastore.delete(mTransaction, keys);
+		for (Key key : keys) {
+			mRoots.add(getRoot(key));
+			mPuts.remove(key);
+			mDeletes.add(key);
+		}
+	}
+
+	/**
+	 * @return the transaction, e.g. to pass to other code that uses the datastore service directly
+	 */
+	public Transaction getTransaction() {
+		return mTransaction;
+	}
+
+	/**
+	 * @return type of transaction
+	 */
+	public Mode getMode() {
+		return mMode;
+	}
+
+	/**
+	 * @return the attempt number, starts at 1
+	 */
+	public int getAttempt() {
+		return mAttempt;
+	}
+
+	/**
+	 * @throws IllegalStateException if the transaction is read-only
+	 */
+	private void checkWritable() {
+		if (mMode == Mode.READ_ONLY) {
+			throw new IllegalStateException("Can't write in a read-only transaction");
+		}
+	}
+
+	/**
+	 * Commit the transaction, read-only transactions are rolled back instead
+	 */
+	private void commit() {
+		if (mMode == Mode.READ_ONLY) {
+			mTransaction.rollback();
+			return;
+		}
+
+		List<Entity> puts = new ArrayList<>(mNewEntities);
+		puts.addAll(mPuts.values());
+		// Checked in the transaction, sees the entities as they were before it
+		mPutCountChange = EntityCounts.getPutChange(puts, mDatastore, mTransaction);
+		mDeleteCountChange = EntityCounts.getDeleteChange(new ArrayList<>(mDeletes), mDatastore, mTransaction);
+		mTransaction.commit();
+	}
+
+	/**
+	 * Update the caches and maintained counts after the commit. Failures are logged, the
+	 * transaction has already been committed and mustn't be run again.
+	 * @param requestCache cache of the request, may be null
+	 */
+	private void onCommitted(RequestCache requestCache) {
+		try {
+			updateCaches(requestCache);
+		} catch (RuntimeException e) {
+			mLogger.log(Level.WARNING, "Failed to update the caches after a commit", e);
+		}
+	}
+
+	/**
+	 * Update the caches and maintained counts after the commit
+	 * @param requestCache cache of the request, may be null
+	 */
+	private void updateCaches(RequestCache requestCache) {
+		List<Entity> puts = new ArrayList<>(mNewEntities);
+		puts.addAll(mPuts.values());
+		if (!puts.isEmpty()) {
+			DatastoreUtils.onPut(requestCache, puts);
+			if (mPutCountChange != null) {
+				mPutCountChange.apply();
+			}
+		}
+		if (!mDeletes.isEmpty()) {
+			DatastoreUtils.onDeleted(requestCache, new ArrayList<>(mDeletes));
+			if (mDeleteCountChange != null) {
+				mDeleteCountChange.apply();
+			}
+		}
+	}
+
+	/**
+	 * Count a conflict for the root kind of every entity group that was used
+	 */
+	private void onConflict() {
+		Set<String> kinds = new HashSet<>();
+		for (Key root : mRoots) {
+			kinds.add(root.getKind());
+		}
+		for (String kind : kinds) {
+			AtomicLong conflicts = mConflicts.get(kind);
+			if (conflicts == null) {
+				mConflicts.putIfAbsent(kind, new AtomicLong());
+				conflicts = mConflicts.get(kind);
+			}
+			conflicts.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Roll back the transaction if it hasn't been committed
+	 */
+	private void rollbackIfActive() {
+		if (mTransaction.isActive()) {
+			mTransaction.rollback();
+		}
+	}
+
+	/**
+	 * @param key any key
+	 * @return key of the root entity of the entity group
+	 */
+	private static Key getRoot(Key key) {
+		while (key.getParent() != null) {
+			key = key.getParent();
+		}
+		return key;
+	}
+}
+}
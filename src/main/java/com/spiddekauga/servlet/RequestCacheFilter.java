@@ -0,0 +1,49 @@
+package com.spiddekauga.servlet;
+
+import com.spiddekauga.appengine.DatastoreUtils;
+import com.spiddekauga.appengine.RequestCache;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+/**
+ * Enables the {@link RequestCache} for every request and clears it when the request has finished.
+ * Asynchronous datastore operations that weren't waited for are completed before the cache is
+ * cleared, see {@link DatastoreUtils#completeAsync()}. The maximum number of cached entities can be
+ * set with the init parameter 'maxSize'.
+ */
+public class RequestCacheFilter implements Filter {
+private int mMaxSize = RequestCache.MAX_SIZE_DEFAULT;
+
+@Override
+public void init(FilterConfig filterConfig) throws ServletException {
+	String maxSize = filterConfig.getInitParameter("maxSize");
+	if (maxSize != null) {
+		mMaxSize = Integer.parseInt(maxSize);
+	}
+}
+
+@Override
+public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+	RequestCache.begin(mMaxSize);
+	try {
+		chain.doFilter(request, response);
+	} finally {
+		try {
+			DatastoreUtils.completeAsync();
+		} finally {
+			RequestCache.end();
+		}
+	}
+}
+
+@Override
+public void destroy() {
+}
+}
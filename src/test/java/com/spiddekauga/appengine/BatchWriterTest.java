@@ -0,0 +1,80 @@
+package com.spiddekauga.appengine;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.spiddekauga.appengine.BatchWriter.FlushResult;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests buffering and collapsing of writes
+ */
+public class BatchWriterTest {
+private final LocalServiceTestHelper mHelper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+@Before
+public void setUp() {
+	mHelper.setUp();
+}
+
+@After
+public void tearDown() {
+	mHelper.tearDown();
+}
+
+@Test
+public void flush_collapsesWritesToSameKey() {
+	BatchWriter writer = new BatchWriter(100, 60000);
+	Key key = KeyFactory.createKey("Test", "collapsed");
+	Key deletedKey = KeyFactory.createKey("Test", "deleted");
+
+	for (int i = 0; i < 10; i++) {
+		Entity entity = new Entity(key);
+		entity.setProperty("value", i);
+		writer.put(entity);
+	}
+	writer.put(new Entity(deletedKey));
+	writer.delete(deletedKey);
+	writer.put(new Entity("Test"));
+	assertEquals(3, writer.getPendingCount());
+
+	FlushResult result = writer.flush();
+	assertTrue(result.isSuccessful());
+	assertEquals(2, result.getPutCount());
+	assertEquals(1, result.getDeleteCount());
+	assertEquals(0, writer.getPendingCount());
+
+	assertEquals(9L, DatastoreUtils.getEntity(key).getProperty("value"));
+	assertNull(DatastoreUtils.getEntity(deletedKey));
+}
+
+@Test
+public void put_flushesWhenFull() {
+	BatchWriter writer = new BatchWriter(5, 60000);
+	for (int i = 0; i < 12; i++) {
+		writer.put(new Entity("Test", "entity" + i));
+	}
+
+	// The second automatic flush waited for the first one
+	assertEquals(2, writer.getPendingCount());
+	assertNotNull(writer.getLastAutoFlush());
+	assertEquals(5, writer.getLastAutoFlush().getPutCount());
+	assertNotNull(DatastoreUtils.getEntity(KeyFactory.createKey("Test", "entity4")));
+	assertNull(DatastoreUtils.getEntity(KeyFactory.createKey("Test", "entity11")));
+
+	writer.close();
+	assertTrue(writer.getLastAutoFlush().isSuccessful());
+	assertNotNull(DatastoreUtils.getEntity(KeyFactory.createKey("Test", "entity9")));
+	assertNotNull(DatastoreUtils.getEntity(KeyFactory.createKey("Test", "entity11")));
+}
+}
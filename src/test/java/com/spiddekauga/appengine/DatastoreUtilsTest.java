@@ -0,0 +1,774 @@
+package com.spiddekauga.appengine;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.ReadPolicy.Consistency;
+import com.google.appengine.api.datastore.ShortBlob;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.spiddekauga.appengine.DatastoreUtils.FilterWrapper;
+import com.spiddekauga.appengine.DatastoreUtils.ProjectionWrapper;
+import com.spiddekauga.appengine.DatastoreUtils.PropertyNotFoundException;
+import com.spiddekauga.appengine.DatastoreUtils.QueryMode;
+import com.spiddekauga.appengine.EntityCounts.CountResult;
+import com.spiddekauga.utils.IIdStore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the datastore utilities against the local datastore
+ */
+public class DatastoreUtilsTest {
+private final LocalServiceTestHelper mHelper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig());
+
+@Before
+public void setUp() {
+	mHelper.setUp();
+}
+
+@After
+public void tearDown() {
+	DatastoreUtils.completeAsync();
+	RequestCache.end();
+	DatastoreUtils.setUuidFormat(DatastoreUtils.UuidFormat.STRING);
+	DatastoreUtils.setCompressByteArrays(false);
+	LargeProperties.disable("Large");
+	LargeProperties.setCleanupDelay(LargeProperties.CLEANUP_DELAY_MILLIS_DEFAULT);
+	mHelper.tearDown();
+}
+
+@Test
+public void putAsync_getEntityAsync() throws Exception {
+	Entity entity = new Entity("Test");
+	entity.setProperty("name", "first");
+
+	Future<Key> putFuture = DatastoreUtils.putAsync(entity);
+	Key key = putFuture.get();
+	assertNotNull(key);
+
+	Future<Entity> getFuture = DatastoreUtils.getEntityAsync(key);
+	assertEquals("first", getFuture.get().getProperty("name"));
+}
+
+@Test
+public void putAsync_completesWithoutWaiting() throws Exception {
+	RequestCache requestCache = RequestCache.begin();
+	Future<Key> putFuture = DatastoreUtils.putAsync(new Entity("Test", "background"));
+
+	DatastoreUtils.completeAsync();
+	assertTrue(putFuture.isDone());
+	assertEquals(1, requestCache.size());
+}
+
+@Test
+public void getEntityAsync_notFound() throws Exception {
+	Key key = KeyFactory.createKey("Test", "missing");
+	assertNull(DatastoreUtils.getEntityAsync(key).get());
+	assertNull(DatastoreUtils.getEntity(key));
+}
+
+@Test
+public void getEntitiesAsync_concurrentReads() throws Exception {
+	List<Entity> entities = new ArrayList<>();
+	for (int i = 0; i < 5; i++) {
+		entities.add(new Entity("Test", "entity" + i));
+	}
+	List<Key> keys = DatastoreUtils.put(entities);
+
+	List<Future<Entity>> futures = new ArrayList<>();
+	for (Key key : keys) {
+		futures.add(DatastoreUtils.getEntityAsync(key));
+	}
+	Future<Map<Key, Entity>> batchFuture = DatastoreUtils.getEntitiesAsync(keys);
+
+	for (int i = 0; i < keys.size(); i++) {
+		assertEquals(keys.get(i), futures.get(i).get().getKey());
+	}
+	assertEquals(keys.size(), batchFuture.get().size());
+}
+
+@Test
+public void deleteAsync() throws Exception {
+	Key key = DatastoreUtils.put(new Entity("Test", "deleted"));
+	DatastoreUtils.deleteAsync(key).get();
+	assertNull(DatastoreUtils.getEntity(key));
+}
+
+@Test
+public void batchOperations_largerThanLimits() {
+	List<Entity> entities = new ArrayList<>();
+	for (int i = 0; i < 1234; i++) {
+		Entity entity = new Entity("Test");
+		entity.setProperty("index", i);
+		entities.add(entity);
+	}
+
+	List<Key> keys = DatastoreUtils.put(entities);
+	assertEquals(entities.size(), keys.size());
+	for (int i = 0; i < keys.size(); i++) {
+		assertEquals(entities.get(i).getKey(), keys.get(i));
+	}
+
+	Map<Key, Entity> found = DatastoreUtils.getEntities(keys);
+	assertEquals(keys, new ArrayList<>(found.keySet()));
+
+	DatastoreUtils.delete(keys);
+	assertEquals(0, DatastoreUtils.getEntities(keys).size());
+}
+
+@Test
+public void getEntitiesAsync_failedChunkFailsAll() throws Exception {
+	List<Key> keys = new ArrayList<>();
+	for (int i = 1; i <= 1500; i++) {
+		keys.add(KeyFactory.createKey("Test", i));
+	}
+	// Incomplete keys can't be read
+	keys.add(new Entity("Test").getKey());
+
+	try {
+		DatastoreUtils.getEntitiesAsync(keys).get();
+		fail("Expected the get to fail");
+	} catch (ExecutionException e) {
+		assertTrue(e.getCause() instanceof IllegalArgumentException);
+	}
+	try {
+		DatastoreUtils.getEntities(keys);
+		fail("Expected the get to fail");
+	} catch (IllegalArgumentException e) {
+		// Expected
+	}
+}
+
+@Test
+public void requestCache_servesRepeatedReads() {
+	Key key = DatastoreUtils.put(new Entity("Test", "cached"));
+	Key otherKey = DatastoreUtils.put(new Entity("Test", "other"));
+	RequestCache cache = RequestCache.begin();
+
+	Entity first = DatastoreUtils.getEntity(key);
+	first.setProperty("name", "changed");
+	Entity second = DatastoreUtils.getEntity(key);
+	assertEquals(key, second.getKey());
+	assertNull(second.getProperty("name"));
+	assertEquals(1, cache.getMissCount());
+	assertEquals(1, cache.getHitCount());
+
+	Map<Key, Entity> entities = DatastoreUtils.getEntities(Arrays.asList(key, otherKey));
+	assertEquals(Arrays.asList(key, otherKey), new ArrayList<>(entities.keySet()));
+	assertNull(entities.get(key).getProperty("name"));
+	assertEquals(2, cache.getMissCount());
+	assertEquals(2, cache.getHitCount());
+
+	Entity updated = new Entity(key);
+	updated.setProperty("name", "updated");
+	DatastoreUtils.put(updated);
+	updated.setProperty("name", "not put");
+	assertEquals("updated", DatastoreUtils.getEntity(key).getProperty("name"));
+
+	// Eventually consistent reads aren't added to the request cache
+	DatastoreProfile feed = DatastoreProfile.register("requestCacheFeed", Consistency.EVENTUAL, 2);
+	Key eventualKey = DatastoreUtils.put(new Entity("Test", "eventual"));
+	cache.remove(eventualKey);
+	DatastoreUtils.getEntity(eventualKey, feed);
+	DatastoreUtils.getEntities(Arrays.asList(eventualKey), feed);
+	long hits = cache.getHitCount();
+	DatastoreUtils.getEntity(eventualKey);
+	assertEquals(hits, cache.getHitCount());
+
+	DatastoreUtils.delete(key);
+	assertNull(DatastoreUtils.getEntity(key));
+
+	RequestCache.end();
+	assertNull(RequestCache.current());
+	assertEquals(0, cache.size());
+}
+
+@Test
+public void requestCache_moreMissesThanMaxSize() {
+	List<Entity> entities = new ArrayList<>();
+	for (int i = 0; i < 13; i++) {
+		entities.add(new Entity("Test", "entity" + i));
+	}
+	List<Key> keys = DatastoreUtils.put(entities);
+	RequestCache cache = RequestCache.begin(5);
+	for (int i = 0; i < 3; i++) {
+		DatastoreUtils.getEntity(keys.get(i));
+	}
+
+	// Caching the 10 misses evicts the 3 hits
+	Map<Key, Entity> found = DatastoreUtils.getEntities(keys);
+	assertEquals(keys, new ArrayList<>(found.keySet()));
+	assertEquals(3, cache.getHitCount());
+	assertEquals(5, cache.size());
+}
+
+@Test
+public void entityMemcache_readThroughAndInvalidate() {
+	EntityMemcache.enable("Cached", 60);
+	try {
+		Entity entity = new Entity("Cached", "memcached");
+		entity.setProperty("value", "first");
+		// Bypass the invalidation lock of DatastoreUtils.put()
+		Key key = DatastoreServiceFactory.getDatastoreService().put(entity);
+		Key uncachedKey = DatastoreUtils.put(new Entity("Test", "uncached"));
+
+		long hits = EntityMemcache.getHitCount();
+		assertEquals("first", DatastoreUtils.getEntity(key).getProperty("value"));
+		assertEquals(hits, EntityMemcache.getHitCount());
+		assertEquals("first", DatastoreUtils.getEntity(key).getProperty("value"));
+		assertEquals(hits + 1, EntityMemcache.getHitCount());
+
+		Map<Key, Entity> entities = DatastoreUtils.getEntities(Arrays.asList(uncachedKey, key));
+		assertEquals(Arrays.asList(uncachedKey, key), new ArrayList<>(entities.keySet()));
+		assertEquals(hits + 2, EntityMemcache.getHitCount());
+
+		entity.setProperty("value", "second");
+		DatastoreUtils.put(entity);
+		assertEquals("second", DatastoreUtils.getEntity(key).getProperty("value"));
+		assertEquals(hits + 2, EntityMemcache.getHitCount());
+	} finally {
+		EntityMemcache.disable("Cached");
+	}
+}
+
+@Test
+public void getEntities_keysThenGet() {
+	List<Entity> entities = new ArrayList<>();
+	for (int i = 0; i < 250; i++) {
+		Entity entity = new Entity("Test");
+		entity.setProperty("index", i);
+		entity.setProperty("even", i % 2 == 0);
+		entities.add(entity);
+	}
+	DatastoreUtils.put(entities);
+	RequestCache cache = RequestCache.begin();
+	DatastoreUtils.getEntity(entities.get(0).getKey());
+
+	Query query = DatastoreUtils.createQuery("Test", new FilterWrapper("even", true));
+	query.addSort("index", SortDirection.DESCENDING);
+
+	List<Long> indices = new ArrayList<>();
+	for (Entity entity : DatastoreUtils.getEntities(query, QueryMode.KEYS_THEN_GET)) {
+		indices.add((Long) entity.getProperty("index"));
+	}
+	assertEquals(125, indices.size());
+	assertEquals(Long.valueOf(248), indices.get(0));
+	assertEquals(Long.valueOf(0), indices.get(124));
+	assertEquals(1, cache.getHitCount());
+	assertFalse(query.isKeysOnly());
+}
+
+@Test
+public void getEntityStream_resumeFromCursor() {
+	List<Entity> entities = new ArrayList<>();
+	for (int i = 0; i < 25; i++) {
+		Entity entity = new Entity("Test");
+		entity.setProperty("index", i);
+		entities.add(entity);
+	}
+	DatastoreUtils.put(entities);
+	Query query = new Query("Test").addSort("index");
+
+	CursorQueryIterator stream = DatastoreUtils.getEntityStream(query, 10, 5, CursorQueryIterator.NO_LIMIT, null);
+	int count = 0;
+	while (count < 15 && stream.hasNext()) {
+		assertEquals(Long.valueOf(count), stream.next().getProperty("index"));
+		count++;
+	}
+	assertTrue(stream.isBatchComplete());
+	assertEquals(2, stream.getBatchCount());
+	Cursor cursor = stream.getCursor();
+
+	CursorQueryIterator resumed = DatastoreUtils.getEntityStream(query, 10, 10, 7, cursor);
+	for (Entity entity : resumed) {
+		assertEquals(Long.valueOf(count), entity.getProperty("index"));
+		count++;
+	}
+	assertEquals(22, count);
+	assertEquals(7, resumed.getReturnedCount());
+}
+
+@Test
+public void getEntities_projection() {
+	UUID uuid = UUID.randomUUID();
+	Entity entity = new Entity("Test");
+	DatastoreUtils.setProperty(entity, "uuid", uuid);
+	DatastoreUtils.setProperty(entity, "count", 3);
+	DatastoreUtils.setProperty(entity, "name", "projected");
+	DatastoreUtils.setUnindexedProperty(entity, "data", new byte[2000]);
+	DatastoreUtils.put(entity);
+
+	List<ProjectionWrapper> projections = Arrays.asList(new ProjectionWrapper("uuid", UUID.class), new ProjectionWrapper("count", int.class));
+	List<Entity> found = new ArrayList<>();
+	for (Entity projected : DatastoreUtils.getProjectedEntities("Test", projections, new FilterWrapper("name", "projected"))) {
+		found.add(projected);
+	}
+
+	assertEquals(1, found.size());
+	assertEquals(uuid, DatastoreUtils.getPropertyUuid(found.get(0), "uuid"));
+	assertEquals(3, DatastoreUtils.getPropertyInt(found.get(0), "count", 0));
+	assertFalse(found.get(0).hasProperty("data"));
+}
+
+@Test
+public void entityCounts_modes() {
+	List<Entity> entities = new ArrayList<>();
+	for (int i = 0; i < 30; i++) {
+		entities.add(new Entity("Counted", "entity" + i));
+	}
+	DatastoreUtils.put(entities);
+
+	CountResult exact = EntityCounts.countExact(new Query("Counted"), 20);
+	assertEquals(EntityCounts.Mode.EXACT, exact.getMode());
+	assertEquals(20, exact.getCount());
+	assertTrue(exact.isLimitReached());
+	// Exactly as many entities as the limit
+	exact = EntityCounts.countExact(new Query("Counted"), 30);
+	assertEquals(30, exact.getCount());
+	assertFalse(exact.isLimitReached());
+	assertNull(EntityCounts.countApproximate("Counted"));
+
+	EntityCounts.maintain("Counted");
+	try {
+		assertEquals(30, EntityCounts.rebuild("Counted"));
+		DatastoreUtils.put(new Entity("Counted"));
+		DatastoreUtils.put(new Entity("Counted", "entity0"));
+		DatastoreUtils.delete(KeyFactory.createKey("Counted", "entity1"), KeyFactory.createKey("Counted", "missing"));
+
+		CountResult maintained = EntityCounts.count("Counted");
+		assertEquals(EntityCounts.Mode.MAINTAINED, maintained.getMode());
+		assertEquals(30, maintained.getCount());
+	} finally {
+		EntityCounts.stopMaintaining("Counted");
+	}
+}
+
+@Test
+public void exists() {
+	for (int i = 0; i < 3; i++) {
+		Entity entity = new Entity("User");
+		entity.setProperty("name", "duplicate");
+		entity.setProperty("email", "user" + i + "@example.com");
+		DatastoreUtils.put(entity);
+	}
+
+	// Several matches still exist
+	assertTrue(DatastoreUtils.exists("User", new FilterWrapper("name", "duplicate")));
+	assertFalse(DatastoreUtils.exists("User", new FilterWrapper("name", "missing")));
+
+	List<FilterWrapper[]> includeSets = new ArrayList<>();
+	includeSets.add(new FilterWrapper[]{new FilterWrapper("email", "user1@example.com")});
+	includeSets.add(new FilterWrapper[]{new FilterWrapper("email", "user9@example.com")});
+	includeSets.add(new FilterWrapper[]{new FilterWrapper("name", "duplicate")});
+	boolean[] exists = DatastoreUtils.exists("User", includeSets);
+	assertArrayEquals(new boolean[]{true, false, true}, exists);
+}
+
+@Test
+public void getEntities_fanOut() {
+	Key parentA = KeyFactory.createKey("Parent", "a");
+	Key parentB = KeyFactory.createKey("Parent", "b");
+	List<Entity> entities = new ArrayList<>();
+	List<Long> values = new ArrayList<>();
+	for (int i = 0; i < 100; i++) {
+		Entity entity = new Entity("FanOut", i % 2 == 0 ? parentA : parentB);
+		entity.setProperty("value", (long) i);
+		entity.setProperty("group", i % 3 == 0 ? "three" : "other");
+		entities.add(entity);
+		values.add((long) i);
+	}
+	DatastoreUtils.put(entities);
+
+	// 100-value IN, sorted descending
+	Query query = new Query("FanOut");
+	query.setFilter(new FilterPredicate("value", FilterOperator.IN, values));
+	query.addSort("value", SortDirection.DESCENDING);
+	long expected = 99;
+	for (Entity entity : DatastoreUtils.getEntities(query)) {
+		assertEquals(expected, entity.getProperty("value"));
+		expected--;
+	}
+	assertEquals(-1, expected);
+
+	// Overlapping OR, each entity only once and in key order
+	Filter or = DatastoreUtils.createCompositeFilter(CompositeFilterOperator.OR, new FilterPredicate("group", FilterOperator.EQUAL, "three"),
+			new FilterPredicate("value", FilterOperator.IN, Arrays.asList(0L, 1L, 2L)));
+	Set<Key> keys = new HashSet<>();
+	int count = 0;
+	Key previousKey = null;
+	for (Entity entity : DatastoreUtils.getEntities(new Query("FanOut").setFilter(or))) {
+		if (previousKey != null) {
+			assertTrue(previousKey.compareTo(entity.getKey()) < 0);
+		}
+		previousKey = entity.getKey();
+		keys.add(entity.getKey());
+		count++;
+	}
+	assertEquals(36, count);
+	assertEquals(36, keys.size());
+
+	// Several parents
+	count = 0;
+	for (Entity entity : DatastoreUtils.getEntitiesOfParents("FanOut", Arrays.asList(parentA, parentB), new FilterWrapper("group", "three"))) {
+		count++;
+	}
+	assertEquals(34, count);
+}
+
+@Test
+public void getPropertyIdStore() {
+	Entity entity = new Entity("IdStore");
+	DatastoreUtils.setProperty(entity, "first", Priorities.LOW);
+	DatastoreUtils.setProperty(entity, "second", Priorities.HIGH);
+	entity.setProperty("unknown", 7);
+	entity = DatastoreUtils.getEntity(DatastoreUtils.put(entity));
+
+	assertSame(Priorities.LOW, DatastoreUtils.getPropertyIdStore(entity, "first", Priorities.class));
+	assertSame(Priorities.HIGH, DatastoreUtils.getPropertyIdStore(entity, "second", Priorities.class));
+	assertNull(DatastoreUtils.getPropertyIdStore(entity, "unknown", Priorities.class));
+	assertNull(DatastoreUtils.getPropertyIdStore(entity, "missing", Priorities.class));
+}
+
+@Test
+public void typedProperties() throws Exception {
+	UUID uuid = UUID.randomUUID();
+	Date date = new Date(1000);
+	Entity entity = new Entity("Typed");
+	entity.setProperty("int", 7);
+	entity.setProperty("double", 2.5);
+	entity.setProperty("boolean", true);
+	entity.setProperty("string", "text");
+	entity.setProperty("text", new Text("long text"));
+	entity.setProperty("date", date);
+	DatastoreUtils.setProperty(entity, "uuid", uuid);
+	entity.setProperty("invalidUuid", "not-a-uuid");
+	entity = DatastoreUtils.getEntity(DatastoreUtils.put(entity));
+
+	assertEquals(7, DatastoreUtils.getPropertyInt(entity, "int", 0));
+	assertEquals(7, DatastoreUtils.getPropertyInt(entity, "int"));
+	assertEquals(7L, DatastoreUtils.getPropertyLong(entity, "int", 0));
+	assertEquals(2.5f, DatastoreUtils.getPropertyFloat(entity, "double", 0), 0);
+	assertEquals(2.5, DatastoreUtils.getPropertyDouble(entity, "double", 0), 0);
+	assertTrue(DatastoreUtils.getPropertyBoolean(entity, "boolean", false));
+	assertEquals("text", DatastoreUtils.getPropertyString(entity, "string", null));
+	assertEquals("long text", DatastoreUtils.getPropertyString(entity, "text", null));
+	assertEquals(date, DatastoreUtils.getPropertyDate(entity, "date", null));
+	assertEquals(uuid, DatastoreUtils.getPropertyUuid(entity, "uuid", null));
+
+	// Missing and mismatched types return the default value
+	assertEquals(-1, DatastoreUtils.getPropertyInt(entity, "missing", -1));
+	assertEquals(-1, DatastoreUtils.getPropertyInt(entity, "double", -1));
+	assertEquals(-1L, DatastoreUtils.getPropertyLong(entity, "string", -1));
+	assertEquals(-1f, DatastoreUtils.getPropertyFloat(entity, "int", -1), 0);
+	assertEquals(-1, DatastoreUtils.getPropertyDouble(entity, "missing", -1), 0);
+	assertFalse(DatastoreUtils.getPropertyBoolean(entity, "string", false));
+	assertEquals("default", DatastoreUtils.getPropertyString(entity, "int", "default"));
+	assertNull(DatastoreUtils.getPropertyDate(entity, "int", null));
+	assertNull(DatastoreUtils.getPropertyUuid(entity, "invalidUuid", null));
+	assertNull(DatastoreUtils.getPropertyUuid(entity, "missing", null));
+
+	try {
+		DatastoreUtils.getPropertyFloat(entity, "missing");
+		fail("Expected PropertyNotFoundException");
+	} catch (PropertyNotFoundException e) {
+		assertEquals("missing", e.getMessage());
+		assertEquals(0, e.getStackTrace().length);
+	}
+}
+
+@Test
+public void binaryUuid_migration() {
+	UUID oldId = UUID.randomUUID();
+	Entity oldEntity = new Entity("Uuid");
+	DatastoreUtils.setProperty(oldEntity, "id", oldId);
+	DatastoreUtils.put(oldEntity);
+	assertEquals(oldId.toString(), oldEntity.getProperty("id"));
+
+	DatastoreUtils.setUuidFormat(DatastoreUtils.UuidFormat.BINARY_MIGRATING);
+	UUID newId = UUID.randomUUID();
+	Entity newEntity = new Entity("Uuid");
+	DatastoreUtils.setProperty(newEntity, "id", newId);
+	DatastoreUtils.put(newEntity);
+	assertEquals(16, ((ShortBlob) newEntity.getProperty("id")).getBytes().length);
+	assertEquals(newId, DatastoreUtils.getPropertyUuid(newEntity, "id"));
+
+	// Both formats are found while migrating
+	assertNotNull(DatastoreUtils.getSingleEntity("Uuid", new FilterWrapper("id", oldId)));
+	assertNotNull(DatastoreUtils.getSingleEntity("Uuid", new FilterWrapper("id", newId)));
+
+	assertEquals(1, DatastoreUtils.migrateUuidProperties(new Query("Uuid"), "id"));
+
+	DatastoreUtils.setUuidFormat(DatastoreUtils.UuidFormat.BINARY);
+	Entity migrated = DatastoreUtils.getSingleEntity("Uuid", new FilterWrapper("id", oldId));
+	assertNotNull(migrated);
+	assertEquals(oldId, DatastoreUtils.getPropertyUuid(migrated, "id"));
+
+	// Projection reads the raw binary value
+	Query query = new Query("Uuid");
+	DatastoreUtils.createUuidProjection(query, "id");
+	int count = 0;
+	for (Entity entity : DatastoreUtils.getEntities(query)) {
+		assertNotNull(DatastoreUtils.getPropertyUuid(entity, "id"));
+		count++;
+	}
+	assertEquals(2, count);
+}
+
+@Test
+public void compressedByteArray() {
+	byte[] bytes = new byte[5000];
+	for (int i = 0; i < bytes.length; i++) {
+		bytes[i] = (byte) (i % 10);
+	}
+
+	Entity entity = new Entity("Bytes");
+	DatastoreUtils.setUnindexedProperty(entity, "uncompressed", bytes);
+	DatastoreUtils.setCompressByteArrays(true);
+	DatastoreUtils.setUnindexedProperty(entity, "compressed", bytes);
+	DatastoreUtils.setUnindexedProperty(entity, "small", new byte[]{1, 2, 3});
+	entity = DatastoreUtils.getEntity(DatastoreUtils.put(entity));
+
+	// Compressed value fits in a short blob
+	assertTrue(entity.getProperty("compressed") instanceof ShortBlob);
+	assertArrayEquals(bytes, DatastoreUtils.getPropertyByteArray(entity, "compressed"));
+	assertArrayEquals(bytes, DatastoreUtils.getPropertyByteArray(entity, "uncompressed"));
+	assertArrayEquals(new byte[]{1, 2, 3}, DatastoreUtils.getPropertyByteArray(entity, "small"));
+
+	assertEquals(bytes.length, DatastoreUtils.getPropertyByteArrayLength(entity, "compressed"));
+	byte[] buffer = new byte[8000];
+	assertEquals(bytes.length, DatastoreUtils.getPropertyByteArray(entity, "compressed", buffer));
+	assertArrayEquals(bytes, Arrays.copyOf(buffer, bytes.length));
+	assertEquals(-1, DatastoreUtils.getPropertyByteArray(entity, "missing", buffer));
+}
+
+@Test
+public void byteArrayThatLooksLikeHeader() {
+	// Compressed header of incompressible bytes, and a large property reference
+	byte[] compressedLike = new byte[100];
+	new Random(2).nextBytes(compressedLike);
+	System.arraycopy(new byte[]{(byte) 0x9f, 'D', 'U', 'Z', 1}, 0, compressedLike, 0, 5);
+	byte[] referenceLike = new byte[LargeProperties.REFERENCE_SIZE];
+	System.arraycopy(new byte[]{(byte) 0x9f, 'D', 'U', 'C'}, 0, referenceLike, 0, 4);
+
+	Entity entity = new Entity("Bytes");
+	DatastoreUtils.setCompressByteArrays(true);
+	DatastoreUtils.setUnindexedProperty(entity, "compressedLike", compressedLike);
+	DatastoreUtils.setLargeProperty(entity, "referenceLike", referenceLike);
+	entity = DatastoreUtils.getEntity(DatastoreUtils.put(entity));
+
+	assertArrayEquals(compressedLike, DatastoreUtils.getPropertyByteArray(entity, "compressedLike"));
+	assertEquals(compressedLike.length, DatastoreUtils.getPropertyByteArrayLength(entity, "compressedLike"));
+	assertArrayEquals(referenceLike, DatastoreUtils.getPropertyByteArray(entity, "referenceLike"));
+	assertEquals(referenceLike.length, DatastoreUtils.getPropertyByteArrayLength(entity, "referenceLike"));
+}
+
+@Test
+public void largeProperty() {
+	LargeProperties.enable("Large");
+	LargeProperties.setCleanupDelay(0);
+	byte[] bytes = new byte[2500 * 1000];
+	new Random(1).nextBytes(bytes);
+
+	Entity entity = new Entity("Large", "owner");
+	DatastoreUtils.setLargeProperty(entity, "data", bytes);
+	DatastoreUtils.setLargeProperty(entity, "small", new byte[]{1, 2, 3});
+	Key key = DatastoreUtils.put(entity);
+	Query chunkQuery = new Query(LargeProperties.CHUNK_KIND, key).setKeysOnly();
+	assertEquals(3, DatastoreUtils.prepare(chunkQuery).countEntities(FetchOptions.Builder.withDefaults()));
+
+	entity = DatastoreUtils.getEntity(key);
+	assertEquals(bytes.length, DatastoreUtils.getPropertyByteArrayLength(entity, "data"));
+	assertArrayEquals(bytes, DatastoreUtils.getPropertyByteArray(entity, "data"));
+	assertArrayEquals(new byte[]{1, 2, 3}, DatastoreUtils.getPropertyByteArray(entity, "small"));
+
+	// Overwrite deletes the chunks of the old value
+	byte[] smaller = Arrays.copyOf(bytes, 1500 * 1000);
+	DatastoreUtils.setLargeProperty(entity, "data", smaller);
+	DatastoreUtils.put(entity);
+	assertEquals(2, DatastoreUtils.prepare(chunkQuery).countEntities(FetchOptions.Builder.withDefaults()));
+	assertArrayEquals(smaller, DatastoreUtils.getPropertyByteArray(DatastoreUtils.getEntity(key), "data"));
+
+	// So does replacing it with a small value in a new entity
+	Entity replacement = new Entity("Large", "owner");
+	DatastoreUtils.setLargeProperty(replacement, "data", new byte[]{4});
+	DatastoreUtils.put(replacement);
+	assertEquals(0, DatastoreUtils.prepare(chunkQuery).countEntities(FetchOptions.Builder.withDefaults()));
+
+	DatastoreUtils.setLargeProperty(entity, "data", bytes);
+	DatastoreUtils.put(entity);
+	DatastoreUtils.delete(key);
+	assertEquals(0, DatastoreUtils.prepare(chunkQuery).countEntities(FetchOptions.Builder.withDefaults()));
+
+	// Incomplete keys can't own chunks
+	try {
+		DatastoreUtils.setLargeProperty(new Entity("Large"), "data", bytes);
+		fail("Expected IllegalArgumentException");
+	} catch (IllegalArgumentException e) {
+		// Expected
+	}
+}
+
+@Test
+public void largeProperty_interleavedWriters() {
+	LargeProperties.enable("Large");
+	LargeProperties.setCleanupDelay(0);
+	Random random = new Random(3);
+	byte[] first = new byte[600 * 1000];
+	random.nextBytes(first);
+	Entity entity = new Entity("Large", "raced");
+	DatastoreUtils.setLargeProperty(entity, "data", first);
+	Key key = DatastoreUtils.put(entity);
+
+	// Both writers replace the first value, B puts before A
+	Entity writerA = DatastoreUtils.getEntity(key);
+	Entity writerB = DatastoreUtils.getEntity(key);
+	byte[] valueA = new byte[600 * 1000];
+	random.nextBytes(valueA);
+	byte[] valueB = new byte[600 * 1000];
+	random.nextBytes(valueB);
+	DatastoreUtils.setLargeProperty(writerA, "data", valueA);
+	DatastoreUtils.setLargeProperty(writerB, "data", valueB);
+	DatastoreUtils.put(writerB);
+	DatastoreUtils.put(writerA);
+
+	assertArrayEquals(valueA, DatastoreUtils.getPropertyByteArray(DatastoreUtils.getEntity(key), "data"));
+	// Only the chunks that the stored owner references are kept
+	Query chunkQuery = new Query(LargeProperties.CHUNK_KIND, key).setKeysOnly();
+	assertEquals(1, DatastoreUtils.prepare(chunkQuery).countEntities(FetchOptions.Builder.withDefaults()));
+}
+
+@Test
+public void largeProperty_onlyPutValuesAreWritten() {
+	LargeProperties.enable("Large");
+	byte[] bytes = new byte[1500 * 1000];
+	new Random(4).nextBytes(bytes);
+	Entity entity = new Entity("Large", "unput");
+	Query chunkQuery = new Query(LargeProperties.CHUNK_KIND, entity.getKey()).setKeysOnly();
+
+	// The chunks are written with the owner, a value that is replaced before that never is
+	DatastoreUtils.setLargeProperty(entity, "data", bytes);
+	assertEquals(0, DatastoreUtils.prepare(chunkQuery).countEntities(FetchOptions.Builder.withDefaults()));
+	DatastoreUtils.setLargeProperty(entity, "data", Arrays.copyOf(bytes, 600 * 1000));
+	DatastoreUtils.put(entity);
+	assertEquals(1, DatastoreUtils.prepare(chunkQuery).countEntities(FetchOptions.Builder.withDefaults()));
+}
+
+@Test
+public void largeProperty_recentValuesAreKept() {
+	LargeProperties.enable("Large");
+	byte[] bytes = new byte[1500 * 1000];
+	new Random(5).nextBytes(bytes);
+	Entity entity = new Entity("Large", "recent");
+	DatastoreUtils.setLargeProperty(entity, "data", bytes);
+	Key key = DatastoreUtils.put(entity);
+
+	// The old chunks could still belong to a writer that hasn't put the owner yet
+	DatastoreUtils.setLargeProperty(entity, "data", Arrays.copyOf(bytes, 600 * 1000));
+	DatastoreUtils.put(entity);
+	Query chunkQuery = new Query(LargeProperties.CHUNK_KIND, key).setKeysOnly();
+	assertEquals(3, DatastoreUtils.prepare(chunkQuery).countEntities(FetchOptions.Builder.withDefaults()));
+	DatastoreUtils.delete(key);
+	assertEquals(0, DatastoreUtils.prepare(chunkQuery).countEntities(FetchOptions.Builder.withDefaults()));
+}
+
+@Test
+public void datastoreProfiles() {
+	DatastoreProfile feed = DatastoreProfile.register("feed", Consistency.EVENTUAL, 2);
+	assertSame(feed, DatastoreProfile.get("feed"));
+	assertSame(DatastoreProfile.DEFAULT, DatastoreProfile.current());
+	try (DatastoreProfile.Scope scope = feed.use()) {
+		assertSame(feed, DatastoreProfile.current());
+		try (DatastoreProfile.Scope inner = DatastoreProfile.DEFAULT.use()) {
+			assertSame(DatastoreProfile.DEFAULT, DatastoreProfile.current());
+		}
+		assertSame(feed, DatastoreProfile.current());
+	}
+	assertSame(DatastoreProfile.DEFAULT, DatastoreProfile.current());
+
+	Key key = DatastoreUtils.put(new Entity("Profile", "feed"));
+	assertNotNull(DatastoreUtils.getEntity(key, feed));
+	assertEquals(1, DatastoreUtils.getEntities(Arrays.asList(key), feed).size());
+	assertTrue(DatastoreUtils.getEntities(new Query("Profile"), feed).iterator().hasNext());
+
+	// Eventually consistent reads aren't cached
+	EntityMemcache.enable("Profile", 60);
+	try {
+		DatastoreUtils.getEntity(key, feed);
+		assertNull(EntityMemcache.get(key));
+		DatastoreUtils.getEntity(key);
+		assertNotNull(EntityMemcache.get(key));
+	} finally {
+		EntityMemcache.disable("Profile");
+	}
+}
+
+/**
+ * Enumeration with sparse ids
+ */
+public enum Priorities implements IIdStore {
+	LOW(2),
+	HIGH(10),;
+
+	private final int mId;
+
+	/**
+	 * @param id id of the priority
+	 */
+	Priorities(int id) {
+		mId = id;
+	}
+
+	/**
+	 * @param id id of the priority
+	 * @return priority with the id, null if not found
+	 */
+	public static Priorities fromId(int id) {
+		for (Priorities priority : values()) {
+			if (priority.mId == id) {
+				return priority;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public int toId() {
+		return mId;
+	}
+}
+}
@@ -0,0 +1,90 @@
+package com.spiddekauga.appengine;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests extracting numeric properties into columns
+ */
+public class EntityColumnsTest {
+private final LocalServiceTestHelper mHelper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+@Before
+public void setUp() {
+	mHelper.setUp();
+}
+
+@After
+public void tearDown() {
+	mHelper.tearDown();
+}
+
+@Test
+public void extract() {
+	List<Entity> entities = new ArrayList<>();
+	for (int i = 0; i < 5; i++) {
+		Entity entity = new Entity("Level");
+		if (i != 2) {
+			entity.setProperty("plays", (long) i);
+		}
+		entity.setProperty("rating", i == 4 ? "unrated" : (Object) (i * 0.5));
+		entities.add(entity);
+	}
+
+	EntityColumns columns = EntityColumns.extract(entities, "plays", "rating");
+	assertEquals(5, columns.size());
+	assertArrayEquals(new int[]{0, 1, 0, 3, 4}, columns.getInts("plays"));
+	assertArrayEquals(new long[]{0, 1, 0, 3, 4}, columns.getLongs("plays"));
+	assertArrayEquals(new double[]{0, 0.5, 1, 1.5, 0}, columns.getDoubles("rating"), 0);
+	assertArrayEquals(new float[]{0, 0.5f, 1, 1.5f, 0}, columns.getFloats("rating"), 0);
+
+	BitSet missingPlays = new BitSet();
+	missingPlays.set(2);
+	assertEquals(missingPlays, columns.getMissing("plays"));
+	BitSet missingRatings = new BitSet();
+	missingRatings.set(4);
+	assertEquals(missingRatings, columns.getMissing("rating"));
+	assertEquals(4, columns.getPresentCount("rating"));
+
+	try {
+		columns.getInts("other");
+		fail("Expected IllegalArgumentException");
+	} catch (IllegalArgumentException e) {
+		// Expected
+	}
+}
+
+@Test
+public void extractQueryResults() {
+	List<Entity> entities = new ArrayList<>();
+	for (int i = 0; i < 600; i++) {
+		Entity entity = new Entity("Level");
+		entity.setProperty("plays", (long) i);
+		entities.add(entity);
+	}
+	DatastoreUtils.put(entities);
+
+	EntityColumns columns = EntityColumns.extract(DatastoreUtils.getEntities(new Query("Level")), "plays");
+	assertEquals(600, columns.size());
+	long sum = 0;
+	for (long plays : columns.getLongs("plays")) {
+		sum += plays;
+	}
+	assertEquals(599 * 600 / 2, sum);
+	assertEquals(600, columns.getPresentCount("plays"));
+}
+}
@@ -0,0 +1,133 @@
+package com.spiddekauga.appengine;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.spiddekauga.appengine.DatastoreUtilsTest.Priorities;
+import com.spiddekauga.appengine.EntityMapperTest.Player;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares {@link EntityMapper} to converting with the DatastoreUtils property helpers. Run the main
+ * method, it isn't part of the tests.
+ */
+public class EntityMapperBenchmark {
+private static final int ENTITY_COUNT = 10000;
+private static final int WARMUP_ROUNDS = 20;
+private static final int MEASURED_ROUNDS = 50;
+
+/**
+ * Run the benchmark
+ * @param args "mapper" to measure {@link EntityMapper}, otherwise the hand-written helpers are
+ * measured. Run each in its own JVM, measuring both in the same JVM mixes the type profiles of the
+ * shared datastore code and skews the result.
+ */
+public static void main(String[] args) {
+	boolean mapper = args.length > 0 && args[0].equals("mapper");
+	LocalServiceTestHelper helper = new LocalServiceTestHelper();
+	helper.setUp();
+	try {
+		run(mapper);
+	} finally {
+		helper.tearDown();
+	}
+}
+
+/**
+ * Warm up and measure one way of converting
+ * @param useMapper true to measure the mapper, false for the hand-written helpers
+ */
+private static void run(boolean useMapper) {
+	List<Player> players = new ArrayList<>(ENTITY_COUNT);
+	for (int i = 0; i < ENTITY_COUNT; i++) {
+		players.add(Player.create(i));
+	}
+	EntityMapper<Player> mapper = EntityMapper.get(Player.class);
+	List<Entity> entities = mapper.toEntities(players);
+
+	long blackhole = 0;
+	long nanos = 0;
+	for (int i = 0; i < WARMUP_ROUNDS + MEASURED_ROUNDS; i++) {
+		long start = System.nanoTime();
+		if (useMapper) {
+			blackhole += runMapper(mapper, players, entities);
+		} else {
+			blackhole += runHandWritten(players, entities);
+		}
+		if (i >= WARMUP_ROUNDS) {
+			nanos += System.nanoTime() - start;
+		}
+	}
+
+	long conversions = (long) MEASURED_ROUNDS * ENTITY_COUNT * 2;
+	System.out.println((useMapper ? "EntityMapper: " : "Hand-written: ") + nanos / conversions + " ns per conversion (" + blackhole + ")");
+}
+
+/**
+ * Convert all players to entities and all entities to players with the mapper
+ * @param mapper the mapper
+ * @param players players to convert
+ * @param entities entities to convert
+ * @return a value that depends on the result
+ */
+private static long runMapper(EntityMapper<Player> mapper, List<Player> players, List<Entity> entities) {
+	long sum = 0;
+	for (Entity entity : mapper.toEntities(players)) {
+		sum += entity.getProperties().size();
+	}
+	for (Player player : mapper.fromEntities(entities)) {
+		sum += player.mLevel;
+	}
+	return sum;
+}
+
+/**
+ * Convert all players to entities and all entities to players with the DatastoreUtils helpers
+ * @param players players to convert
+ * @param entities entities to convert
+ * @return a value that depends on the result
+ */
+private static long runHandWritten(List<Player> players, List<Entity> entities) {
+	long sum = 0;
+	List<Entity> convertedEntities = new ArrayList<>(players.size());
+	for (Player player : players) {
+		Entity entity = new Entity("Player");
+		DatastoreUtils.setProperty(entity, "id", player.mId);
+		DatastoreUtils.setProperty(entity, "name", player.mName);
+		DatastoreUtils.setProperty(entity, "nickname", player.mNickname);
+		DatastoreUtils.setProperty(entity, "level", player.mLevel);
+		DatastoreUtils.setUnindexedProperty(entity, "score", player.mScore);
+		DatastoreUtils.setProperty(entity, "experience", player.mExperience);
+		DatastoreUtils.setProperty(entity, "online", player.mOnline);
+		DatastoreUtils.setProperty(entity, "priority", player.mPriority);
+		DatastoreUtils.setUnindexedProperty(entity, "avatar", player.mAvatar);
+		convertedEntities.add(entity);
+	}
+	for (Entity entity : convertedEntities) {
+		sum += entity.getProperties().size();
+	}
+
+	List<Player> convertedPlayers = new ArrayList<>(entities.size());
+	for (Entity entity : entities) {
+		Player player = new Player();
+		player.mKey = entity.getKey();
+		player.mId = DatastoreUtils.getPropertyUuid(entity, "id");
+		player.mName = (String) entity.getProperty("name");
+		player.mNickname = (String) entity.getProperty("nickname");
+		player.mLevel = DatastoreUtils.getPropertyInt(entity, "level", Player.LEVEL_DEFAULT);
+		player.mScore = DatastoreUtils.getPropertyFloat(entity, "score", 0);
+		Long experience = (Long) entity.getProperty("experience");
+		player.mExperience = experience != null ? experience : 0;
+		Boolean online = (Boolean) entity.getProperty("online");
+		player.mOnline = online != null && online;
+		player.mPriority = DatastoreUtils.getPropertyIdStore(entity, "priority", Priorities.class);
+		player.mAvatar = DatastoreUtils.getPropertyByteArray(entity, "avatar");
+		convertedPlayers.add(player);
+	}
+	for (Player player : convertedPlayers) {
+		sum += player.mLevel;
+	}
+	return sum;
+}
+}
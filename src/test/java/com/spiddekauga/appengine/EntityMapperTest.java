@@ -0,0 +1,135 @@
+package com.spiddekauga.appengine;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.spiddekauga.appengine.DatastoreUtilsTest.Priorities;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests converting entities to and from annotated objects
+ */
+public class EntityMapperTest {
+private final LocalServiceTestHelper mHelper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+@Before
+public void setUp() {
+	mHelper.setUp();
+}
+
+@After
+public void tearDown() {
+	mHelper.tearDown();
+}
+
+@Test
+public void roundTrip() {
+	Player player = Player.create(3);
+	EntityMapper<Player> mapper = EntityMapper.get(Player.class);
+	assertEquals("Player", mapper.getKind());
+
+	Entity entity = mapper.toEntity(player);
+	assertEquals(player.mId.toString(), entity.getProperty("id"));
+	assertEquals(2L, entity.getProperty("priority"));
+	assertTrue(entity.isUnindexedProperty("score"));
+	assertFalse(entity.hasProperty("nickname"));
+
+	Key key = DatastoreUtils.put(entity);
+	Player read = mapper.fromEntity(DatastoreUtils.getEntity(key));
+	assertEquals(key, read.mKey);
+	assertEquals(player.mId, read.mId);
+	assertEquals(player.mName, read.mName);
+	assertEquals(player.mLevel, read.mLevel);
+	assertEquals(player.mScore, read.mScore, 0);
+	assertEquals(player.mExperience, read.mExperience);
+	assertEquals(player.mOnline, read.mOnline);
+	assertSame(Priorities.LOW, read.mPriority);
+	assertArrayEquals(player.mAvatar, read.mAvatar);
+	assertNull(read.mNickname);
+}
+
+@Test
+public void missingPropertiesKeepDefaults() {
+	Entity entity = new Entity("Player");
+	entity.setProperty("name", "Only name");
+
+	Player player = EntityMapper.get(Player.class).fromEntity(entity);
+	assertEquals("Only name", player.mName);
+	assertEquals(Player.LEVEL_DEFAULT, player.mLevel);
+}
+
+@Test
+public void bulk() {
+	EntityMapper<Player> mapper = EntityMapper.get(Player.class);
+	List<Entity> entities = mapper.toEntities(Arrays.asList(Player.create(1), Player.create(2), Player.create(3)));
+	List<Player> players = mapper.fromEntities(entities);
+	assertEquals(3, players.size());
+	assertEquals(2, players.get(1).mLevel);
+}
+
+@Test(expected = IllegalArgumentException.class)
+public void notAnnotated() {
+	EntityMapper.get(String.class);
+}
+
+/**
+ * Mapped test class
+ */
+@MappedEntity
+static class Player {
+	static final int LEVEL_DEFAULT = 1;
+	@MappedKey
+	Key mKey;
+	@MappedProperty(name = "id")
+	UUID mId;
+	@MappedProperty(name = "name")
+	String mName;
+	@MappedProperty(name = "nickname")
+	String mNickname;
+	@MappedProperty(name = "level")
+	int mLevel = LEVEL_DEFAULT;
+	@MappedProperty(name = "score", indexed = false)
+	float mScore;
+	@MappedProperty(name = "experience")
+	long mExperience;
+	@MappedProperty(name = "online")
+	boolean mOnline;
+	@MappedProperty(name = "priority")
+	Priorities mPriority;
+	@MappedProperty(name = "avatar")
+	byte[] mAvatar;
+
+	/**
+	 * @param level level of the player
+	 * @return player with all fields except nickname set
+	 */
+	static Player create(int level) {
+		Player player = new Player();
+		player.mId = UUID.randomUUID();
+		player.mName = "Player " + level;
+		player.mLevel = level;
+		player.mScore = level * 1.5f;
+		player.mExperience = level * 1000L;
+		player.mOnline = true;
+		player.mPriority = Priorities.LOW;
+		player.mAvatar = new byte[]{1, 2, 3};
+		return player;
+	}
+}
+}
@@ -0,0 +1,202 @@
+package com.spiddekauga.appengine;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.spiddekauga.appengine.HedgedReads.HedgedFuture;
+import com.spiddekauga.appengine.HedgedReads.KindStatistics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests hedging of slow reads
+ */
+public class HedgedReadsTest {
+private final LocalServiceTestHelper mHelper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+@Before
+public void setUp() {
+	mHelper.setUp();
+}
+
+@After
+public void tearDown() {
+	HedgedReads.disable("Test");
+	HedgedReads.setMaxHedgeRate(0.05);
+	mHelper.tearDown();
+}
+
+@Test
+public void hedgeWinsWhenReadIsSlow() throws Exception {
+	HedgedReads.setMaxHedgeRate(1);
+	KindStatistics statistics = createStatistics(1);
+
+	Future<String> future = new SlowFirstFuture(statistics, 10000).start();
+	assertEquals("hedge", future.get());
+	assertEquals(1, statistics.getHedgeCount());
+	assertEquals(1, statistics.getHedgeWinCount());
+}
+
+@Test
+public void hedgeWinIsCountedWhenPolled() throws Exception {
+	HedgedReads.setMaxHedgeRate(1);
+	KindStatistics statistics = createStatistics(1);
+
+	Future<String> future = new SlowFirstFuture(statistics, 10000).start();
+	while (!future.isDone()) {
+		Thread.sleep(1);
+	}
+	assertTrue(future.isDone());
+	assertFalse(future.isCancelled());
+	assertEquals("hedge", future.get());
+	assertEquals(1, statistics.getHedgeWinCount());
+}
+
+@Test
+public void latencyIsRecordedWithoutWaiting() throws Exception {
+	KindStatistics statistics = new KindStatistics();
+	List<Future<String>> futures = new ArrayList<>();
+	for (int i = 0; i < 32; i++) {
+		futures.add(FutureCompleter.complete(new SlowFirstFuture(statistics, 20).start()));
+	}
+
+	// Nobody waits for the reads
+	FutureCompleter.completeAll();
+	for (Future<String> future : futures) {
+		assertTrue(future.isDone());
+	}
+	assertTrue(statistics.getSingleLatencies().getThreshold() >= 0);
+}
+
+@Test
+public void batchLatenciesAreBucketedBySize() {
+	KindStatistics statistics = new KindStatistics();
+	assertSame(statistics.getBatchLatencies(2), statistics.getBatchLatencies(10));
+	assertNotSame(statistics.getBatchLatencies(10), statistics.getBatchLatencies(11));
+	assertNotSame(statistics.getBatchLatencies(100), statistics.getBatchLatencies(1000));
+}
+
+@Test
+public void readWinsWhenHedgeIsSlower() throws Exception {
+	HedgedReads.setMaxHedgeRate(1);
+	KindStatistics statistics = createStatistics(1);
+
+	Future<String> future = new SlowFirstFuture(statistics, 20).start();
+	assertEquals("read", future.get(10, TimeUnit.SECONDS));
+	assertEquals(1, statistics.getHedgeCount());
+	assertEquals(0, statistics.getHedgeWinCount());
+}
+
+@Test
+public void hedgesAreRateLimited() throws Exception {
+	HedgedReads.setMaxHedgeRate(0);
+	KindStatistics statistics = createStatistics(1);
+
+	Future<String> future = new SlowFirstFuture(statistics, 20).start();
+	assertEquals("read", future.get());
+	assertEquals(0, statistics.getHedgeCount());
+}
+
+@Test
+public void noHedgeBeforeEnoughLatencies() throws Exception {
+	HedgedReads.setMaxHedgeRate(1);
+	KindStatistics statistics = new KindStatistics();
+
+	Future<String> future = new SlowFirstFuture(statistics, 20).start();
+	assertEquals("read", future.get());
+	assertEquals(0, statistics.getHedgeCount());
+}
+
+@Test
+public void datastoreReads() {
+	HedgedReads.enable("Test");
+	List<Entity> entities = new ArrayList<>();
+	for (int i = 1; i <= 40; i++) {
+		entities.add(new Entity("Test", i));
+	}
+	List<Key> keys = DatastoreUtils.put(entities);
+
+	for (Key key : keys) {
+		assertEquals(key, DatastoreUtils.getEntity(key).getKey());
+	}
+	assertEquals(40, DatastoreUtils.getEntities(keys).size());
+	assertEquals(41, HedgedReads.getReadCount("Test"));
+	assertTrue(HedgedReads.getHedgeDelayMillis("Test") >= 1);
+	assertEquals(-1, HedgedReads.getHedgeDelayMillis("Other"), 0);
+
+	// Missing entities are still returned as null
+	assertEquals(null, DatastoreUtils.getEntity(KeyFactory.createKey("Test", 100)));
+}
+
+/**
+ * Create statistics that hedge after a delay
+ * @param delayMillis how long reads wait before they are hedged
+ * @return statistics with enough latencies to hedge
+ */
+private static KindStatistics createStatistics(long delayMillis) {
+	KindStatistics statistics = new KindStatistics();
+	for (int i = 0; i < 64; i++) {
+		statistics.getSingleLatencies().add(TimeUnit.MILLISECONDS.toNanos(delayMillis));
+	}
+	return statistics;
+}
+
+/**
+ * Read where the first call is slow and the hedge returns after 100ms
+ */
+private static class SlowFirstFuture extends HedgedFuture<String> {
+	private final long mFirstDelay;
+	private int mCalls = 0;
+
+	/**
+	 * @param statistics statistics of the kind
+	 * @param firstDelayMillis how long the first call takes
+	 */
+	SlowFirstFuture(KindStatistics statistics, long firstDelayMillis) {
+		super(statistics, statistics.getSingleLatencies());
+		mFirstDelay = firstDelayMillis;
+	}
+
+	@Override
+	protected Future<String> call() {
+		mCalls++;
+		return mCalls == 1 ? delayed("read", mFirstDelay) : delayed("hedge", 100);
+	}
+
+	/**
+	 * @param result result of the future
+	 * @param delayMillis when the future completes
+	 * @return future that completes after the delay
+	 */
+	private static Future<String> delayed(final String result, final long delayMillis) {
+		FutureTask<String> task = new FutureTask<>(new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				Thread.sleep(delayMillis);
+				return result;
+			}
+		});
+		Thread thread = new Thread(task);
+		thread.setDaemon(true);
+		thread.start();
+		return task;
+	}
+}
+}
@@ -0,0 +1,109 @@
+package com.spiddekauga.appengine;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests mapping a kind in parallel ranges and resuming from checkpoints
+ */
+public class KindMapperTest {
+private final LocalServiceTestHelper mHelper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+@Before
+public void setUp() {
+	mHelper.setUp();
+
+	List<Entity> entities = new ArrayList<>();
+	for (int i = 1; i <= 500; i++) {
+		Entity entity = new Entity("Player", i);
+		entity.setProperty("level", i);
+		entities.add(entity);
+	}
+	DatastoreUtils.put(entities);
+}
+
+@After
+public void tearDown() {
+	mHelper.tearDown();
+}
+
+@Test
+public void run() {
+	KindMapper kindMapper = new KindMapper("migrate", "Player", new KindMapper.Mapper() {
+		@Override
+		public void map(Entity entity, BatchWriter writer) {
+			entity.setProperty("migrated", true);
+			writer.put(entity);
+		}
+	}, 4, 4, 50);
+
+	KindMapper.Result result = kindMapper.run();
+	assertTrue(result.isComplete());
+	assertEquals(500, result.getMappedCount());
+	assertEquals(0, result.getFailedRangeCount());
+	assertTrue(result.getRangeCount() > 1);
+	assertTrue(result.getEntitiesPerSecond() > 0);
+	assertEquals(500, countMigrated());
+
+	// Finished jobs don't map anything
+	result = kindMapper.run();
+	assertTrue(result.isComplete());
+	assertEquals(0, result.getMappedCount());
+}
+
+@Test
+public void run_resumesFailedRanges() {
+	final boolean[] fail = {true};
+	KindMapper kindMapper = new KindMapper("migrate", "Player", new KindMapper.Mapper() {
+		@Override
+		public void map(Entity entity, BatchWriter writer) {
+			if (fail[0] && entity.getKey().getId() == 420) {
+				throw new IllegalStateException("Failed to map " + entity.getKey());
+			}
+			entity.setProperty("migrated", true);
+			writer.put(entity);
+		}
+	}, 1, 1, 100);
+
+	KindMapper.Result result = kindMapper.run();
+	assertFalse(result.isComplete());
+	assertEquals(1, result.getFailedRangeCount());
+	assertEquals(400, countMigrated());
+
+	// Resumes from the batch that failed
+	fail[0] = false;
+	result = kindMapper.run();
+	assertTrue(result.isComplete());
+	assertEquals(100, result.getMappedCount());
+	assertEquals(500, countMigrated());
+
+	kindMapper.deleteCheckpoints();
+	assertEquals(500, kindMapper.run().getMappedCount());
+}
+
+/**
+ * @return number of players that have been migrated
+ */
+private static int countMigrated() {
+	int count = 0;
+	for (Entity entity : DatastoreUtils.getEntities(new Query("Player"))) {
+		if (entity.hasProperty("migrated")) {
+			count++;
+		}
+	}
+	return count;
+}
+}
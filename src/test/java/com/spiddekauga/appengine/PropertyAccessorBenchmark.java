@@ -0,0 +1,172 @@
+package com.spiddekauga.appengine;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.spiddekauga.appengine.DatastoreUtils.PropertyNotFoundException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compares reading properties of sparse entities with the exception-free accessors, the stackless
+ * {@link PropertyNotFoundException} and an exception that fills in its stack trace, which is how
+ * missing properties used to be handled. A plain cast without type checks is measured as the
+ * baseline. The median round is reported, since a few rounds with garbage collection skew a sum.
+ * Run the main method, it isn't part of the tests.
+ */
+public class PropertyAccessorBenchmark {
+private static final int ENTITY_COUNT = 100000;
+/** Only every n:th entity has the properties */
+private static final int PRESENT_EVERY = 10;
+private static final int WARMUP_ROUNDS = 20;
+private static final int MEASURED_ROUNDS = 50;
+
+/**
+ * Run the benchmark
+ * @param args "default" to measure the exception-free accessors, "stackless" to measure catching
+ * {@link PropertyNotFoundException}, "cast" to measure the baseline, otherwise exceptions with stack
+ * traces are measured. Run each in its own JVM so that the type profiles don't mix.
+ */
+public static void main(String[] args) {
+	String mode = args.length > 0 ? args[0] : "stack";
+	LocalServiceTestHelper helper = new LocalServiceTestHelper();
+	helper.setUp();
+	try {
+		run(mode);
+	} finally {
+		helper.tearDown();
+	}
+}
+
+/**
+ * Warm up and measure one way of reading properties
+ * @param mode how to read the properties, see {@link #main(String[])}
+ */
+private static void run(String mode) {
+	List<Entity> entities = new ArrayList<>(ENTITY_COUNT);
+	for (int i = 0; i < ENTITY_COUNT; i++) {
+		Entity entity = new Entity("Level");
+		if (i % PRESENT_EVERY == 0) {
+			entity.setProperty("plays", (long) i);
+			entity.setProperty("rating", i * 0.5);
+		}
+		entities.add(entity);
+	}
+
+	long blackhole = 0;
+	long[] roundNanos = new long[MEASURED_ROUNDS];
+	for (int i = 0; i < WARMUP_ROUNDS + MEASURED_ROUNDS; i++) {
+		long start = System.nanoTime();
+		switch (mode) {
+		case "default":
+			blackhole += runDefault(entities);
+			break;
+		case "stackless":
+			blackhole += runStackless(entities);
+			break;
+		case "cast":
+			blackhole += runCast(entities);
+			break;
+		default:
+			blackhole += runStackTrace(entities);
+			break;
+		}
+		if (i >= WARMUP_ROUNDS) {
+			roundNanos[i - WARMUP_ROUNDS] = System.nanoTime() - start;
+		}
+	}
+
+	Arrays.sort(roundNanos);
+	double nanosPerRead = roundNanos[MEASURED_ROUNDS / 2] / (ENTITY_COUNT * 2.0);
+	System.out.println(mode + ": " + String.format("%.1f", nanosPerRead) + " ns per property read (" + blackhole + ")");
+}
+
+/**
+ * Read the properties with the exception-free accessors
+ * @param entities the entities to read
+ * @return a value that depends on the result
+ */
+private static long runDefault(List<Entity> entities) {
+	long sum = 0;
+	for (Entity entity : entities) {
+		sum += DatastoreUtils.getPropertyInt(entity, "plays", 0);
+		sum += (long) DatastoreUtils.getPropertyFloat(entity, "rating", 0);
+	}
+	return sum;
+}
+
+/**
+ * Read the properties with a plain cast and a null check, without checking the type
+ * @param entities the entities to read
+ * @return a value that depends on the result
+ */
+private static long runCast(List<Entity> entities) {
+	long sum = 0;
+	for (Entity entity : entities) {
+		Long plays = (Long) entity.getProperty("plays");
+		sum += plays != null ? plays.intValue() : 0;
+		Double rating = (Double) entity.getProperty("rating");
+		sum += rating != null ? (long) rating.floatValue() : 0;
+	}
+	return sum;
+}
+
+/**
+ * Read the properties with the throwing accessors and catch the stackless exceptions
+ * @param entities the entities to read
+ * @return a value that depends on the result
+ */
+private static long runStackless(List<Entity> entities) {
+	long sum = 0;
+	for (Entity entity : entities) {
+		try {
+			sum += DatastoreUtils.getPropertyInt(entity, "plays");
+		} catch (PropertyNotFoundException e) {
+			sum++;
+		}
+		try {
+			sum += (long) DatastoreUtils.getPropertyFloat(entity, "rating");
+		} catch (PropertyNotFoundException e) {
+			sum++;
+		}
+	}
+	return sum;
+}
+
+/**
+ * Read the properties and throw and catch exceptions with stack traces for missing properties
+ * @param entities the entities to read
+ * @return a value that depends on the result
+ */
+private static long runStackTrace(List<Entity> entities) {
+	long sum = 0;
+	for (Entity entity : entities) {
+		try {
+			sum += getWithStackTrace(entity, "plays").intValue();
+		} catch (Exception e) {
+			sum++;
+		}
+		try {
+			sum += (long) getWithStackTrace(entity, "rating").floatValue();
+		} catch (Exception e) {
+			sum++;
+		}
+	}
+	return sum;
+}
+
+/**
+ * @param entity the entity to get the property from
+ * @param propertyName name of the property
+ * @return the property value
+ * @throws Exception with a stack trace if the property is missing
+ */
+private static Number getWithStackTrace(Entity entity, String propertyName) throws Exception {
+	Number value = (Number) entity.getProperty(propertyName);
+	if (value == null) {
+		throw new Exception(propertyName);
+	}
+	return value;
+}
+}
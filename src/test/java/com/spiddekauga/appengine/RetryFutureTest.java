@@ -0,0 +1,107 @@
+package com.spiddekauga.appengine;
+
+import com.spiddekauga.appengine.RetryPolicy.RetriesExhaustedException;
+
+import org.junit.Test;
+
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests retrying of concurrent modifications
+ */
+public class RetryFutureTest {
+@Test
+public void retriesUntilSuccess() throws Exception {
+	RetryPolicy policy = new RetryPolicy(5, 1, 1, 10000);
+	Future<String> future = new FailingFuture(policy, 2).start();
+
+	assertEquals("done", future.get());
+	assertEquals(1, policy.getCallCount());
+	assertEquals(2, policy.getRetryCount());
+	assertEquals(0, policy.getFailureCount());
+}
+
+@Test
+public void givesUpAfterMaxAttempts() throws Exception {
+	RetryPolicy policy = new RetryPolicy(3, 1, 1, 10000);
+	Future<String> future = new FailingFuture(policy, 10).start();
+
+	try {
+		future.get();
+		fail("Expected the retry policy to give up");
+	} catch (ExecutionException e) {
+		assertTrue(e.getCause() instanceof RetriesExhaustedException);
+		assertEquals(3, ((RetriesExhaustedException) e.getCause()).getAttempts());
+		// Outer retry layers mustn't retry it as a new conflict
+		assertFalse(e.getCause() instanceof ConcurrentModificationException);
+		assertTrue(e.getCause().getCause() instanceof ConcurrentModificationException);
+	}
+	assertEquals(1, policy.getFailureCount());
+	assertEquals(2, policy.getMaxRetryCount());
+}
+
+@Test
+public void hookFailureIsNotRetried() throws Exception {
+	RetryPolicy policy = new RetryPolicy(5, 1, 1, 10000);
+	final int[] calls = new int[2];
+	Future<String> future = new FailingFuture(policy, 0) {
+		@Override
+		protected Future<String> call() {
+			calls[0]++;
+			return super.call();
+		}
+
+		@Override
+		protected String onSuccess(String result) {
+			calls[1]++;
+			throw new ConcurrentModificationException("Hook failed");
+		}
+	}.start();
+
+	// The operation succeeded, the hook failure is only logged
+	for (int i = 0; i < 2; i++) {
+		assertEquals("done", future.get());
+	}
+	assertTrue(future.isDone());
+	assertEquals(1, calls[0]);
+	assertEquals(1, calls[1]);
+	assertEquals(0, policy.getRetryCount());
+}
+
+/**
+ * Operation that fails with a concurrent modification a number of times
+ */
+private static class FailingFuture extends RetryFuture<String> {
+	private int mFailuresLeft;
+
+	FailingFuture(RetryPolicy policy, int failures) {
+		super(policy);
+		mFailuresLeft = failures;
+	}
+
+	@Override
+	protected Future<String> call() {
+		final boolean fail = mFailuresLeft-- > 0;
+		FutureTask<String> task = new FutureTask<>(new Callable<String>() {
+			@Override
+			public String call() {
+				if (fail) {
+					throw new ConcurrentModificationException();
+				}
+				return "done";
+			}
+		});
+		task.run();
+		return task;
+	}
+}
+}
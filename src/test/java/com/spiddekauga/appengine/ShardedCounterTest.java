@@ -0,0 +1,84 @@
+package com.spiddekauga.appengine;
+
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests updating and reading sharded counters
+ */
+public class ShardedCounterTest {
+private final LocalServiceTestHelper mHelper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig());
+
+@Before
+public void setUp() {
+	mHelper.setUp();
+}
+
+@After
+public void tearDown() {
+	mHelper.tearDown();
+}
+
+@Test
+public void addAndGet() {
+	assertEquals(0, ShardedCounter.get("views"));
+	assertEquals(1, ShardedCounter.getShardCount("views"));
+
+	ShardedCounter.ensureShards("views", 8);
+	assertEquals(8, ShardedCounter.getShardCount("views"));
+	for (int i = 0; i < 100; i++) {
+		ShardedCounter.increment("views");
+	}
+	ShardedCounter.add("views", -10);
+	assertEquals(90, ShardedCounter.getUncached("views"));
+
+	int shards = DatastoreUtils.prepare(new Query(ShardedCounter.SHARD_KIND)).countEntities();
+	assertTrue(shards > 1 && shards <= 8);
+
+	// Cached total is updated by later additions
+	assertEquals(90, ShardedCounter.get("views"));
+	ShardedCounter.add("views", 5);
+	assertEquals(95, ShardedCounter.get("views"));
+
+	// Shard count never shrinks
+	ShardedCounter.ensureShards("views", 2);
+	assertEquals(8, ShardedCounter.getShardCount("views"));
+}
+
+@Test
+public void concurrentAdds() throws Exception {
+	final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+	List<Thread> threads = new ArrayList<>();
+	for (int i = 0; i < 4; i++) {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				ApiProxy.setEnvironmentForCurrentThread(environment);
+				for (int i = 0; i < 25; i++) {
+					ShardedCounter.increment("plays");
+				}
+			}
+		});
+		thread.start();
+		threads.add(thread);
+	}
+	for (Thread thread : threads) {
+		thread.join();
+	}
+
+	assertEquals(100, ShardedCounter.getUncached("plays"));
+}
+}
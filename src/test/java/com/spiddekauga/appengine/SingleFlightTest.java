@@ -0,0 +1,142 @@
+package com.spiddekauga.appengine;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.spiddekauga.appengine.SingleFlight.Flight;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+
+/**
+ * Tests sharing concurrent reads
+ */
+public class SingleFlightTest {
+private final LocalServiceTestHelper mHelper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+/** All calls the test flights have made */
+private final List<FutureTask<Entity>> mCalls = new ArrayList<>();
+private Key mKey;
+private Entity mEntity;
+
+@Before
+public void setUp() {
+	mHelper.setUp();
+	SingleFlight.enable("Config");
+	SingleFlight.resetStatistics();
+	mKey = KeyFactory.createKey("Config", "global");
+	mEntity = new Entity(mKey);
+	mEntity.setProperty("motd", "Hello");
+}
+
+@After
+public void tearDown() {
+	// Return all calls so that the next test doesn't join them
+	for (FutureTask<Entity> call : mCalls) {
+		call.run();
+	}
+	SingleFlight.disable("Config");
+	mHelper.tearDown();
+}
+
+@Test
+public void joinsCallsInFlight() throws Exception {
+	FutureTask<Entity> call = createCall();
+	Future<Entity> first = new TestFlight(call).start();
+	Future<Entity> second = new TestFlight(call).start();
+	assertEquals(1, mCalls.size());
+	assertEquals(1, SingleFlight.getJoinCount());
+	assertFalse(second.isDone());
+
+	call.run();
+	Entity firstEntity = first.get();
+	Entity secondEntity = second.get();
+	assertEquals("Hello", firstEntity.getProperty("motd"));
+	assertEquals("Hello", secondEntity.getProperty("motd"));
+	assertNotSame(firstEntity, secondEntity);
+
+	// Returned calls aren't joined
+	new TestFlight(createCall()).start();
+	assertEquals(2, mCalls.size());
+	assertEquals(2, SingleFlight.getFlightCount());
+}
+
+@Test
+public void writesStopJoining() {
+	new TestFlight(createCall()).start();
+	SingleFlight.onWritten(Collections.singletonList(mKey));
+	new TestFlight(createCall()).start();
+	assertEquals(2, mCalls.size());
+	assertEquals(0, SingleFlight.getJoinCount());
+}
+
+@Test
+public void datastoreReads() {
+	DatastoreUtils.put(mEntity);
+	Entity entity = DatastoreUtils.getEntity(mKey);
+	assertEquals("Hello", entity.getProperty("motd"));
+
+	List<Entity> entities = new ArrayList<>();
+	for (Entity found : DatastoreUtils.getEntities(new Query("Config"))) {
+		entities.add(found);
+	}
+	assertEquals(1, entities.size());
+	assertEquals(2, SingleFlight.getFlightCount());
+
+	// Callers get their own copies
+	entities.get(0).setProperty("motd", "Changed");
+	assertEquals("Hello", DatastoreUtils.getEntities(new Query("Config")).iterator().next().getProperty("motd"));
+}
+
+/**
+ * @return a call that returns the entity when it's run
+ */
+private FutureTask<Entity> createCall() {
+	return new FutureTask<>(new Callable<Entity>() {
+		@Override
+		public Entity call() {
+			return mEntity;
+		}
+	});
+}
+
+/**
+ * Flight of the test key that returns a prepared call
+ */
+private class TestFlight extends Flight<Entity> {
+	private final FutureTask<Entity> mCall;
+
+	/**
+	 * @param call returned when the flight makes its call
+	 */
+	TestFlight(FutureTask<Entity> call) {
+		super(DatastoreProfile.DEFAULT, mKey);
+		mCall = call;
+	}
+
+	@Override
+	protected Future<Entity> call() {
+		mCalls.add(mCall);
+		return mCall;
+	}
+
+	@Override
+	protected Entity copy(Entity result) {
+		return result.clone();
+	}
+}
+}
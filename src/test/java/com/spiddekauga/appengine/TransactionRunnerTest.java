@@ -0,0 +1,134 @@
+package com.spiddekauga.appengine;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.spiddekauga.appengine.TransactionRunner.Context;
+import com.spiddekauga.appengine.TransactionRunner.Mode;
+import com.spiddekauga.appengine.TransactionRunner.Work;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests running work in transactions
+ */
+public class TransactionRunnerTest {
+private final LocalServiceTestHelper mHelper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+private Key mKey;
+
+@Before
+public void setUp() {
+	mHelper.setUp();
+	TransactionRunner.resetStatistics();
+	mKey = KeyFactory.createKey("Account", "first");
+	Entity account = new Entity(mKey);
+	account.setProperty("balance", 100L);
+	DatastoreUtils.put(account);
+}
+
+@After
+public void tearDown() {
+	mHelper.tearDown();
+}
+
+@Test
+public void runInTransaction_retriesConflicts() {
+	int attempts = DatastoreUtils.runInTransaction(new Work<Integer>() {
+		@Override
+		public Integer run(Context context) {
+			Entity account = context.get(mKey);
+			if (context.getAttempt() == 1) {
+				// Concurrent transaction on the same entity group
+				DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+				Transaction transaction = datastore.beginTransaction();
+				datastore.put(transaction, account.clone());
+				transaction.commit();
+			}
+			account.setProperty("balance", (Long) account.getProperty("balance") - 10);
+			context.put(account);
+			return context.getAttempt();
+		}
+	});
+
+	assertEquals(2, attempts);
+	assertEquals(90L, DatastoreUtils.getEntity(mKey).getProperty("balance"));
+	assertEquals(1, TransactionRunner.getConflictCount("Account"));
+	assertEquals(0, TransactionRunner.getConflictCount("Other"));
+}
+
+@Test
+public void runInTransaction_rollsBackFailures() {
+	try {
+		DatastoreUtils.runInTransaction(new Work<Void>() {
+			@Override
+			public Void run(Context context) {
+				Entity account = context.get(mKey);
+				account.setProperty("balance", 0L);
+				context.put(account);
+				throw new IllegalStateException("Insufficient funds");
+			}
+		});
+		fail("Expected IllegalStateException");
+	} catch (IllegalStateException e) {
+		assertEquals("Insufficient funds", e.getMessage());
+	}
+	assertEquals(100L, DatastoreUtils.getEntity(mKey).getProperty("balance"));
+}
+
+@Test
+public void runInTransaction_modes() {
+	final Key otherKey = KeyFactory.createKey("Account", "second");
+	DatastoreUtils.runInTransaction(Mode.CROSS_GROUP, new Work<Void>() {
+		@Override
+		public Void run(Context context) {
+			Entity account = context.get(mKey);
+			account.setProperty("balance", 50L);
+			Entity other = new Entity(otherKey);
+			other.setProperty("balance", 50L);
+			context.put(account);
+			context.put(other);
+			return null;
+		}
+	});
+	assertNotNull(DatastoreUtils.getEntity(otherKey));
+
+	long total = DatastoreUtils.runInTransaction(Mode.READ_ONLY, new Work<Long>() {
+		@Override
+		public Long run(Context context) {
+			long total = 0;
+			for (Entity account : context.get(Arrays.asList(mKey, otherKey)).values()) {
+				total += (Long) account.getProperty("balance");
+			}
+			return total;
+		}
+	});
+	assertEquals(100, total);
+
+	try {
+		DatastoreUtils.runInTransaction(Mode.READ_ONLY, new Work<Void>() {
+			@Override
+			public Void run(Context context) {
+				context.delete(mKey);
+				return null;
+			}
+		});
+		fail("Expected IllegalStateException");
+	} catch (IllegalStateException e) {
+		// Expected
+	}
+	assertNotNull(DatastoreUtils.getEntity(mKey));
+}
+}